@@ -1,43 +1,66 @@
 import spacy
 import sys
 
-"""Calls spaCy to extract noun_phrases, verbs, or named entities from a string.
-
-Pass one argument, which is any of these operations:
-    noun_phrases
-    verbs
-    named_entities
-You can request combinations by concatenating the operations with plus signs (no spaces):
-    noun_phrases+named_entites
-    noun_phrases+verbs+named_entities
-Returns -1 if passed an invalid operation.
-Pass the string to extract from via STDIN.
-This script returns the extracted phrases in STDOUT.
+"""Calls spaCy to extract the sentences from documents.
+
+Runs as a daemon, reading batches of documents from STDIN and writing their sentences to STDOUT.
+A batch of k documents is one framed message, where each document is its length in bytes on a line
+of its own followed by that many bytes of UTF-8 text:
+    BATCH k
+    n
+    <n bytes of text>
+    ...
+The answer comes back the same way, with the number of sentences for each document followed by
+the sentences, each one length-prefixed:
+    BATCH k
+    m
+    n
+    <n bytes of sentence text>
+    ...
+The daemon exits at end of input.
 """
 
 operation = 'sentences'
 
-# Load English tokenizer, tagger, parser, NER and word vectors
+# Load the tokenizer, tagger, parser, NER and word vectors
 nlp = spacy.load("en_core_web_sm")
 
-# Get query from stdin:
+stdin = sys.stdin.buffer
+stdout = sys.stdout.buffer
+
+
+def read_line():
+    line = stdin.readline()
+    if not line:
+        sys.exit(0)
+    return line.decode('ascii').strip()
+
+
+def read_payload():
+    length = int(read_line())
+    data = stdin.read(length)
+    if len(data) < length:
+        sys.exit(0)
+    return data.decode('utf-8')
+
+
+def write_payload(text):
+    data = text.encode('utf-8')
+    stdout.write(b'%d\n' % len(data))
+    stdout.write(data)
+
+
 while True:
-    text = ""
-    for line in sys.stdin:
-        if line.startswith('EOF'):
-            sys.exit(0)
-        elif line.startswith('EOD'):
-            break
-        text += line
-    
-    doc = nlp(text)
-    nouns = []
-    verbs = []
-    entities = []
-    sentences = []
-    sentences = [sent.text.strip() for sent in doc.sents]
-    for a in sentences:
-        print(a)
-    print('EOL')
-    sys.stdout.flush()
-sys.exit(0)
+    header = read_line()
+    if not header.startswith('BATCH '):
+        sys.stderr.write('Unexpected request header: ' + header + '\n')
+        sys.exit(1)
+    count = int(header[len('BATCH '):])
+    texts = [read_payload() for _ in range(count)]
+    stdout.write(b'BATCH %d\n' % count)
+    for doc in nlp.pipe(texts):
+        sentences = [sent.text.strip() for sent in doc.sents]
+        stdout.write(b'%d\n' % len(sentences))
+        for sentence in sentences:
+            write_payload(sentence)
+    stdout.flush()
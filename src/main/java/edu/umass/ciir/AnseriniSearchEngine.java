@@ -3,14 +3,18 @@ package edu.umass.ciir;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -18,9 +22,89 @@ import java.util.stream.Stream;
 public class AnseriniSearchEngine implements SearchEngineInterface {
     private static final Logger logger = Logger.getLogger("TasksRunner");
     /**
-     * The key is the normalized language, the value is a PrintWriter ready to write to the file for that language
+     * The key is the normalized language, the value is the set of JsonCollection files for that language
      */
-    private Map<String,PrintWriter> printWriterMap = new HashMap<>();
+    private Map<String,LanguageFiles> languageFilesMap = new ConcurrentHashMap<>();
+
+    /* Corpus lines are handed to the worker pool this many at a time */
+    private static final int PREPROCESS_BATCH_SIZE = 1024;
+
+    /**
+     * The JsonCollection files for one language. IndexCollection indexes one file per thread, so each
+     * language's documents are spread over Pathnames.anseriniFilesPerLanguage files, each document going
+     * to the file with the fewest bytes so far, so the files come out about the same size.
+     * The lines are encoded once, and the UTF-8 bytes counted are the ones written.
+     */
+    private static class LanguageFiles {
+        private final OutputStream[] writers;
+        private final long[] bytes;
+        private long docs = 0;
+
+        LanguageFiles(String language, int numFiles) throws IOException {
+            Path directory = Paths.get(Pathnames.tempFileLocation + language);
+            Files.createDirectories(directory);
+            /* Remove any files left by an earlier run, which might have had a different number of files */
+            try (DirectoryStream<Path> oldFiles = Files.newDirectoryStream(directory, "*.json")) {
+                for (Path oldFile : oldFiles) {
+                    Files.delete(oldFile);
+                }
+            }
+            writers = new OutputStream[numFiles];
+            bytes = new long[numFiles];
+            for (int i = 0; i < numFiles; ++i) {
+                writers[i] = new BufferedOutputStream(new FileOutputStream(Pathnames.tempFileLocation + language
+                        + "/" + language + String.format("-%04d", i) + ".json"), 1 << 20);
+            }
+        }
+
+        void write(String line) throws IOException {
+            byte[] encoded = line.getBytes(StandardCharsets.UTF_8);
+            synchronized (this) {
+                int smallest = 0;
+                for (int i = 1; i < bytes.length; ++i) {
+                    if (bytes[i] < bytes[smallest]) {
+                        smallest = i;
+                    }
+                }
+                writers[smallest].write(encoded);
+                bytes[smallest] += encoded.length;
+                ++docs;
+            }
+        }
+
+        synchronized void close() {
+            for (OutputStream writer : writers) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    throw new TasksRunnerException(e);
+                }
+            }
+        }
+
+        synchronized long getDocs() {
+            return docs;
+        }
+
+        synchronized long getBytes() {
+            return Arrays.stream(bytes).sum();
+        }
+    }
+
+    /**
+     * One document, encoded as a JsonCollection line.
+     */
+    private static class AnseriniDoc {
+        final String uuid;
+        final String language;
+        final String line;
+
+        AnseriniDoc(String uuid, String language, String line) {
+            this.uuid = uuid;
+            this.language = language;
+            this.line = line;
+        }
+    }
 
     /**
      * Executes the specified queryfile with Anserini's SearchCollection program,
@@ -87,14 +171,14 @@ public class AnseriniSearchEngine implements SearchEngineInterface {
         Command.execute(tempCommand, anseriniLogFile);
     }
 
-    private String mustContainString(JSONObject json, String objectName, int lineNo) {
+    private String mustContainString(JSONObject json, String objectName, long lineNo) {
         if (!json.containsKey(objectName)) {
             throw new TasksRunnerException("No " + objectName + " field in corpus file, line " + lineNo);
         }
         return (String) json.get(objectName);
     }
 
-    private JSONObject mustContainObject(JSONObject json, String objectName, int lineNo) {
+    private JSONObject mustContainObject(JSONObject json, String objectName, long lineNo) {
         if (!json.containsKey(objectName)) {
             throw new TasksRunnerException("No " + objectName + " field in corpus file, line " + lineNo);
         }
@@ -124,52 +208,133 @@ public class AnseriniSearchEngine implements SearchEngineInterface {
         return queriesMap;
     }
 
+    /**
+     * Reads in the corpus file and writes each language's documents into a directory for that language,
+     * in Anserini's JsonCollection format, as Pathnames.anseriniFilesPerLanguage files of about the same size.
+     * The lines are parsed and encoded on a pool of Pathnames.preprocessThreads worker threads.
+     * If the corpus has been split into shards (see CorpusShards), the shards are read concurrently.
+     */
     private void betterToAnserini (String inputFile) {
+        // Some corpora have duplicates, index only one
+        DocidSet ids = new DocidSet();
+        List<CorpusShards.Shard> shards = CorpusShards.getShardsOrCorpus(inputFile);
+        ExecutorService workers = Executors.newFixedThreadPool(Pathnames.preprocessThreads);
+        Instant start = Instant.now();
         try {
-            // Some corpora have duplicates, index only one
-            Set<String> ids = new HashSet<>();
-
-            JSONParser parser = new JSONParser();
-            BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile)));
-            String line;
-            int lineNo = 1;
-            while ((line = rdr.readLine()) != null) {
-                JSONObject json = (JSONObject) parser.parse(line);
-                JSONObject derived_metadata = mustContainObject(json, "derived-metadata", lineNo);
-                String uuid = mustContainString(derived_metadata, "id", lineNo);
-                String text = mustContainString(derived_metadata, "text", lineNo);
-                text = JSONValue.escape(text);
-                String language = mustContainString(derived_metadata, "language", lineNo);
-                language = SearchEngineInterface.toCanonicalForm(language);
-                if (!ids.contains(uuid)) {
-                    ids.add(uuid);
-                    if (!printWriterMap.containsKey(language)) {
-                        new File(Pathnames.tempFileLocation + language).mkdirs();
-                        printWriterMap.put(language, new PrintWriter(Pathnames.tempFileLocation + language +
-                                "/" + language + ".json"));
-                    }
-                    PrintWriter writer = printWriterMap.get(language);
+            shards.parallelStream().forEach(shard -> betterToAnserini(shard, ids, workers));
+        } finally {
+            workers.shutdownNow();
+            for (LanguageFiles languageFiles : languageFilesMap.values()) {
+                languageFiles.close();
+            }
+        }
+        double seconds = Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0;
+        long docs = languageFilesMap.values().stream().mapToLong(LanguageFiles::getDocs).sum();
+        logger.info(String.format("Preprocessed %d docs in %.1f seconds, %.0f docs/sec", docs, seconds,
+                docs / seconds));
+        logger.info("Duplicate check: " + ids.describeMemory());
+    }
 
-                    writer.println("{\"id\": \"" + uuid + "\", \"contents\": \"" + text + "\"}");
-                    ++lineNo;
+    /**
+     * Converts one shard of the corpus file to JsonCollection lines.
+     * The shard is read on the calling thread, which hands batches of lines to the workers to parse and
+     * encode, and writes each batch out when it is done. At most twice as many batches as there
+     * are workers are in flight at once, so a slow writer holds back the reading instead of filling memory.
+     * @param shard the shard (or the whole corpus file, if it has not been sharded)
+     * @param ids the docids seen so far, in all shards
+     * @param workers the threads to parse and encode the lines on
+     */
+    private void betterToAnserini(CorpusShards.Shard shard, Set<String> ids, ExecutorService workers) {
+        Deque<Future<List<AnseriniDoc>>> inFlight = new ArrayDeque<>();
+        int maxInFlight = 2 * Pathnames.preprocessThreads;
+        try {
+            List<String> batch = new ArrayList<>(PREPROCESS_BATCH_SIZE);
+            long batchFirstLine = shard.getFirstDoc() + 1;
+            for (CorpusReader.Line corpusLine : new CorpusReader(shard.getFile())) {
+                batch.add(corpusLine.getText());
+                if (batch.size() == PREPROCESS_BATCH_SIZE) {
+                    List<String> lines = batch;
+                    long firstLine = batchFirstLine;
+                    inFlight.addLast(workers.submit(() -> toAnseriniDocs(lines, firstLine)));
+                    batchFirstLine += batch.size();
+                    batch = new ArrayList<>(PREPROCESS_BATCH_SIZE);
+                    if (inFlight.size() >= maxInFlight) {
+                        writeAnseriniDocs(ParallelTasks.get(inFlight.removeFirst()), ids);
+                    }
                 }
             }
-            for (PrintWriter writer : printWriterMap.values()) {
-                writer.close();
+            if (!batch.isEmpty()) {
+                List<String> lines = batch;
+                long firstLine = batchFirstLine;
+                inFlight.addLast(workers.submit(() -> toAnseriniDocs(lines, firstLine)));
+            }
+            while (!inFlight.isEmpty()) {
+                writeAnseriniDocs(ParallelTasks.get(inFlight.removeFirst()), ids);
             }
-        } catch (Exception cause) {
+        } catch (IOException cause) {
             throw new TasksRunnerException(cause);
+        } finally {
+            ParallelTasks.cancelAll(inFlight);
+        }
+    }
+
+    /**
+     * Parses a batch of corpus lines and encodes them as JsonCollection lines.
+     * @param lines the corpus lines
+     * @param firstLine the corpus line number of the first line, for error messages
+     */
+    private List<AnseriniDoc> toAnseriniDocs(List<String> lines, long firstLine) throws ParseException {
+        JSONParser parser = new JSONParser();
+        List<AnseriniDoc> docs = new ArrayList<>(lines.size());
+        long lineNo = firstLine;
+        for (String line : lines) {
+            JSONObject json = (JSONObject) parser.parse(line);
+            JSONObject derived_metadata = mustContainObject(json, "derived-metadata", lineNo);
+            String uuid = mustContainString(derived_metadata, "id", lineNo);
+            String text = mustContainString(derived_metadata, "text", lineNo);
+            text = JSONValue.escape(text);
+            String language = mustContainString(derived_metadata, "language", lineNo);
+            language = SearchEngineInterface.toCanonicalForm(language);
+            docs.add(new AnseriniDoc(uuid, language, "{\"id\": \"" + uuid + "\", \"contents\": \"" + text
+                    + "\"}\n"));
+            ++lineNo;
+        }
+        return docs;
+    }
+
+    private void writeAnseriniDocs(List<AnseriniDoc> docs, Set<String> ids) throws IOException {
+        for (AnseriniDoc doc : docs) {
+            if (ids.add(doc.uuid)) {
+                LanguageFiles languageFiles = languageFilesMap.get(doc.language);
+                if (languageFiles == null) {
+                    synchronized (languageFilesMap) {
+                        languageFiles = languageFilesMap.get(doc.language);
+                        if (languageFiles == null) {
+                            languageFiles = new LanguageFiles(doc.language, Pathnames.anseriniFilesPerLanguage);
+                            languageFilesMap.put(doc.language, languageFiles);
+                        }
+                    }
+                }
+                languageFiles.write(doc.line);
+            }
         }
     }
 
     /**
      * Builds an Anserini index for the target corpus.
+     * If Pathnames.inProcessAnseriniIndexBuild is set, the indexes are built in this JVM by LuceneIndexer,
+     * straight from the corpus file, otherwise by Anserini's IndexCollection, from JsonCollection files.
      */
     public void buildIndexes(String corpusFile) {
         logger.info("Building indexes");
+        if (Pathnames.inProcessAnseriniIndexBuild) {
+            buildIndexesInProcess(corpusFile);
+            return;
+        }
         Instant start = Instant.now();
         preprocess(corpusFile);
-        for (String language : printWriterMap.keySet()) {
+        for (String language : languageFilesMap.keySet()) {
+            Instant languageStart = Instant.now();
             /*
             sh ./target/appassembler/bin/IndexCollection -collection JsonCollection  -generator DefaultLuceneDocumentGenerator -threads 8
             -input ./openresearch_data/anserini_format/corpus  -index ./openresearch_data/lucene-index-openresearch -optimize -storePositions -storeDocvectors -storeRaw
@@ -178,7 +343,7 @@ public class AnseriniSearchEngine implements SearchEngineInterface {
             String tempCommand = Pathnames.anseriniLocation + "IndexCollection "
                    + " -collection JsonCollection"
                    + " -generator DefaultLuceneDocumentGenerator"
-                    + " -threads 8"
+                    + " -threads " + Pathnames.anseriniThreads
                     + " -input " + Pathnames.tempFileLocation + language
                     + " -index " + Pathnames.indexLocation + "anserini/better-clear-ir-" + language
                     + " -language " + SearchEngineInterface.toTwoCharForm(language)
@@ -186,16 +351,46 @@ public class AnseriniSearchEngine implements SearchEngineInterface {
 
             Command.execute(tempCommand, anseriniLogFile);
 
+            LanguageFiles languageFiles = languageFilesMap.get(language);
+            double seconds = Math.max(1, Duration.between(languageStart, Instant.now()).toMillis()) / 1000.0;
+            logger.info(String.format("Anserini %s index: %d docs, %.1f MB in %.1f seconds with %d threads,"
+                    + " %.0f docs/sec, %.2f MB/sec", language, languageFiles.getDocs(),
+                    languageFiles.getBytes() / 1048576.0, seconds, Pathnames.anseriniThreads,
+                    languageFiles.getDocs() / seconds, languageFiles.getBytes() / 1048576.0 / seconds));
+
             Instant end = Instant.now();
             Duration interval = Duration.between(start, end);
             long runTime = interval.toMinutes();
             logger.info("Anserini build time (minutes):\n" + runTime);
-            /* create a file in the index directory that indicates that this language is part of the corpus */
-            try {
-                Files.createFile(Paths.get(Pathnames.indexLocation + "anserini/" + language + ".conf"));
-            } catch (Exception e) {
-                throw new TasksRunnerException(e);
+            createLanguageMarkerFile(language);
+        }
+    }
+
+    private void buildIndexesInProcess(String corpusFile) {
+        Instant start = Instant.now();
+        LuceneIndexer indexer = new LuceneIndexer(Pathnames.indexLocation + "anserini/");
+        indexer.index(corpusFile);
+        double seconds = Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0;
+        for (String language : indexer.getLanguages()) {
+            logger.info(String.format("Anserini %s index: %d docs, %.1f MB of text", language,
+                    indexer.getDocs(language), indexer.getChars(language) / 1048576.0));
+            createLanguageMarkerFile(language);
+        }
+        logger.info(String.format("Anserini in-process build time: %.1f seconds with %d threads", seconds,
+                Pathnames.anseriniThreads));
+    }
+
+    /**
+     * Creates a file in the index directory that indicates that this language is part of the corpus.
+     */
+    private void createLanguageMarkerFile(String language) {
+        try {
+            Path markerFile = Paths.get(Pathnames.indexLocation + "anserini/" + language + ".conf");
+            if (!Files.exists(markerFile)) {
+                Files.createFile(markerFile);
             }
+        } catch (Exception e) {
+            throw new TasksRunnerException(e);
         }
     }
 
@@ -206,7 +401,7 @@ public class AnseriniSearchEngine implements SearchEngineInterface {
         logger.info("Preprocessing the corpus file at " + corpusFile);
 
         /* Convert the target corpus file into a format we can use. Create separate files for each language
-         * found in the corpus file. Create the printWriterMap of which languages are in use.
+         * found in the corpus file. Create the languageFilesMap of which languages are in use.
          */
         betterToAnserini(corpusFile);
     }
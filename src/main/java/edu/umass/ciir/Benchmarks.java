@@ -0,0 +1,707 @@
+package edu.umass.ciir;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Throughput benchmarks for the corpus-handling code, run from the command line against a real corpus file:
+ *   java -cp tasks-runner-6.0.0.jar edu.umass.ciir.Benchmarks corpus-reader /corpus/corpus.jl
+ * Results are printed to STDOUT.
+ * Benchmarks that go through Document need the usual environment vars, like scratchFileLocation,
+ * because Pathnames requires them.
+ */
+public class Benchmarks {
+
+    private static void printResult(String name, long lines, long bytes, Instant start) {
+        long millis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+        System.out.printf("%-40s %10d lines %10.1f MB %8.2f s %10.1f MB/s %12.0f lines/s%n", name, lines,
+                bytes / 1048576.0, millis / 1000.0, (bytes / 1048576.0) / (millis / 1000.0),
+                lines / (millis / 1000.0));
+    }
+
+    /**
+     * Compares reading the corpus through Files.lines(), which is what Document and the index preprocessors
+     * used to do, with CorpusReader, both with and without decoding every line.
+     * @param corpus the corpus file to read
+     */
+    private static void corpusReader(String corpus) {
+        long fileSize = new File(corpus).length();
+
+        Instant start = Instant.now();
+        AtomicLong lines = new AtomicLong();
+        try (Stream<String> stream = Files.lines(Paths.get(corpus), StandardCharsets.UTF_8)) {
+            stream.forEach(line -> lines.incrementAndGet());
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        printResult("Files.lines (sequential, decoded)", lines.get(), fileSize, start);
+
+        start = Instant.now();
+        lines.set(0);
+        try (Stream<String> stream = Files.lines(Paths.get(corpus), StandardCharsets.UTF_8)) {
+            stream.parallel().forEach(line -> lines.incrementAndGet());
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        printResult("Files.lines (parallel, decoded)", lines.get(), fileSize, start);
+
+        CorpusReader reader = new CorpusReader(corpus);
+
+        start = Instant.now();
+        lines.set(0);
+        reader.forEachLineInOrder(line -> lines.incrementAndGet());
+        printResult("CorpusReader (in order, not decoded)", lines.get(), fileSize, start);
+
+        start = Instant.now();
+        lines.set(0);
+        reader.forEachLine(line -> lines.incrementAndGet());
+        printResult("CorpusReader (parallel, not decoded)", lines.get(), fileSize, start);
+
+        start = Instant.now();
+        lines.set(0);
+        reader.forEachLine(line -> {
+            line.getText();
+            lines.incrementAndGet();
+        });
+        printResult("CorpusReader (parallel, decoded)", lines.get(), fileSize, start);
+    }
+
+    /**
+     * Writes a synthetic corpus, half old-style and half new-style lines, and compares finding 0.1% of its
+     * documents by parsing every line (the old Document.getGoodOnes) with CorpusIdExtractor.
+     * @param numDocs the number of documents to put in the synthetic corpus
+     */
+    private static void docidFilter(int numDocs) {
+        Random random = new Random(42);
+        Set<String> wanted = new HashSet<>();
+        File corpus;
+        try {
+            corpus = File.createTempFile("synthetic-corpus", ".jl");
+            corpus.deleteOnExit();
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(corpus),
+                    StandardCharsets.UTF_8))) {
+                for (int i = 0; i < numDocs; ++i) {
+                    String docid = UUID.randomUUID().toString();
+                    if (random.nextInt(1000) == 0) {
+                        wanted.add(docid);
+                    }
+                    StringBuilder text = new StringBuilder();
+                    int words = 200 + random.nextInt(800);
+                    for (int w = 0; w < words; ++w) {
+                        text.append("\u0627\u0644\u0646\u0635 word").append(w).append(w % 17 == 0 ? ". " : " ");
+                    }
+                    if (i % 2 == 0) {
+                        writer.println("{\"uuid\": \"" + docid + "\", \"text\": \"" + text + "\"}");
+                    } else {
+                        writer.println("{\"derived-metadata\": {\"text\": \"" + text
+                                + "\", \"segment-sections\": [{\"start\": 0, \"end\": 10}], \"language\": \"ar\", "
+                                + "\"id\": \"" + docid + "\"}}");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        System.out.println("Synthetic corpus: " + numDocs + " docs, " + wanted.size() + " wanted");
+        CorpusReader reader = new CorpusReader(corpus.getPath());
+
+        Instant start = Instant.now();
+        AtomicLong lines = new AtomicLong();
+        AtomicLong found = new AtomicLong();
+        reader.forEachLine(line -> {
+            lines.incrementAndGet();
+            if (wanted.contains(CorpusIdExtractor.getDocidByParsing(line.getText()))) {
+                found.incrementAndGet();
+            }
+        });
+        printResult("full JSON parse (" + found.get() + " found)", lines.get(), corpus.length(), start);
+
+        start = Instant.now();
+        lines.set(0);
+        found.set(0);
+        reader.forEachLine(line -> {
+            lines.incrementAndGet();
+            if (wanted.contains(CorpusIdExtractor.getDocid(line))) {
+                found.incrementAndGet();
+            }
+        });
+        printResult("CorpusIdExtractor (" + found.get() + " found)", lines.get(), corpus.length(), start);
+    }
+
+    /* Rough sizes of JVM objects with compressed oops: a String is a 24-byte object plus a byte array
+       (16-byte header) holding 1 byte per char if the string is Latin-1, else 2 */
+    private static long stringFootprint(String s) {
+        if (s == null) {
+            return 0;
+        }
+        boolean latin1 = s.chars().allMatch(c -> c < 256);
+        return 24 + 16 + (long) s.length() * (latin1 ? 1 : 2);
+    }
+
+    private static long plainFootprint(DocumentDetails d) {
+        long bytes = 40 + stringFootprint(d.getText()) + stringFootprint(d.getTranslatedText());
+        for (SentenceRange sentence : d.getSentences()) {
+            bytes += 32 + stringFootprint(sentence.text);
+        }
+        return bytes;
+    }
+
+    private static long compactFootprint(DocumentDetails d) {
+        return 56 + 16 + d.getWeight();
+    }
+
+    /**
+     * Loads the first numDocs documents of a corpus into DocumentDetails, in the normal and in the compact
+     * storage mode, and reports how much memory each takes. Sentences come from the corpus's segment-sections;
+     * spaCy is not called, so documents without segment-sections are counted without sentences.
+     * @param corpus the corpus file
+     * @param numDocs how many documents to load
+     */
+    private static void docStoreFootprint(String corpus, int numDocs) {
+        List<String[]> docs = new ArrayList<>();
+        List<List<SentenceRange>> docSentences = new ArrayList<>();
+        Iterator<CorpusReader.Line> lines = new CorpusReader(corpus).iterator();
+        while (docs.size() < numDocs && lines.hasNext()) {
+            JSONObject json;
+            try {
+                json = (JSONObject) new JSONParser().parse(lines.next().getText());
+            } catch (ParseException e) {
+                throw new TasksRunnerException(e);
+            }
+            JSONObject fields = json.containsKey("uuid") ? json : (JSONObject) json.get("derived-metadata");
+            String text = (String) fields.get("text");
+            String translatedText = fields.containsKey("translated-text") ? (String) fields.get("translated-text") : "";
+            List<SentenceRange> sentences = new ArrayList<>();
+            if (fields.containsKey("segment-sections")) {
+                int id = 0;
+                for (Object oSection : (JSONArray) fields.get("segment-sections")) {
+                    JSONObject section = (JSONObject) oSection;
+                    int start = (int) (long) section.get("start");
+                    int end = (int) (long) section.get("end");
+                    if (start >= 0 && start <= end && end <= text.length()) {
+                        sentences.add(new SentenceRange(++id, start, end, text.substring(start, end)));
+                    }
+                }
+            }
+            docs.add(new String[] {text, translatedText});
+            docSentences.add(sentences);
+        }
+
+        long[] footprints = new long[2];
+        long[] loadMillis = new long[2];
+        long decodeMillis = 0;
+        for (int mode = 0; mode < 2; ++mode) {
+            Pathnames.compactDocumentStore = (mode == 1);
+            Instant start = Instant.now();
+            List<DocumentDetails> details = new ArrayList<>();
+            for (int i = 0; i < docs.size(); ++i) {
+                details.add(new DocumentDetails(docs.get(i)[0], docs.get(i)[1], docSentences.get(i),
+                        new ArrayList<>(), "arabic"));
+            }
+            loadMillis[mode] = Duration.between(start, Instant.now()).toMillis();
+            for (DocumentDetails d : details) {
+                footprints[mode] += (mode == 1) ? compactFootprint(d) : plainFootprint(d);
+            }
+            if (mode == 1) {
+                start = Instant.now();
+                for (DocumentDetails d : details) {
+                    d.getTranslatedText();
+                    d.getSentences();
+                }
+                decodeMillis = Duration.between(start, Instant.now()).toMillis();
+            }
+        }
+        System.out.printf("%d docs%n", docs.size());
+        System.out.printf("%-10s %10.1f MB  (load %d ms)%n", "normal", footprints[0] / 1048576.0, loadMillis[0]);
+        System.out.printf("%-10s %10.1f MB  (load %d ms, decode all %d ms)%n", "compact", footprints[1] / 1048576.0,
+                loadMillis[1], decodeMillis);
+        System.out.printf("compact is %.1f%% of normal%n", 100.0 * footprints[1] / Math.max(1, footprints[0]));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Builds a document map from the first numDocs lines of a corpus the way Document does, with eager
+     * DocumentDetails (every line parsed and segmented up front) and with lazy ones (see
+     * Pathnames.lazyDocumentDetails), each with and without Pathnames.compactDocumentStore, and reports the
+     * build time and the heap each map retains.
+     * The lines are read from the corpus again for each build and not kept, so the heap is what the map holds
+     * on to, lines included if its details keep them. The build time includes reading the lines.
+     * For the lazy map it also reports how long it takes to then ask every document for its text,
+     * and for all of its details, which is what the eager build paid for up front, and the heap retained then.
+     * Documents without segment-sections are segmented by their language's sentence segmenter, so set
+     * javaSegmenterLanguages to keep spaCy out of the measurement.
+     * @param corpus the corpus file
+     * @param numDocs how many documents to load
+     */
+    private static void docMapBuild(String corpus, int numDocs) {
+        Pathnames.useSentenceCache = false;
+        for (int mode = 0; mode < 4; ++mode) {
+            boolean lazy = (mode & 1) == 1;
+            Pathnames.compactDocumentStore = (mode & 2) == 2;
+            Pathnames.lazyDocumentDetails = lazy;
+            String name = (Pathnames.compactDocumentStore ? "compact " : "") + (lazy ? "lazy" : "eager");
+            long heapBefore = usedHeap();
+            Instant start = Instant.now();
+            Map<String, DocumentDetails> map = loadDocMap(corpus, numDocs);
+            long buildMillis = Duration.between(start, Instant.now()).toMillis();
+            long heap = usedHeap() - heapBefore;
+            System.out.printf("%-13s %d docs, build %8d ms %10.1f MB heap%n", name, map.size(), buildMillis,
+                    heap / 1048576.0);
+            if (lazy) {
+                start = Instant.now();
+                for (DocumentDetails d : map.values()) {
+                    d.getText();
+                }
+                long textMillis = Duration.between(start, Instant.now()).toMillis();
+                start = Instant.now();
+                for (DocumentDetails d : map.values()) {
+                    d.getTranslatedText();
+                    d.getSentences();
+                    d.getEvents();
+                    d.getLanguage();
+                }
+                long restMillis = Duration.between(start, Instant.now()).toMillis();
+                heap = usedHeap() - heapBefore;
+                System.out.printf("%-13s first getText() %d ms, then the other details %d ms, %.1f MB heap (%d docs)%n",
+                        name, textMillis, restMillis, heap / 1048576.0, map.size());
+            }
+            map.clear();
+        }
+    }
+
+    /* Reads the first numDocs lines of a corpus into a document map, keeping none of them but what the map
+       keeps */
+    private static Map<String, DocumentDetails> loadDocMap(String corpus, int numDocs) {
+        Map<String, DocumentDetails> map = new HashMap<>();
+        Iterator<CorpusReader.Line> lines = new CorpusReader(corpus).iterator();
+        for (int i = 0; i < numDocs && lines.hasNext(); ++i) {
+            Document.doALine(lines.next().getText(), map::put);
+        }
+        return map;
+    }
+
+    /* Adds each docid twice, as a copy of its own, the way the preprocessors see it, and a duplicate.
+       Returns {milliseconds, bytes of heap, size}. The set is still in use when the heap is measured */
+    private static long[] fillDocidSet(List<String> docids, Set<String> set) {
+        long heapBefore = usedHeap();
+        Instant start = Instant.now();
+        for (String docid : docids) {
+            set.add(new String(docid.toCharArray()));
+            set.add(docid);
+        }
+        long millis = Duration.between(start, Instant.now()).toMillis();
+        return new long[] {millis, usedHeap() - heapBefore, set.size()};
+    }
+
+    /**
+     * Compares the heap taken up and the time taken by the index preprocessors' duplicate check, adding
+     * numDocs random UUID docids (each twice) to a ConcurrentHashMap key set, as it used to be, and to a DocidSet.
+     * The first round is a warm-up.
+     * @param numDocs how many docids to add
+     */
+    private static void docidSet(int numDocs) {
+        List<String> docids = new ArrayList<>(numDocs);
+        for (int i = 0; i < numDocs; ++i) {
+            docids.add(UUID.randomUUID().toString());
+        }
+        for (int round = 0; round < 2; ++round) {
+            long[] hashSet = fillDocidSet(docids, java.util.concurrent.ConcurrentHashMap.newKeySet());
+            long[] docidSet = fillDocidSet(docids, new DocidSet());
+            if (round == 1) {
+                System.out.printf("%-10s %10d docids %8d ms %10.1f MB heap%n", "HashSet", hashSet[2], hashSet[0],
+                        hashSet[1] / 1048576.0);
+                System.out.printf("%-10s %10d docids %8d ms %10.1f MB heap%n", "DocidSet", docidSet[2], docidSet[0],
+                        docidSet[1] / 1048576.0);
+            }
+        }
+        DocidSet set = new DocidSet();
+        set.addAll(docids);
+        System.out.println("Same docids after iterating: " + new HashSet<>(set).equals(new HashSet<>(docids)));
+    }
+
+    /**
+     * Compares running a Galago query file with a "galago batch-search" command, as GalagoSearchEngine.search()
+     * used to, with running it in this JVM with GalagoRetrievalService, rounds times each.
+     * Each command pays JVM startup and opens the index; GalagoRetrievalService opens it in its first round only.
+     * Needs Pathnames.galagoLocation, and uses Pathnames.galagoSearchThreads threads.
+     * @param index the Galago index
+     * @param queryFile the query file
+     * @param requested the number of hits per query
+     * @param rounds the number of times to run the query file each way
+     */
+    private static void galagoSearch(String index, String queryFile, int requested, int rounds) {
+        int queries = new GalagoSearchEngine().getQueries(queryFile).size();
+        String runFile = Pathnames.tempFileLocation + "galago-search-benchmark.out";
+        for (int round = 1; round <= rounds; ++round) {
+            Instant start = Instant.now();
+            Command.execute(Pathnames.galagoLocation + "galago threaded-batch-search --outputFile=" + runFile
+                    + ".command --threadCount=" + Pathnames.galagoSearchThreads + " --systemName=CLEAR --trec=true"
+                    + " --index=" + index + " --requested=" + requested + " " + queryFile,
+                    Pathnames.tempFileLocation + "galago-search-benchmark.log");
+            printSearchResult("batch-search command, round " + round, queries, start);
+        }
+        for (int round = 1; round <= rounds; ++round) {
+            Instant start = Instant.now();
+            GalagoRetrievalService.search(() -> {
+                org.lemurproject.galago.utility.Parameters parameters =
+                        org.lemurproject.galago.utility.Parameters.create();
+                parameters.set("index", GalagoRetrievalService.resolve(index));
+                parameters.set("requested", requested);
+                return parameters;
+            }, queryFile, runFile + ".service", "CLEAR");
+            printSearchResult("GalagoRetrievalService, round " + round, queries, start);
+        }
+        System.out.println("Same rankings: " + getRankings(runFile + ".command").equals(
+                getRankings(runFile + ".service")));
+    }
+
+    /**
+     * Runs a query file on one task's documents both ways QueryManager.executeRequestQueries() can: in memory
+     * with an InMemoryTaskIndex (Pathnames.inMemoryTaskIndex), and with a "galago batch-search" command on a
+     * partial index built on the documents, and compares the run files line by line.
+     * Needs Pathnames.galagoLocation and the language's full Galago index. The partial index is built afresh
+     * (the task-level index cache is not used) as task-docs-benchmark.
+     * @param language the language of the full index
+     * @param documentList the task's documents, one docid per line, as the task-level run would give them
+     * @param queryFile the query file
+     * @param requested the number of hits per query
+     */
+    private static void taskDocsSearch(String language, String documentList, String queryFile, int requested) {
+        List<String> docids;
+        try {
+            docids = Files.readAllLines(Paths.get(documentList), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        docids.removeIf(String::isEmpty);
+        int queries = new GalagoSearchEngine().getQueries(queryFile).size();
+        String runFile = Pathnames.tempFileLocation + "task-docs-benchmark.out";
+        System.out.println(docids.size() + " docs, " + queries + " queries");
+
+        Instant start = Instant.now();
+        if (!new GalagoSearchEngine().executeAgainstTaskDocs(requested, queryFile, runFile + ".memory", "benchmark",
+                language, docids)) {
+            System.out.println("Some queries cannot be run in memory, see the log");
+            return;
+        }
+        printSearchResult("in memory", queries, start);
+
+        Pathnames.inProcessSearch = false;
+        Pathnames.partialIndexCacheSize = 0;
+        start = Instant.now();
+        GalagoSearchEngine galagoSearchEngine = new GalagoSearchEngine();
+        galagoSearchEngine.buildTaskPartialIndex("benchmark", "benchmark",
+                Pathnames.indexLocation + "galago/better-clear-ir-" + language, documentList, "task-docs-benchmark",
+                language, Pathnames.tempFileLocation + "task-docs-benchmark.conf");
+        galagoSearchEngine.executeAgainstPartialIndex(1, requested, queryFile, runFile + ".partial", "benchmark",
+                "benchmark", language, "task-docs-benchmark");
+        printSearchResult("partial index and batch-search", queries, start);
+
+        diffRunFiles(runFile + ".memory", runFile + ".partial");
+    }
+
+    /* Compares two run files of the same queries: how many lines are the same, how many differ only in score,
+       and the first few that differ otherwise */
+    private static void diffRunFiles(String runFile1, String runFile2) {
+        List<String> lines1;
+        List<String> lines2;
+        try {
+            lines1 = Files.readAllLines(Paths.get(runFile1), StandardCharsets.UTF_8);
+            lines2 = Files.readAllLines(Paths.get(runFile2), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        int same = 0;
+        int scoresDiffer = 0;
+        List<String> differences = new ArrayList<>();
+        for (int i = 0; i < Math.max(lines1.size(), lines2.size()); ++i) {
+            String line1 = i < lines1.size() ? lines1.get(i) : "(none)";
+            String line2 = i < lines2.size() ? lines2.get(i) : "(none)";
+            String[] fields1 = line1.trim().split("[ \t]+");
+            String[] fields2 = line2.trim().split("[ \t]+");
+            if (line1.equals(line2)) {
+                ++same;
+            } else if (fields1.length == 6 && fields2.length == 6
+                    && Arrays.equals(Arrays.copyOfRange(fields1, 0, 4), Arrays.copyOfRange(fields2, 0, 4))) {
+                ++scoresDiffer;
+            } else if (differences.size() < 10) {
+                differences.add("line " + (i + 1) + ": " + line1 + "  |  " + line2);
+            }
+        }
+        System.out.printf("%d and %d lines: %d the same, %d differing only in score, %d differing otherwise%n",
+                lines1.size(), lines2.size(), same, scoresDiffer,
+                Math.max(lines1.size(), lines2.size()) - same - scoresDiffer);
+        for (String difference : differences) {
+            System.out.println("  " + difference);
+        }
+    }
+
+    /* The query, docid and rank of each line of a run file, sorted, since the scores are formatted differently */
+    private static List<String> getRankings(String runFile) {
+        try (Stream<String> lines = Files.lines(Paths.get(runFile))) {
+            return lines.map(line -> String.join(" ", Arrays.copyOfRange(line.trim().split("[ \t]+"), 0, 4)))
+                    .sorted().collect(java.util.stream.Collectors.toList());
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    private static void printSearchResult(String name, int queries, Instant start) {
+        long millis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+        System.out.printf("%-40s %6d queries %10d ms %8.1f ms/query %10.1f queries/s%n", name, queries, millis,
+                (double) millis / queries, queries * 1000.0 / millis);
+    }
+
+    /* GalagoSearchEngine.bigramIt() as it was before CjkTokenizer, to compare against */
+    private static String oldBigramIt(String rawtext) {
+        String[] sentences = rawtext.split("。");
+        String newText = "";
+        for (String sentence : sentences) {
+            // Remove any whitespace and punctuation
+            String text = sentence.replaceAll("\\p{Punct}", "");
+            text = text.replaceAll("\\s+", "");
+
+            if (text.length() == 1) {
+                newText += text.charAt(0);
+            } else if (text.length() == 2) {
+                newText += text.substring(0, 2);
+            } else {
+                for (int i = 1; i < text.length(); ++i) {
+                    newText += text.substring(i - 1, i + 1);
+                    newText += " ";
+                }
+            }
+            newText += " ";
+        }
+        return newText;
+    }
+
+    /**
+     * Compares CjkTokenizer with the string-concatenating bigramIt() it replaced, on synthetic Chinese
+     * documents of a given length: checks that BIGRAM mode gives the same output, then times each way
+     * (after a warm-up round, best of five rounds) and reports MB/s. The old way takes time in proportion
+     * to the square of the document length, so keep the length modest when comparing with it.
+     * @param docLength the length of each document, in characters
+     * @param numDocs how many documents to tokenize
+     */
+    private static void cjkTokenizer(int docLength, int numDocs) {
+        Random random = new Random(42);
+        String characters = "的一是不了人我在有他这中大来上国个到说们为子和你地出道也时年得就那要下以生会自着去之过家学对可她里后小么心多天而能好都然没日于起还发成事只作当想看文无开手十用主行方又如前所本见经头面公同三已老从动两长知民样现分将外但身些与高意进把法此实回二理美点月明其种声全工己话儿者向情部正名定女问力机给等几很业最间新什打便位因重被走电四第门相次东政海口使教西再平真听世气信北少关并内加化由却代军产入先山五太水万市眼体别处总才场师书比住员九笑性通目华报立马命张活难神数件安表原车白应路期叫死常提感金何更反合放做系计或司利受光王果亲界及今京务制解各任至清物台象记边共风战干接它许八特觉望直服毛林题建南度统色字请交爱让认算论百吃义科怎元社术结六功指思非流每青管夫连远资队跟带花快条院变联言权往展该领传近留红治决周保达办运武半候七必城父强步完革深区即求品士转量空甚众技轻程告江语英基派满式李息写呢识极令黄德收脸钱党倒未持取设始版双历越史商千片容研像找友孩站广改议形委早房音火际则首单据导影失拿网香似斯专石若兵弟谁校读志飞观争究包组造落视济喜离虽坏兴切";
+        String punctuation = "，、；：「」（）！？ .,;:()\n";
+        List<String> docs = new ArrayList<>(numDocs);
+        long bytes = 0;
+        for (int d = 0; d < numDocs; ++d) {
+            StringBuilder doc = new StringBuilder(docLength);
+            while (doc.length() < docLength) {
+                int sentenceLength = 5 + random.nextInt(40);
+                for (int i = 0; i < sentenceLength; ++i) {
+                    doc.append(random.nextInt(8) == 0 ? punctuation.charAt(random.nextInt(punctuation.length()))
+                            : characters.charAt(random.nextInt(characters.length())));
+                }
+                doc.append('。');
+            }
+            docs.add(doc.toString());
+            bytes += doc.toString().getBytes(StandardCharsets.UTF_8).length;
+        }
+        CjkTokenizer bigramTokenizer = new CjkTokenizer(CjkTokenizer.Mode.BIGRAM);
+        for (String doc : docs) {
+            if (!bigramTokenizer.tokenize(doc).equals(oldBigramIt(doc))) {
+                throw new TasksRunnerException("CjkTokenizer BIGRAM output differs from the old bigramIt()");
+            }
+        }
+        System.out.printf("%d docs of %d chars, %.1f MB, BIGRAM output identical to the old bigramIt()%n",
+                numDocs, docLength, bytes / 1048576.0);
+
+        Map<String, java.util.function.Function<String, String>> ways = new LinkedHashMap<>();
+        ways.put("old bigramIt()", Benchmarks::oldBigramIt);
+        for (CjkTokenizer.Mode mode : CjkTokenizer.Mode.values()) {
+            ways.put("CjkTokenizer " + mode, new CjkTokenizer(mode)::tokenize);
+        }
+        for (Map.Entry<String, java.util.function.Function<String, String>> way : ways.entrySet()) {
+            long best = Long.MAX_VALUE;
+            long outputChars = 0;
+            for (int round = 0; round < 6; ++round) {
+                long start = System.nanoTime();
+                outputChars = 0;
+                for (String doc : docs) {
+                    outputChars += way.getValue().apply(doc).length();
+                }
+                long nanos = System.nanoTime() - start;
+                if (round > 0) {
+                    best = Math.min(best, nanos);
+                }
+            }
+            double seconds = Math.max(1, best) / 1e9;
+            System.out.printf("%-32s %10.3f s %10.2f MB/s %12.0f docs/s  (%d output chars)%n", way.getKey(),
+                    seconds, bytes / 1048576.0 / seconds, numDocs / seconds, outputChars);
+        }
+    }
+
+    /* The end offsets of the sentences in a text, found the same way Document finds them */
+    private static Set<Integer> sentenceEnds(String text, List<String> sentences) {
+        Set<Integer> ends = new HashSet<>();
+        int end = 0;
+        for (String sentence : sentences) {
+            int start = text.indexOf(sentence, end);
+            if (start == -1) {
+                continue;
+            }
+            end = start + sentence.length();
+            ends.add(end);
+        }
+        return ends;
+    }
+
+    /**
+     * Compares JavaSentenceSegmenter with spaCy on the first numDocs documents of a corpus that are in
+     * the given language: how well the Java segmenter's sentence boundaries agree with spaCy's
+     * (precision, recall and F1, taking spaCy as correct, and the share of documents where they agree exactly),
+     * and how many documents per second each segmenter gets through per core (per daemon, for spaCy).
+     * The spaCy daemons are started the same way TasksRunner starts them, so programFileLocation must be set.
+     * @param corpus the corpus file
+     * @param language the canonical form of the language (e.g. chinese)
+     * @param numDocs how many documents to segment
+     */
+    private static void segmenterAgreement(String corpus, String language, int numDocs) {
+        List<String> texts = new ArrayList<>();
+        Iterator<CorpusReader.Line> lines = new CorpusReader(corpus).iterator();
+        while (texts.size() < numDocs && lines.hasNext()) {
+            JSONObject json;
+            try {
+                json = (JSONObject) new JSONParser().parse(lines.next().getText());
+            } catch (ParseException e) {
+                throw new TasksRunnerException(e);
+            }
+            JSONObject fields = json.containsKey("uuid") ? json : (JSONObject) json.get("derived-metadata");
+            String docLanguage = fields.containsKey("language")
+                    ? SearchEngineInterface.toCanonicalForm((String) fields.get("language")) : "english";
+            if (docLanguage.equals(language)) {
+                texts.add((String) fields.get("text"));
+            }
+        }
+        long bytes = 0;
+        for (String text : texts) {
+            bytes += text.getBytes(StandardCharsets.UTF_8).length;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d %s docs, %.1f MB, %d cores, %d spaCy daemons%n", texts.size(), language,
+                bytes / 1048576.0, cores, Pathnames.spacyDaemons);
+
+        JavaSentenceSegmenter javaSegmenter = new JavaSentenceSegmenter(language);
+        Instant start = Instant.now();
+        List<List<String>> javaSentences = new ArrayList<>();
+        for (String text : texts) {
+            javaSentences.add(javaSegmenter.getSentences(text));
+        }
+        long javaMillis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+        start = Instant.now();
+        texts.parallelStream().forEach(javaSegmenter::getSentences);
+        long javaParallelMillis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+
+        SpacySentenceSegmenter spacySegmenter = new SpacySentenceSegmenter();
+        spacySegmenter.getSentences("Start the daemons.");
+        start = Instant.now();
+        List<List<String>> spacySentences = spacySegmenter.getSentencesBatch(texts);
+        long spacyMillis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+
+        long agreed = 0;
+        long javaBoundaries = 0;
+        long spacyBoundaries = 0;
+        int exactDocs = 0;
+        for (int i = 0; i < texts.size(); ++i) {
+            Set<Integer> javaEnds = sentenceEnds(texts.get(i), javaSentences.get(i));
+            Set<Integer> spacyEnds = sentenceEnds(texts.get(i), spacySentences.get(i));
+            javaBoundaries += javaEnds.size();
+            spacyBoundaries += spacyEnds.size();
+            if (javaEnds.equals(spacyEnds)) {
+                ++exactDocs;
+            }
+            javaEnds.retainAll(spacyEnds);
+            agreed += javaEnds.size();
+        }
+        double precision = agreed / (double) Math.max(1, javaBoundaries);
+        double recall = agreed / (double) Math.max(1, spacyBoundaries);
+        System.out.printf("boundaries: java %d, spaCy %d, agreed %d%n", javaBoundaries, spacyBoundaries, agreed);
+        System.out.printf("precision %.3f  recall %.3f  F1 %.3f  identical docs %.1f%%%n", precision, recall,
+                2 * precision * recall / Math.max(1e-9, precision + recall),
+                100.0 * exactDocs / Math.max(1, texts.size()));
+        System.out.printf("%-32s %10.0f docs/s per core %8.2f MB/s per core%n", "java (1 thread)",
+                texts.size() * 1000.0 / javaMillis, bytes / 1048576.0 * 1000.0 / javaMillis);
+        System.out.printf("%-32s %10.0f docs/s per core %8.2f MB/s per core%n", "java (" + cores + " threads)",
+                texts.size() * 1000.0 / javaParallelMillis / cores,
+                bytes / 1048576.0 * 1000.0 / javaParallelMillis / cores);
+        System.out.printf("%-32s %10.0f docs/s per core %8.2f MB/s per core%n",
+                "spaCy (" + Pathnames.spacyDaemons + " daemons)",
+                texts.size() * 1000.0 / spacyMillis / Pathnames.spacyDaemons,
+                bytes / 1048576.0 * 1000.0 / spacyMillis / Pathnames.spacyDaemons);
+        Spacy.logStatistics();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: Benchmarks corpus-reader <corpus file>");
+            System.out.println("       Benchmarks docid-filter [number of synthetic docs]");
+            System.out.println("       Benchmarks doc-store-footprint <corpus file> [number of docs]");
+            System.out.println("       Benchmarks segmenter-agreement <corpus file> <language> [number of docs]");
+            System.out.println("       Benchmarks doc-map-build <corpus file> [number of docs]");
+            System.out.println("       Benchmarks cjk-tokenizer [document length in chars] [number of docs]");
+            System.out.println("       Benchmarks docid-set [number of docids]");
+            System.out.println("       Benchmarks galago-search <index> <query file> [requested] [rounds]");
+            System.out.println("       Benchmarks task-docs-search <language> <document list> <query file> [requested]");
+            System.exit(1);
+        }
+        switch (args[0]) {
+            case "corpus-reader":
+                corpusReader(args[1]);
+                break;
+            case "docid-filter":
+                docidFilter(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+                break;
+            case "doc-store-footprint":
+                docStoreFootprint(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 10000);
+                break;
+            case "segmenter-agreement":
+                segmenterAgreement(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 2000);
+                break;
+            case "doc-map-build":
+                docMapBuild(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 100000);
+                break;
+            case "cjk-tokenizer":
+                cjkTokenizer(args.length > 1 ? Integer.parseInt(args[1]) : 10000,
+                        args.length > 2 ? Integer.parseInt(args[2]) : 50);
+                break;
+            case "docid-set":
+                docidSet(args.length > 1 ? Integer.parseInt(args[1]) : 1000000);
+                break;
+            case "galago-search":
+                galagoSearch(args[1], args[2], args.length > 3 ? Integer.parseInt(args[3]) : 1000,
+                        args.length > 4 ? Integer.parseInt(args[4]) : 3);
+                break;
+            case "task-docs-search":
+                taskDocsSearch(args[1], args[2], args[3], args.length > 4 ? Integer.parseInt(args[4]) : 1000);
+                break;
+            default:
+                System.out.println("Unknown benchmark: " + args[0]);
+                System.exit(1);
+        }
+    }
+}
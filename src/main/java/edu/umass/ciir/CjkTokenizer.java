@@ -0,0 +1,122 @@
+package edu.umass.ciir;
+
+/**
+ * Splits Chinese (or other CJK) text into space-separated character n-grams, which is how we index and
+ * search Chinese, since Galago's tokenizer does not segment it into words.
+ * The text is taken a sentence at a time (sentences end with the Chinese full stop), ASCII punctuation and
+ * whitespace are dropped, and what is left is written out in one of these modes:
+ *   BIGRAM          overlapping character pairs: 中文句子 becomes "中文 文句 句子 "
+ *   UNIGRAM_BIGRAM  each character and the pair it starts: "中 中文 文 文句 句 句子 子 "
+ *   CHARACTER       each character on its own: "中 文 句 子 "
+ * BIGRAM mode gives exactly what GalagoSearchEngine.bigramIt() always has, including its handling of
+ * one- and two-character sentences, so existing indexes and queries still match.
+ * The work is done in one pass over the text into one StringBuilder, so it takes time in proportion to
+ * the length of the text, and characters are dropped as they are read, without any regular expressions.
+ * A CjkTokenizer has no state, so one can be shared by any number of threads.
+ */
+public class CjkTokenizer {
+    public enum Mode { BIGRAM, UNIGRAM_BIGRAM, CHARACTER }
+
+    private static final char SENTENCE_END = '。';
+
+    private final Mode mode;
+
+    public CjkTokenizer(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Tokenizes some text.
+     * @param text the text
+     * @return the tokens, each followed by a space
+     */
+    public String tokenize(String text) {
+        StringBuilder builder = new StringBuilder(text.length() * (mode == Mode.UNIGRAM_BIGRAM ? 5 : 3));
+        tokenize(text, builder);
+        return builder.toString();
+    }
+
+    /**
+     * Tokenizes some text, adding the tokens to a StringBuilder.
+     * @param text the text
+     * @param builder gets the tokens, each followed by a space
+     */
+    public void tokenize(CharSequence text, StringBuilder builder) {
+        /* Like String.split(), an empty text is one empty sentence, and empty sentences at the end are dropped */
+        if (text.length() == 0) {
+            builder.append(' ');
+            return;
+        }
+        int pendingEmptySentences = 0;
+        int start = 0;
+        while (start <= text.length()) {
+            int end = start;
+            while (end < text.length() && text.charAt(end) != SENTENCE_END) {
+                ++end;
+            }
+            if (end == start) {
+                ++pendingEmptySentences;
+            } else {
+                for (; pendingEmptySentences > 0; --pendingEmptySentences) {
+                    builder.append(' ');
+                }
+                tokenizeSentence(text, start, end, builder);
+            }
+            start = end + 1;
+        }
+    }
+
+    /* The same characters the old regular expressions, \p{Punct} and \s, removed */
+    private static boolean isDropped(char c) {
+        return (c >= '!' && c <= '/') || (c >= ':' && c <= '@') || (c >= '[' && c <= '`') || (c >= '{' && c <= '~')
+                || c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private void tokenizeSentence(CharSequence text, int start, int end, StringBuilder builder) {
+        int kept = 0;
+        char first = 0;
+        char previous = 0;
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if (isDropped(c)) {
+                continue;
+            }
+            ++kept;
+            switch (mode) {
+                case BIGRAM:
+                    /* A sentence of one or two characters is written as it is, without a space after it */
+                    if (kept == 1) {
+                        first = c;
+                    } else if (kept == 3) {
+                        builder.append(first).append(previous).append(' ');
+                        builder.append(previous).append(c).append(' ');
+                    } else if (kept > 3) {
+                        builder.append(previous).append(c).append(' ');
+                    }
+                    break;
+                case UNIGRAM_BIGRAM:
+                    if (kept > 1) {
+                        builder.append(previous).append(c).append(' ');
+                    }
+                    builder.append(c).append(' ');
+                    break;
+                case CHARACTER:
+                    builder.append(c).append(' ');
+                    break;
+            }
+            previous = c;
+        }
+        if (mode == Mode.BIGRAM) {
+            if (kept == 1) {
+                builder.append(first);
+            } else if (kept == 2) {
+                builder.append(first).append(previous);
+            }
+        }
+        builder.append(' ');
+    }
+}
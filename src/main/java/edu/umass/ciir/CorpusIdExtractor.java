@@ -0,0 +1,253 @@
+package edu.umass.ciir;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the docid in a corpus line without parsing the whole line.
+ * It walks the UTF-8 bytes of the JSON, stepping over values it does not need (like the document text)
+ * without building any objects for them, and stops as soon as it finds the docid.
+ * Both corpus layouts are supported: the old style, with a top-level "uuid" field, and the new style,
+ * with an "id" field inside the "derived-metadata" object. A line with a "derived-metadata" object is new-style,
+ * so its docid is the "id" in it even if the line has a "uuid" too; this is the docid the indexes are built
+ * with (see CorpusLineFields.getDocid()). Only a line without one has its "uuid" as its docid.
+ * If the line is not laid out the way we expect, we fall back to parsing the whole line.
+ */
+public class CorpusIdExtractor {
+    private static final byte[] UUID_KEY = "uuid".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DERIVED_METADATA_KEY = "derived-metadata".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ID_KEY = "id".getBytes(StandardCharsets.UTF_8);
+
+    private final ByteBuffer line;
+    private int pos;
+    private final int limit;
+
+    private CorpusIdExtractor(ByteBuffer line) {
+        this.line = line;
+        this.pos = line.position();
+        this.limit = line.limit();
+    }
+
+    /**
+     * Returns the docid of a corpus line.
+     * @param line the corpus line
+     * @return the docid
+     */
+    public static String getDocid(CorpusReader.Line line) {
+        String docid = new CorpusIdExtractor(line.getBytes()).findDocid();
+        if (docid == null) {
+            docid = getDocidByParsing(line.getText());
+        }
+        return docid;
+    }
+
+    /**
+     * Returns the docid of a corpus line, by parsing the whole line. This is the slow way.
+     * @param line the corpus line
+     * @return the docid
+     */
+    public static String getDocidByParsing(String line) {
+        JSONParser parser = new JSONParser();
+        JSONObject json;
+        try {
+            json = (JSONObject) parser.parse(line);
+        } catch (ParseException e) {
+            throw new TasksRunnerException(e);
+        }
+        if (json.containsKey("derived-metadata")) {
+            JSONObject derived_metadata = (JSONObject) json.get("derived-metadata");
+            return (String) derived_metadata.get("id");
+        } else {
+            // OLD STYLE
+            return (String) json.get("uuid");
+        }
+    }
+
+    /**
+     * Walks the top-level object looking for "derived-metadata" and the "id" inside it, or, if the line
+     * turns out to have no "derived-metadata", for "uuid".
+     * @return the docid, or null if it could not be found this way
+     */
+    private String findDocid() {
+        try {
+            skipWhitespace();
+            if (next() != '{') {
+                return null;
+            }
+            String uuid = null;
+            skipWhitespace();
+            if (peek() == '}') {
+                return null;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    return null;
+                }
+                int keyStart = pos + 1;
+                skipString();
+                int keyEnd = pos - 1;
+                skipWhitespace();
+                if (next() != ':') {
+                    return null;
+                }
+                skipWhitespace();
+                if (keyEquals(keyStart, keyEnd, DERIVED_METADATA_KEY)) {
+                    return findIdInObject();
+                } else if (keyEquals(keyStart, keyEnd, UUID_KEY)) {
+                    uuid = readString();
+                    if (uuid == null) {
+                        return null;
+                    }
+                } else {
+                    skipValue();
+                }
+                skipWhitespace();
+                byte b = next();
+                if (b == '}') {
+                    return uuid;
+                } else if (b != ',') {
+                    return null;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private String findIdInObject() {
+        if (next() != '{') {
+            return null;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                return null;
+            }
+            int keyStart = pos + 1;
+            skipString();
+            int keyEnd = pos - 1;
+            skipWhitespace();
+            if (next() != ':') {
+                return null;
+            }
+            skipWhitespace();
+            if (keyEquals(keyStart, keyEnd, ID_KEY)) {
+                return readString();
+            }
+            skipValue();
+            skipWhitespace();
+            if (next() != ',') {
+                return null;
+            }
+        }
+    }
+
+    private byte peek() {
+        if (pos >= limit) {
+            throw new IndexOutOfBoundsException();
+        }
+        return line.get(pos);
+    }
+
+    private byte next() {
+        byte b = peek();
+        ++pos;
+        return b;
+    }
+
+    private void skipWhitespace() {
+        while (pos < limit) {
+            byte b = line.get(pos);
+            if (b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                break;
+            }
+            ++pos;
+        }
+    }
+
+    private boolean keyEquals(int start, int end, byte[] key) {
+        if (end - start != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; ++i) {
+            if (line.get(start + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string value. Strings with escapes in them are left to the full parser.
+     * @return the string, or null if it is not a plain string
+     */
+    private String readString() {
+        if (next() != '"') {
+            return null;
+        }
+        int start = pos;
+        while (true) {
+            byte b = next();
+            if (b == '\\') {
+                return null;
+            } else if (b == '"') {
+                break;
+            }
+        }
+        byte[] bytes = new byte[pos - 1 - start];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = line.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* The quote and backslash characters never appear inside a multi-byte UTF-8 sequence,
+       so it is safe to look for them byte by byte. */
+    private void skipString() {
+        next();  // the opening quote
+        while (true) {
+            byte b = next();
+            if (b == '\\') {
+                next();
+            } else if (b == '"') {
+                return;
+            }
+        }
+    }
+
+    private void skipValue() {
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = peek();
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    ++depth;
+                } else if (b == '}' || b == ']') {
+                    --depth;
+                }
+                ++pos;
+            } while (depth > 0);
+        } else {
+            /* number, true, false or null */
+            while (pos < limit) {
+                b = line.get(pos);
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    break;
+                }
+                ++pos;
+            }
+        }
+    }
+}
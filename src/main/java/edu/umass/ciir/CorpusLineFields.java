@@ -0,0 +1,222 @@
+package edu.umass.ciir;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds where the fields of a corpus line are, without parsing them.
+ * One walk over the line records where the value of each top-level field starts and ends, and, for
+ * new-style lines, where the value of each field inside the "derived-metadata" object starts and ends.
+ * Values are only decoded (getString()) or parsed (parseValue()) when someone asks for them,
+ * so a caller that only wants the language does not pay for decoding the text or parsing the events.
+ * Fields are looked up in "derived-metadata" first, then at the top level, so the same names work
+ * for old-style lines (top-level "uuid", "text" and "translated-text") and new-style lines.
+ */
+public class CorpusLineFields {
+    private final String line;
+    private int pos;
+    /* The key is the field name, the value is {start, end} of the field's value in the line */
+    private final Map<String, int[]> topLevelFields = new HashMap<>();
+    private final Map<String, int[]> derivedMetadataFields = new HashMap<>();
+
+    /**
+     * Finds the fields of a corpus line.
+     * @param line the corpus line
+     * @throws TasksRunnerException if the line is not a JSON object
+     */
+    public CorpusLineFields(String line) {
+        this.line = line;
+        try {
+            walkObject(topLevelFields, true);
+        } catch (IndexOutOfBoundsException e) {
+            throw new TasksRunnerException("Corpus line is not valid JSON: " + abbreviate(line));
+        }
+    }
+
+    private static String abbreviate(String line) {
+        return line.length() > 100 ? line.substring(0, 100) + "..." : line;
+    }
+
+    private int[] find(String name) {
+        int[] range = derivedMetadataFields.get(name);
+        return range != null ? range : topLevelFields.get(name);
+    }
+
+    /**
+     * Tells whether the line is new-style, with its fields inside a "derived-metadata" object.
+     * @return true if the line has a derived-metadata object
+     */
+    public boolean isNewStyle() {
+        return topLevelFields.containsKey("derived-metadata");
+    }
+
+    public boolean has(String name) {
+        return find(name) != null;
+    }
+
+    /**
+     * Returns the docid: the "id" in derived-metadata if the line has a derived-metadata object (even if it
+     * has a top-level "uuid" too), otherwise the old-style top-level "uuid". This is the rule CorpusIdExtractor
+     * and the indexers follow too.
+     * @return the docid, or null if the line has no docid where it should be
+     */
+    public String getDocid() {
+        return isNewStyle() ? getString(derivedMetadataFields.get("id")) : getString(topLevelFields.get("uuid"));
+    }
+
+    /**
+     * Decodes a string field.
+     * @param name the field name
+     * @return the string, or null if there is no such field or it is JSON null
+     */
+    public String getString(String name) {
+        return getString(find(name));
+    }
+
+    private String getString(int[] range) {
+        if (range == null || line.charAt(range[0]) != '"') {
+            return null;
+        }
+        return unescape(range[0] + 1, range[1] - 1);
+    }
+
+    /**
+     * Parses a field's value, the way the rest of the program would if it had parsed the whole line.
+     * @param name the field name
+     * @return the parsed value (a JSONObject, JSONArray, String, Long, ...), or null if there is no such field
+     */
+    public Object parseValue(String name) {
+        int[] range = find(name);
+        if (range == null) {
+            return null;
+        }
+        try {
+            return new JSONParser().parse(line.substring(range[0], range[1]));
+        } catch (ParseException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    private String unescape(int start, int end) {
+        int backslash = line.indexOf('\\', start);
+        if (backslash == -1 || backslash >= end) {
+            return line.substring(start, end);
+        }
+        StringBuilder builder = new StringBuilder(end - start);
+        builder.append(line, start, backslash);
+        for (int i = backslash; i < end; ++i) {
+            char c = line.charAt(i);
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            c = line.charAt(++i);
+            switch (c) {
+                case 'n': builder.append('\n'); break;
+                case 't': builder.append('\t'); break;
+                case 'r': builder.append('\r'); break;
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'u':
+                    builder.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    /* quote, backslash and slash stand for themselves */
+                    builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private void walkObject(Map<String, int[]> fields, boolean topLevel) {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (line.charAt(pos) == '}') {
+            ++pos;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            int keyStart = pos;
+            skipString();
+            String key = unescape(keyStart + 1, pos - 1);
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            int valueStart = pos;
+            if (topLevel && key.equals("derived-metadata") && line.charAt(pos) == '{') {
+                walkObject(derivedMetadataFields, false);
+            } else {
+                skipValue();
+            }
+            fields.put(key, new int[] {valueStart, pos});
+            skipWhitespace();
+            char c = line.charAt(pos++);
+            if (c == '}') {
+                return;
+            } else if (c != ',') {
+                throw new TasksRunnerException("Corpus line is not valid JSON: " + abbreviate(line));
+            }
+        }
+    }
+
+    private void expect(char c) {
+        if (line.charAt(pos++) != c) {
+            throw new TasksRunnerException("Corpus line is not valid JSON: " + abbreviate(line));
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < line.length() && Character.isWhitespace(line.charAt(pos))) {
+            ++pos;
+        }
+    }
+
+    private void skipString() {
+        expect('"');
+        while (true) {
+            char c = line.charAt(pos++);
+            if (c == '\\') {
+                ++pos;
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+
+    private void skipValue() {
+        char c = line.charAt(pos);
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = line.charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') {
+                    ++depth;
+                } else if (c == '}' || c == ']') {
+                    --depth;
+                }
+                ++pos;
+            } while (depth > 0);
+        } else {
+            /* number, true, false or null */
+            while (pos < line.length()) {
+                c = line.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                    break;
+                }
+                ++pos;
+            }
+        }
+    }
+}
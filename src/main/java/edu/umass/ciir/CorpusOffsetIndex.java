@@ -0,0 +1,218 @@
+package edu.umass.ciir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * A persistent index from docid to the byte offset and length of that document's line in a
+ * JSONL corpus file, so that individual documents can be fetched with positioned reads instead of
+ * scanning the whole corpus.
+ * The index is stored next to the corpus file (or in the index directory if the corpus directory
+ * is read-only), and it records the size and modification time of the corpus file it was built from,
+ * so a stale index is rebuilt automatically.
+ */
+public class CorpusOffsetIndex {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private static final int MAGIC = 0x434f4958;  // "COIX"
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The key is the corpus file name, the value is the offset index for that corpus
+     */
+    private static final Map<String, CorpusOffsetIndex> indexMap = new ConcurrentHashMap<>();
+
+    private final String corpus;
+    /* Parallel arrays, sorted by docid */
+    private String[] docids;
+    private long[] offsets;
+    private int[] lengths;
+
+    private CorpusOffsetIndex(String corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * Returns the offset index for the given corpus file, loading it from disk, or building it
+     * if it does not exist yet or is out of date.
+     * @param corpus the full pathname of the corpus file
+     * @return the offset index
+     */
+    public static CorpusOffsetIndex get(String corpus) {
+        return indexMap.computeIfAbsent(corpus, c -> {
+            CorpusOffsetIndex index = new CorpusOffsetIndex(c);
+            if (!index.load()) {
+                index.build();
+                index.save();
+            }
+            return index;
+        });
+    }
+
+    private static String getIndexFileName(String corpus) {
+        return corpus + ".offsets";
+    }
+
+    private static String getFallbackIndexFileName(String corpus) {
+        return Pathnames.indexLocation + Paths.get(corpus).getFileName().toString() + ".offsets";
+    }
+
+    public int size() {
+        return docids.length;
+    }
+
+    public boolean contains(String docid) {
+        return Arrays.binarySearch(docids, docid) >= 0;
+    }
+
+    /**
+     * Reads the corpus lines for the given docids with positioned reads, passing each one to the action.
+     * The reads are done in parallel, so the action must be thread-safe.
+     * Docids that are not in the corpus are ignored; the caller is responsible for noticing they are missing.
+     * @param wantedDocids the docids to fetch
+     * @param action what to do with each corpus line
+     */
+    public void forEachLine(Collection<String> wantedDocids, Consumer<String> action) {
+        List<Integer> entries = new ArrayList<>();
+        for (String docid : wantedDocids) {
+            int i = Arrays.binarySearch(docids, docid);
+            if (i >= 0) {
+                entries.add(i);
+            }
+        }
+        /* Read in file order, to be kind to the disk */
+        entries.sort(Comparator.comparingLong(i -> offsets[i]));
+        try (FileChannel channel = FileChannel.open(Paths.get(corpus), StandardOpenOption.READ)) {
+            entries.parallelStream().forEach(i -> action.accept(readLine(channel, offsets[i], lengths[i])));
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    private static String readLine(FileChannel channel, long offset, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new TasksRunnerException("Unexpected end of corpus file at offset " + offset);
+                }
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        return new String(buffer.array(), 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Scans the corpus file once, recording where each document's line starts and how long it is.
+     * If there are duplicate docs in the corpus, we keep the last one in the file, like Document does.
+     */
+    private void build() {
+        logger.info("Building corpus offset index for " + corpus);
+        Instant start = Instant.now();
+        Map<String, long[]> entryMap = new ConcurrentHashMap<>();
+        new CorpusReader(corpus).forEachLine(line ->
+                entryMap.merge(CorpusIdExtractor.getDocid(line), new long[] {line.getOffset(), line.getLength()},
+                        (a, b) -> a[0] > b[0] ? a : b));
+        setEntries(entryMap);
+        logger.info("Corpus offset index built for " + docids.length + " docs in "
+                + Duration.between(start, Instant.now()).getSeconds() + " seconds");
+    }
+
+    private void setEntries(Map<String, long[]> entryMap) {
+        docids = entryMap.keySet().toArray(new String[0]);
+        Arrays.sort(docids);
+        offsets = new long[docids.length];
+        lengths = new int[docids.length];
+        for (int i = 0; i < docids.length; ++i) {
+            long[] entry = entryMap.get(docids[i]);
+            offsets[i] = entry[0];
+            lengths[i] = (int) entry[1];
+        }
+    }
+
+    /**
+     * Loads the index from disk, if there is one that matches the current corpus file.
+     * @return true if a usable index was loaded
+     */
+    private boolean load() {
+        for (String fileName : Arrays.asList(getIndexFileName(corpus), getFallbackIndexFileName(corpus))) {
+            File f = new File(fileName);
+            if (!f.exists()) {
+                continue;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    logger.info("Ignoring corpus offset index " + fileName + " with an unknown format");
+                    continue;
+                }
+                File corpusFile = new File(corpus);
+                if (in.readLong() != corpusFile.length() || in.readLong() != corpusFile.lastModified()) {
+                    logger.info("Corpus offset index " + fileName + " is out of date");
+                    continue;
+                }
+                int count = in.readInt();
+                docids = new String[count];
+                offsets = new long[count];
+                lengths = new int[count];
+                for (int i = 0; i < count; ++i) {
+                    docids[i] = in.readUTF();
+                    offsets[i] = in.readLong();
+                    lengths[i] = in.readInt();
+                }
+                logger.info("Loaded corpus offset index " + fileName + " with " + count + " docs");
+                return true;
+            } catch (IOException e) {
+                logger.info("Could not read corpus offset index " + fileName + ": " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the index next to the corpus file. If that directory is not writable (the corpus is
+     * often mounted read-only), the index is written to the index directory instead.
+     */
+    private void save() {
+        for (String fileName : Arrays.asList(getIndexFileName(corpus), getFallbackIndexFileName(corpus))) {
+            Path target = Paths.get(fileName);
+            Path temp = Paths.get(fileName + ".tmp");
+            try {
+                File corpusFile = new File(corpus);
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(temp.toFile())))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeLong(corpusFile.length());
+                    out.writeLong(corpusFile.lastModified());
+                    out.writeInt(docids.length);
+                    for (int i = 0; i < docids.length; ++i) {
+                        out.writeUTF(docids[i]);
+                        out.writeLong(offsets[i]);
+                        out.writeInt(lengths[i]);
+                    }
+                }
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                logger.info("Saved corpus offset index to " + fileName);
+                return;
+            } catch (IOException e) {
+                logger.info("Could not write corpus offset index to " + fileName + ": " + e.getMessage());
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignore) {
+                    // do nothing
+                }
+            }
+        }
+        logger.info("Corpus offset index could not be saved, it will be rebuilt next run");
+    }
+}
@@ -0,0 +1,184 @@
+package edu.umass.ciir;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Splits a corpus file into consecutive parts of a fixed number of lines, reading the file once, front to back.
+ * After each part is finished with, checkpoint() records in a checkpoint file where the next part starts
+ * (its byte offset in the corpus file and its part number), so a later run picks up at the first part
+ * that was not finished, seeking straight to it instead of reading the corpus up to it.
+ * A part that fails is not checkpointed, so the next run tries it again; a part that keeps failing can be
+ * skipped by checkpointing past it without handing it to anyone.
+ * The checkpoint records the corpus file's size and modification time and the part size, and is ignored
+ * if any of them has changed, since the byte offsets and part numbers would not mean the same thing.
+ */
+public class CorpusPartitioner implements Iterator<CorpusPartitioner.Part> {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    /**
+     * A part of the corpus: some consecutive lines, and where they start and end in the corpus file.
+     */
+    public static class Part {
+        private final int number;
+        private final long startOffset;
+        private final long endOffset;
+        private final List<CorpusReader.Line> lines;
+
+        Part(int number, long startOffset, long endOffset, List<CorpusReader.Line> lines) {
+            this.number = number;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.lines = lines;
+        }
+
+        /**
+         * @return the part number, counting from 1
+         */
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * @return the byte offset of the part's first line in the corpus file
+         */
+        public long getStartOffset() {
+            return startOffset;
+        }
+
+        /**
+         * @return the byte offset of the next part's first line, or the size of the corpus file for the last part
+         */
+        public long getEndOffset() {
+            return endOffset;
+        }
+
+        public int size() {
+            return lines.size();
+        }
+
+        /**
+         * Decodes the part's lines. Each part's lines are views into the mapped corpus file, and are only
+         * decoded if the part is used, so skipping a part costs no more than reading past it.
+         * @return the text of each line, in corpus order
+         */
+        public List<String> getLines() {
+            return lines.stream().map(CorpusReader.Line::getText).collect(Collectors.toList());
+        }
+    }
+
+    private final String corpus;
+    private final String checkpointFile;
+    private final int linesPerPart;
+    private final Iterator<CorpusReader.Line> lines;
+    /* Read one line ahead, so each part knows where the next one starts */
+    private CorpusReader.Line nextLine;
+    private int nextPart;
+
+    /**
+     * Starts partitioning a corpus file, at the part after the last one checkpointed, if there is a
+     * usable checkpoint, or at part 1.
+     * @param corpus the corpus file
+     * @param linesPerPart the number of lines in each part (the last part may have fewer)
+     * @param checkpointFile the file to keep the checkpoint in
+     */
+    public CorpusPartitioner(String corpus, int linesPerPart, String checkpointFile) {
+        this.corpus = corpus;
+        this.linesPerPart = linesPerPart;
+        this.checkpointFile = checkpointFile;
+        long startOffset = 0;
+        nextPart = 1;
+        JSONObject checkpoint = readCheckpoint();
+        if (checkpoint != null) {
+            startOffset = (long) checkpoint.get("offset");
+            nextPart = (int) (long) checkpoint.get("part");
+            logger.info("Resuming " + corpus + " at part " + nextPart + ", byte offset " + startOffset);
+        }
+        lines = new CorpusReader(corpus).iterator(startOffset);
+        nextLine = lines.hasNext() ? lines.next() : null;
+    }
+
+    private JSONObject readCheckpoint() {
+        File file = new File(checkpointFile);
+        if (!file.exists()) {
+            return null;
+        }
+        JSONObject checkpoint;
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            checkpoint = (JSONObject) new JSONParser().parse(reader);
+        } catch (IOException | ParseException e) {
+            logger.warning("Unreadable corpus part checkpoint " + checkpointFile + ": " + e.getMessage());
+            return null;
+        }
+        File corpusFile = new File(corpus);
+        if (!corpus.equals(checkpoint.get("corpus"))
+                || (long) checkpoint.get("corpusBytes") != corpusFile.length()
+                || (long) checkpoint.get("corpusLastModified") != corpusFile.lastModified()
+                || (long) checkpoint.get("linesPerPart") != linesPerPart) {
+            logger.info("Corpus part checkpoint " + checkpointFile + " is for a different corpus or part size,"
+                    + " starting from part 1");
+            return null;
+        }
+        return checkpoint;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextLine != null;
+    }
+
+    /**
+     * Reads the next part from the corpus.
+     * @return the next part
+     */
+    @Override
+    public Part next() {
+        if (nextLine == null) {
+            throw new NoSuchElementException();
+        }
+        List<CorpusReader.Line> partLines = new ArrayList<>(linesPerPart);
+        long startOffset = nextLine.getOffset();
+        while (nextLine != null && partLines.size() < linesPerPart) {
+            partLines.add(nextLine);
+            nextLine = lines.hasNext() ? lines.next() : null;
+        }
+        long endOffset = nextLine != null ? nextLine.getOffset() : new File(corpus).length();
+        return new Part(nextPart++, startOffset, endOffset, partLines);
+    }
+
+    /**
+     * Records that a part is finished with, so a later run starts at the part after it.
+     * The checkpoint is written to a temporary file and moved into place, so it is never left half-written.
+     * @param part the part that is finished with
+     */
+    public void checkpoint(Part part) {
+        File corpusFile = new File(corpus);
+        JSONObject checkpoint = new JSONObject();
+        checkpoint.put("corpus", corpus);
+        checkpoint.put("corpusBytes", corpusFile.length());
+        checkpoint.put("corpusLastModified", corpusFile.lastModified());
+        checkpoint.put("linesPerPart", (long) linesPerPart);
+        checkpoint.put("part", (long) part.getNumber() + 1);
+        checkpoint.put("offset", part.getEndOffset());
+        Path tempFile = Paths.get(checkpointFile + ".tmp");
+        try {
+            Files.write(tempFile, checkpoint.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, Paths.get(checkpointFile), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package edu.umass.ciir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Reads a JSONL corpus file by memory-mapping it in segments of up to 2 GB, split on newline boundaries.
+ * Each line is handed out as a byte range; the text of the line is only decoded if someone asks for it.
+ * forEachLine() splits every segment into chunks and processes the chunks on worker threads;
+ * iterator() walks the lines in file order on the calling thread.
+ */
+public class CorpusReader implements Iterable<CorpusReader.Line> {
+    private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+    private static final int CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final String corpus;
+
+    public CorpusReader(String corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * One line of the corpus file. The bytes are a view into the mapped file, so a Line should not be
+     * held onto after the action it was passed to returns, unless its text has been decoded.
+     */
+    public static class Line {
+        private final ByteBuffer bytes;
+        private final long offset;
+        private String text = null;
+
+        Line(ByteBuffer bytes, long offset) {
+            this.bytes = bytes;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the byte offset of the start of this line in the corpus file
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return the length of this line in bytes, not counting the line terminator
+         */
+        public int getLength() {
+            return bytes.remaining();
+        }
+
+        /**
+         * @return a read-only view of the UTF-8 bytes of this line
+         */
+        public ByteBuffer getBytes() {
+            return bytes.asReadOnlyBuffer();
+        }
+
+        /**
+         * @return the line decoded from UTF-8, decoded the first time it is asked for
+         */
+        public String getText() {
+            if (text == null) {
+                text = StandardCharsets.UTF_8.decode(bytes.duplicate()).toString();
+            }
+            return text;
+        }
+    }
+
+    /**
+     * A newline-aligned byte range of one mapped segment.
+     */
+    private static class Chunk {
+        final MappedByteBuffer segment;
+        final long segmentOffset;
+        final int start;
+        final int end;
+
+        Chunk(MappedByteBuffer segment, long segmentOffset, int start, int end) {
+            this.segment = segment;
+            this.segmentOffset = segmentOffset;
+            this.start = start;
+            this.end = end;
+        }
+
+        void forEachLine(Consumer<Line> action) {
+            int lineStart = start;
+            for (int i = start; i < end; ++i) {
+                if (segment.get(i) == '\n') {
+                    emit(lineStart, i, action);
+                    lineStart = i + 1;
+                }
+            }
+            emit(lineStart, end, action);
+        }
+
+        private void emit(int lineStart, int lineEnd, Consumer<Line> action) {
+            if (lineEnd > lineStart && segment.get(lineEnd - 1) == '\r') {
+                --lineEnd;
+            }
+            if (lineEnd > lineStart) {
+                ByteBuffer bytes = segment.duplicate();
+                bytes.limit(lineEnd).position(lineStart);
+                action.accept(new Line(bytes.slice(), segmentOffset + lineStart));
+            }
+        }
+    }
+
+    /**
+     * Maps the next segment of the file, starting at segmentOffset and ending just after the last
+     * newline that fits in MAX_SEGMENT_SIZE bytes (or at the end of the file).
+     */
+    private static MappedByteBuffer mapSegment(FileChannel channel, long segmentOffset, long fileSize)
+            throws IOException {
+        long length = Math.min(MAX_SEGMENT_SIZE, fileSize - segmentOffset);
+        MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentOffset, length);
+        if (segmentOffset + length < fileSize) {
+            int end = (int) length;
+            while (end > 0 && segment.get(end - 1) != '\n') {
+                --end;
+            }
+            if (end == 0) {
+                throw new TasksRunnerException("Corpus line longer than " + MAX_SEGMENT_SIZE + " bytes at offset "
+                        + segmentOffset);
+            }
+            segment.limit(end);
+        }
+        return segment;
+    }
+
+    /**
+     * Splits a mapped segment into chunks of about CHUNK_SIZE bytes, each ending just after a newline.
+     */
+    private static List<Chunk> splitSegment(MappedByteBuffer segment, long segmentOffset, int startPosition) {
+        List<Chunk> chunks = new ArrayList<>();
+        int limit = segment.limit();
+        int start = startPosition;
+        while (start < limit) {
+            int end = (int) Math.min((long) start + CHUNK_SIZE, limit);
+            while (end < limit && segment.get(end - 1) != '\n') {
+                ++end;
+            }
+            chunks.add(new Chunk(segment, segmentOffset, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Maps the whole file (starting at startOffset) and splits it into chunks, in file order.
+     */
+    private List<Chunk> getChunks(long startOffset) {
+        List<Chunk> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(Paths.get(corpus), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long segmentOffset = startOffset;
+            while (segmentOffset < fileSize) {
+                MappedByteBuffer segment = mapSegment(channel, segmentOffset, fileSize);
+                chunks.addAll(splitSegment(segment, segmentOffset, 0));
+                segmentOffset += segment.limit();
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        return chunks;
+    }
+
+    /**
+     * Passes every non-empty line of the corpus to the action, using worker threads.
+     * The lines are NOT passed in file order, and the action must be thread-safe.
+     * @param action what to do with each line
+     */
+    public void forEachLine(Consumer<Line> action) {
+        getChunks(0).parallelStream().forEach(chunk -> chunk.forEachLine(action));
+    }
+
+    /**
+     * Passes every non-empty line of the corpus to the action, in file order, on the calling thread.
+     * @param action what to do with each line
+     */
+    public void forEachLineInOrder(Consumer<Line> action) {
+        for (Chunk chunk : getChunks(0)) {
+            chunk.forEachLine(action);
+        }
+    }
+
+    /**
+     * Iterates the non-empty lines of the corpus in file order.
+     */
+    @Override
+    public Iterator<Line> iterator() {
+        return iterator(0);
+    }
+
+    /**
+     * Iterates the non-empty lines of the corpus in file order, starting at the given byte offset,
+     * which must be the start of a line.
+     * @param startOffset the byte offset to start at
+     * @return an iterator over the lines
+     */
+    public Iterator<Line> iterator(long startOffset) {
+        Iterator<Chunk> chunks = getChunks(startOffset).iterator();
+        return new Iterator<Line>() {
+            private final Deque<Line> pending = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (pending.isEmpty() && chunks.hasNext()) {
+                    chunks.next().forEachLine(pending::add);
+                }
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public Line next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return pending.removeFirst();
+            }
+        };
+    }
+}
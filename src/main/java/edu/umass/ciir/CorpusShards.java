@@ -0,0 +1,422 @@
+package edu.umass.ciir;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * A corpus file split into shards of about the same size, so the corpus can be read by several threads
+ * (or processes) at once, one shard each. The shards are consecutive pieces of the corpus, in order,
+ * so reading the shards one after another gives the same lines in the same order as reading the corpus.
+ * The shards are written to a directory named after the corpus file, under Pathnames.corpusShardLocation,
+ * along with a manifest.json that lists, for each shard, its file, its size, its number of documents,
+ * the number of documents in each language and its SHA-256 checksum. The manifest also records the size
+ * and modification time of the corpus file, so shards of an older version of the corpus are not used.
+ * To shard a corpus ahead of time:
+ *   java -cp tasks-runner-6.0.0.jar edu.umass.ciir.CorpusShards /corpus/corpus.jl 16
+ * or set the corpusShards env var, and the target corpus is sharded during the index build.
+ */
+public class CorpusShards {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private static final String MANIFEST_FILE_NAME = "manifest.json";
+    /* Lines are parsed for their language in parallel, this many at a time */
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * One shard of the corpus.
+     */
+    public static class Shard {
+        private final String file;
+        private final long bytes;
+        private final long docs;
+        private final long firstDoc;
+        private final Map<String, Long> languages;
+        private final String sha256;
+
+        Shard(String file, long bytes, long docs, long firstDoc, Map<String, Long> languages, String sha256) {
+            this.file = file;
+            this.bytes = bytes;
+            this.docs = docs;
+            this.firstDoc = firstDoc;
+            this.languages = languages;
+            this.sha256 = sha256;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getDocs() {
+            return docs;
+        }
+
+        /**
+         * Returns the line number in the whole corpus (counting from 0) of this shard's first document.
+         * @return the line number of the first document
+         */
+        public long getFirstDoc() {
+            return firstDoc;
+        }
+
+        public Map<String, Long> getLanguages() {
+            return languages;
+        }
+
+        public String getSha256() {
+            return sha256;
+        }
+    }
+
+    private final String corpus;
+    private final List<Shard> shards;
+
+    private CorpusShards(String corpus, List<Shard> shards) {
+        this.corpus = corpus;
+        this.shards = shards;
+    }
+
+    private static String getShardDirectory(String corpus) {
+        return Pathnames.corpusShardLocation + Paths.get(corpus).getFileName().toString() + "/";
+    }
+
+    public String getCorpus() {
+        return corpus;
+    }
+
+    public List<Shard> getShards() {
+        return shards;
+    }
+
+    public long getDocs() {
+        return shards.stream().mapToLong(Shard::getDocs).sum();
+    }
+
+    /**
+     * Returns the shards of a corpus file, if it has been sharded and the shards are up to date.
+     * @param corpus the full pathname of the corpus file
+     * @return the shards, or null if there are no usable shards for this corpus
+     */
+    public static CorpusShards get(String corpus) {
+        File manifestFile = new File(getShardDirectory(corpus) + MANIFEST_FILE_NAME);
+        if (!manifestFile.exists()) {
+            return null;
+        }
+        JSONObject manifest;
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile),
+                StandardCharsets.UTF_8))) {
+            manifest = (JSONObject) new JSONParser().parse(reader);
+        } catch (IOException | ParseException e) {
+            logger.warning("Unreadable corpus shard manifest " + manifestFile + ": " + e.getMessage());
+            return null;
+        }
+        File corpusFile = new File(corpus);
+        if ((long) manifest.get("corpusBytes") != corpusFile.length()
+                || (long) manifest.get("corpusLastModified") != corpusFile.lastModified()) {
+            logger.info("Corpus shards in " + getShardDirectory(corpus) + " are out of date");
+            return null;
+        }
+        List<Shard> shards = new ArrayList<>();
+        for (Object oShard : (JSONArray) manifest.get("shards")) {
+            JSONObject jsonShard = (JSONObject) oShard;
+            String file = getShardDirectory(corpus) + jsonShard.get("file");
+            long bytes = (long) jsonShard.get("bytes");
+            if (new File(file).length() != bytes) {
+                logger.info("Corpus shard " + file + " is missing or the wrong size");
+                return null;
+            }
+            Map<String, Long> languages = new TreeMap<>();
+            for (Object oEntry : ((JSONObject) jsonShard.get("languages")).entrySet()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>) oEntry;
+                languages.put((String) entry.getKey(), (Long) entry.getValue());
+            }
+            shards.add(new Shard(file, bytes, (long) jsonShard.get("docs"), (long) jsonShard.get("firstDoc"),
+                    languages, (String) jsonShard.get("sha256")));
+        }
+        return new CorpusShards(corpus, shards);
+    }
+
+    /**
+     * Returns the pieces to read to get all of a corpus: its shards if it has usable ones, otherwise one
+     * piece that is the whole corpus file (with no language histogram or checksum, and -1 docs, since
+     * they are not known).
+     * @param corpus the full pathname of the corpus file
+     * @return the pieces, in corpus order
+     */
+    public static List<Shard> getShardsOrCorpus(String corpus) {
+        CorpusShards corpusShards = get(corpus);
+        if (corpusShards == null) {
+            return Collections.singletonList(new Shard(corpus, new File(corpus).length(), -1, 0,
+                    Collections.emptyMap(), ""));
+        }
+        return corpusShards.getShards();
+    }
+
+    /**
+     * Returns the files to read to get all of a corpus: its shards if it has usable ones,
+     * otherwise the corpus file itself.
+     * @param corpus the full pathname of the corpus file
+     * @return the files, in corpus order
+     */
+    public static List<String> getFiles(String corpus) {
+        return getShardsOrCorpus(corpus).stream().map(Shard::getFile).collect(Collectors.toList());
+    }
+
+    /**
+     * Returns an iterator over the corpus's lines, in corpus order, starting at the given line number.
+     * If the corpus has been sharded, the shards before the one that line is in are skipped without being read.
+     * @param corpus the full pathname of the corpus file
+     * @param startDoc the line number (counting from 0) of the first line to return
+     * @return the iterator
+     */
+    public static Iterator<CorpusReader.Line> iterator(String corpus, long startDoc) {
+        List<String> files = Collections.singletonList(corpus);
+        long skip = startDoc;
+        CorpusShards corpusShards = get(corpus);
+        if (corpusShards != null) {
+            files = new ArrayList<>();
+            for (Shard shard : corpusShards.getShards()) {
+                if (shard.getFirstDoc() + shard.getDocs() > startDoc) {
+                    if (files.isEmpty()) {
+                        skip = startDoc - shard.getFirstDoc();
+                    }
+                    files.add(shard.getFile());
+                }
+            }
+        }
+        Iterator<String> fileIterator = files.iterator();
+        long toSkip = skip;
+        return new Iterator<CorpusReader.Line>() {
+            private Iterator<CorpusReader.Line> lines = Collections.emptyIterator();
+            private long skipped = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (true) {
+                    while (!lines.hasNext() && fileIterator.hasNext()) {
+                        lines = new CorpusReader(fileIterator.next()).iterator();
+                    }
+                    if (!lines.hasNext()) {
+                        return false;
+                    }
+                    if (skipped >= toSkip) {
+                        return true;
+                    }
+                    lines.next();
+                    ++skipped;
+                }
+            }
+
+            @Override
+            public CorpusReader.Line next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return lines.next();
+            }
+        };
+    }
+
+    private static String getLanguage(CorpusReader.Line line) {
+        try {
+            JSONObject json = (JSONObject) new JSONParser().parse(line.getText());
+            JSONObject fields = json.containsKey("derived-metadata") ? (JSONObject) json.get("derived-metadata")
+                    : json;
+            String language = (String) fields.get("language");
+            if (language == null) {
+                return "unknown";
+            }
+            try {
+                return SearchEngineInterface.toCanonicalForm(language);
+            } catch (TasksRunnerException e) {
+                return language.toLowerCase(Locale.ROOT);
+            }
+        } catch (ParseException | ClassCastException e) {
+            return "unparseable";
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Splits a corpus file into shards of about the same size, and writes their manifest.
+     * Any shards from an earlier split of the same corpus are replaced.
+     * @param corpus the full pathname of the corpus file
+     * @param numShards how many shards to split it into
+     * @return the new shards
+     */
+    public static CorpusShards shardCorpus(String corpus, int numShards) {
+        Instant start = Instant.now();
+        File corpusFile = new File(corpus);
+        long corpusBytes = corpusFile.length();
+        long corpusLastModified = corpusFile.lastModified();
+        long targetShardBytes = Math.max(1, (corpusBytes + numShards - 1) / numShards);
+        String directory = getShardDirectory(corpus);
+        logger.info("Splitting " + corpus + " into " + numShards + " shards in " + directory);
+        try {
+            Files.createDirectories(Paths.get(directory));
+            Files.deleteIfExists(Paths.get(directory + MANIFEST_FILE_NAME));
+            try (DirectoryStream<Path> oldShards = Files.newDirectoryStream(Paths.get(directory), "shard-*.jl")) {
+                for (Path oldShard : oldShards) {
+                    Files.delete(oldShard);
+                }
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+
+        List<Shard> shards = new ArrayList<>();
+        Iterator<CorpusReader.Line> lines = new CorpusReader(corpus).iterator();
+        long doc = 0;
+        try {
+            while (lines.hasNext()) {
+                String fileName = String.format("shard-%04d.jl", shards.size());
+                boolean lastShard = (shards.size() == numShards - 1);
+                MessageDigest digest = newDigest();
+                Map<String, Long> languages = new TreeMap<>();
+                long firstDoc = doc;
+                long bytes = 0;
+                try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(directory + fileName), 1 << 20), digest)) {
+                    while (lines.hasNext() && (lastShard || bytes < targetShardBytes)) {
+                        List<CorpusReader.Line> batch = new ArrayList<>(BATCH_SIZE);
+                        /* Decode the text now, since the line's bytes are not ours to keep */
+                        while (batch.size() < BATCH_SIZE && lines.hasNext()
+                                && (lastShard || bytes < targetShardBytes)) {
+                            CorpusReader.Line line = lines.next();
+                            line.getText();
+                            batch.add(line);
+                            bytes += line.getLength() + 1;
+                        }
+                        List<String> batchLanguages = batch.parallelStream().map(CorpusShards::getLanguage)
+                                .collect(Collectors.toList());
+                        for (int i = 0; i < batch.size(); ++i) {
+                            out.write(batch.get(i).getText().getBytes(StandardCharsets.UTF_8));
+                            out.write('\n');
+                            languages.merge(batchLanguages.get(i), 1L, Long::sum);
+                        }
+                        doc += batch.size();
+                    }
+                }
+                long shardBytes = new File(directory + fileName).length();
+                shards.add(new Shard(directory + fileName, shardBytes, doc - firstDoc, firstDoc, languages,
+                        toHex(digest.digest())));
+                logger.info("Wrote corpus shard " + fileName + ": " + (doc - firstDoc) + " docs, " + shardBytes
+                        + " bytes");
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("corpus", corpus);
+        manifest.put("corpusBytes", corpusBytes);
+        manifest.put("corpusLastModified", corpusLastModified);
+        manifest.put("docs", doc);
+        JSONArray jsonShards = new JSONArray();
+        for (Shard shard : shards) {
+            JSONObject jsonShard = new JSONObject();
+            jsonShard.put("file", Paths.get(shard.getFile()).getFileName().toString());
+            jsonShard.put("bytes", shard.getBytes());
+            jsonShard.put("docs", shard.getDocs());
+            jsonShard.put("firstDoc", shard.getFirstDoc());
+            JSONObject jsonLanguages = new JSONObject();
+            jsonLanguages.putAll(shard.getLanguages());
+            jsonShard.put("languages", jsonLanguages);
+            jsonShard.put("sha256", shard.getSha256());
+            jsonShards.add(jsonShard);
+        }
+        manifest.put("shards", jsonShards);
+        /* The manifest is written last, and atomically, so a partial split is never mistaken for a good one */
+        Path tempManifest = Paths.get(directory + MANIFEST_FILE_NAME + ".tmp");
+        try {
+            Files.write(tempManifest, manifest.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempManifest, Paths.get(directory + MANIFEST_FILE_NAME), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        logger.info("Corpus split into " + shards.size() + " shards, " + doc + " docs, in "
+                + Duration.between(start, Instant.now()).getSeconds() + " seconds");
+        return new CorpusShards(corpus, shards);
+    }
+
+    /**
+     * Recomputes the checksum of every shard and compares it to the one in the manifest.
+     * @return the shards whose checksums do not match (an empty list if all is well)
+     */
+    public List<Shard> verify() {
+        return shards.parallelStream().filter(shard -> {
+            MessageDigest digest = newDigest();
+            try (InputStream in = new DigestInputStream(new BufferedInputStream(new FileInputStream(shard.getFile()),
+                    1 << 20), digest)) {
+                byte[] buffer = new byte[1 << 16];
+                while (in.read(buffer) != -1) {
+                    // just reading it updates the digest
+                }
+            } catch (IOException e) {
+                throw new TasksRunnerException(e);
+            }
+            return !toHex(digest.digest()).equals(shard.getSha256());
+        }).collect(Collectors.toList());
+    }
+
+    /**
+     * Splits a corpus file into shards, or with --verify, checks the checksums of its existing shards.
+     * Needs the usual environment vars, since the shard location comes from Pathnames.
+     * @param args the corpus file, then the number of shards or --verify
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: CorpusShards <corpus file> <number of shards>");
+            System.out.println("       CorpusShards <corpus file> --verify");
+            System.exit(1);
+        }
+        if (args[1].equals("--verify")) {
+            CorpusShards corpusShards = get(args[0]);
+            if (corpusShards == null) {
+                System.out.println("No up-to-date shards for " + args[0]);
+                System.exit(1);
+            }
+            List<Shard> bad = corpusShards.verify();
+            for (Shard shard : bad) {
+                System.out.println("Checksum mismatch: " + shard.getFile());
+            }
+            System.out.println(corpusShards.getShards().size() + " shards, " + bad.size() + " bad");
+            System.exit(bad.isEmpty() ? 0 : 1);
+        }
+        shardCorpus(args[0], Integer.parseInt(args[1]));
+    }
+}
@@ -0,0 +1,257 @@
+package edu.umass.ciir;
+
+import java.util.*;
+
+/**
+ * A set of docids that takes a fraction of the memory of a HashSet of Strings, for the index preprocessors,
+ * which have to remember every docid in the corpus to drop duplicates.
+ * Docids that are UUIDs in the usual form (36 characters, lower-case hex digits and dashes) are kept as their
+ * 128 bits, two longs, in an open-addressing table with linear probing: 16 bytes a docid, and at most 70%
+ * full, against about 120 bytes for the String, its byte array, the HashMap node and the table slot.
+ * Any other docid is kept as a String, in an ordinary HashSet, so the set is exact for any docid.
+ * The set is safe to add to and test from several threads; iterating over it while it is being added to is not.
+ */
+public class DocidSet extends AbstractSet<String> {
+    private static final int MIN_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.7;
+    /* Rough sizes of one String in a HashSet with compressed oops: the HashMap node, the table slot at
+       a load of 0.75, the String and its byte array's header; the characters are added on */
+    private static final long HASH_SET_ENTRY_BYTES = 32 + 11 + 24 + 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /* The UUIDs, two longs each, the high bits first. The all-zero UUID marks an empty slot,
+       so that UUID itself is kept in a flag */
+    private long[] table = new long[2 * MIN_CAPACITY];
+    private int uuids = 0;
+    private boolean hasZeroUuid = false;
+    private final Set<String> others = new HashSet<>();
+    private long otherChars = 0;
+    private long parsedHigh;
+    private long parsedLow;
+
+    public DocidSet() {
+    }
+
+    /**
+     * Makes a copy of another DocidSet.
+     * @param other the set to copy
+     */
+    public DocidSet(DocidSet other) {
+        synchronized (other) {
+            table = other.table.clone();
+            uuids = other.uuids;
+            hasZeroUuid = other.hasZeroUuid;
+            others.addAll(other.others);
+            otherChars = other.otherChars;
+        }
+    }
+
+    /*
+     * Tells whether a docid is a UUID in the usual form, 8-4-4-4-12 lower-case hex digits, and if it is,
+     * leaves its high and low 64 bits in parsedHigh and parsedLow. Only called with the lock held.
+     */
+    private boolean parseUuid(String docid) {
+        if (docid.length() != 36) {
+            return false;
+        }
+        long high = 0;
+        long low = 0;
+        for (int i = 0; i < 36; ++i) {
+            char c = docid.charAt(i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else if (c == '-' && (i == 8 || i == 13 || i == 18 || i == 23)) {
+                continue;
+            } else {
+                return false;
+            }
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                return false;
+            }
+            if (i < 18) {
+                high = (high << 4) | digit;
+            } else {
+                low = (low << 4) | digit;
+            }
+        }
+        parsedHigh = high;
+        parsedLow = low;
+        return true;
+    }
+
+    private static String formatUuid(long high, long low) {
+        char[] chars = new char[36];
+        int pos = 35;
+        for (int i = 0; i < 16; ++i) {
+            if (pos == 23) {
+                chars[pos--] = '-';
+            }
+            chars[pos--] = HEX_DIGITS[(int) (low & 0xf)];
+            low >>>= 4;
+        }
+        for (int i = 0; i < 16; ++i) {
+            if (pos == 18 || pos == 13 || pos == 8) {
+                chars[pos--] = '-';
+            }
+            chars[pos--] = HEX_DIGITS[(int) (high & 0xf)];
+            high >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    private static int slot(long high, long low, int capacity) {
+        long hash = (high * 0x9E3779B97F4A7C15L) ^ low;
+        hash ^= hash >>> 31;
+        hash *= 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 29;
+        return (int) hash & (capacity - 1);
+    }
+
+    /* The slot holding the UUID, or the empty slot where it would go */
+    private static int find(long[] table, long high, long low) {
+        int capacity = table.length / 2;
+        int slot = slot(high, low, capacity);
+        while (true) {
+            long slotHigh = table[2 * slot];
+            long slotLow = table[2 * slot + 1];
+            if ((slotHigh == high && slotLow == low) || (slotHigh == 0 && slotLow == 0)) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    private void grow() {
+        long[] newTable = new long[table.length * 2];
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != 0 || table[i + 1] != 0) {
+                int slot = find(newTable, table[i], table[i + 1]);
+                newTable[2 * slot] = table[i];
+                newTable[2 * slot + 1] = table[i + 1];
+            }
+        }
+        table = newTable;
+    }
+
+    @Override
+    public synchronized boolean add(String docid) {
+        if (!parseUuid(docid)) {
+            if (others.add(docid)) {
+                otherChars += docid.length();
+                return true;
+            }
+            return false;
+        }
+        long high = parsedHigh;
+        long low = parsedLow;
+        if (high == 0 && low == 0) {
+            boolean added = !hasZeroUuid;
+            hasZeroUuid = true;
+            return added;
+        }
+        int slot = find(table, high, low);
+        if (table[2 * slot] != 0 || table[2 * slot + 1] != 0) {
+            return false;
+        }
+        table[2 * slot] = high;
+        table[2 * slot + 1] = low;
+        ++uuids;
+        if (uuids > MAX_LOAD * (table.length / 2)) {
+            grow();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean contains(Object o) {
+        if (!(o instanceof String)) {
+            return false;
+        }
+        String docid = (String) o;
+        if (!parseUuid(docid)) {
+            return others.contains(docid);
+        }
+        long high = parsedHigh;
+        long low = parsedLow;
+        if (high == 0 && low == 0) {
+            return hasZeroUuid;
+        }
+        int slot = find(table, high, low);
+        return table[2 * slot] != 0 || table[2 * slot + 1] != 0;
+    }
+
+    @Override
+    public synchronized int size() {
+        return uuids + (hasZeroUuid ? 1 : 0) + others.size();
+    }
+
+    /**
+     * Iterates over the docids, the UUIDs first (in no particular order), formatted as they were added.
+     * Removing is not supported.
+     */
+    @Override
+    public Iterator<String> iterator() {
+        Iterator<String> otherIterator = Collections.unmodifiableSet(others).iterator();
+        return new Iterator<String>() {
+            private int next = hasZeroUuid ? -1 : advance(0);
+            private boolean zeroDone = !hasZeroUuid;
+
+            private int advance(int from) {
+                int i = from;
+                while (i < table.length && table[i] == 0 && table[i + 1] == 0) {
+                    i += 2;
+                }
+                return i;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < table.length || otherIterator.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!zeroDone) {
+                    zeroDone = true;
+                    next = advance(0);
+                    return formatUuid(0, 0);
+                }
+                if (next < table.length) {
+                    String docid = formatUuid(table[next], table[next + 1]);
+                    next = advance(next + 2);
+                    return docid;
+                }
+                return otherIterator.next();
+            }
+        };
+    }
+
+    /**
+     * Returns roughly how much memory the set takes up.
+     * @return the size in bytes
+     */
+    public synchronized long getBytes() {
+        return 8L * table.length + others.size() * HASH_SET_ENTRY_BYTES + otherChars;
+    }
+
+    /**
+     * Returns roughly how much memory the same docids would take up as a HashSet of Strings.
+     * @return the size in bytes
+     */
+    public synchronized long getHashSetBytes() {
+        return (uuids + (hasZeroUuid ? 1 : 0)) * (HASH_SET_ENTRY_BYTES + 40) + others.size() * HASH_SET_ENTRY_BYTES
+                + otherChars;
+    }
+
+    /**
+     * Describes how much memory the set saves, for the log.
+     * @return a description like "1000000 docids in 32.0 MB instead of about 117.3 MB as Strings"
+     */
+    public synchronized String describeMemory() {
+        return String.format("%d docids in %.1f MB instead of about %.1f MB as Strings (%d not UUIDs)", size(),
+                getBytes() / 1048576.0, getHashSetBytes() / 1048576.0, others.size());
+    }
+}
@@ -8,14 +8,12 @@ import org.lemurproject.galago.core.retrieval.Retrieval;
 import org.lemurproject.galago.core.retrieval.RetrievalFactory;
 import org.lemurproject.galago.utility.Parameters;
 
-
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
+import java.util.stream.Collectors;
 
 public class Document {
 
@@ -23,7 +21,9 @@ public class Document {
 
 
 
-    private static Map<String, DocumentDetails> docMap = new ConcurrentHashMap<>();
+    private static DocumentCache docMap = new DocumentCache(Pathnames.documentCacheBytes, Document::reloadDocument);
+    /* The corpus files whose offset index reloadDocument() has had to use although useCorpusOffsetIndex is false */
+    private static final Set<String> reloadIndexedCorpora = ConcurrentHashMap.newKeySet();
 //    private static Map<String,String> docMap = new ConcurrentHashMap<>();
 //    private static Map<String,String> arabicDocMap = new ConcurrentHashMap<>();
 //    private static Map<String,String> translatedArabicDocMap = new ConcurrentHashMap<>();
@@ -37,6 +37,7 @@ public class Document {
             String corpus = Pathnames.corpusFileLocation + Pathnames.englishCorpusFileName;
             buildDocMap(uniqueDocIDs, corpus, docMap, /*englishDocSentencesMap, null, englishDocEventsMap,*/
                     true);
+            docMap.logStatistics();
         }
     }
 
@@ -44,38 +45,59 @@ public class Document {
         String corpus = Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName;
         buildDocMap(uniqueDocIDs, corpus, docMap,/*arabicDocMap, arabicDocSentencesMap, translatedArabicDocMap, arabicDocEventsMap,*/
                 false);
+        docMap.logStatistics();
+    }
+
+    /**
+     * Gets the details of a set of documents from a corpus file, all in one go: the documents are read with
+     * positioned reads through the corpus offset index if Pathnames.useCorpusOffsetIndex is set, otherwise
+     * the corpus file (or its shards, concurrently, if it has been sharded) is scanned once,
+     * matching each line's docid against the whole set.
+     * Docids that are not in the corpus are simply not passed to the map.
+     * @param docids the docids of the documents to get
+     * @param corpus the corpus file
+     * @param map gets each document's docid and details, possibly from several threads at once
+     */
+    public static void getDocuments(Set<String> docids, String corpus, BiConsumer<String, DocumentDetails> map) {
+        if (docids.isEmpty()) {
+            return;
+        }
+        if (Pathnames.useCorpusOffsetIndex) {
+            CorpusOffsetIndex.get(corpus).forEachLine(docids, line -> doALine(line, map));
+        } else {
+            CorpusShards.getFiles(corpus).parallelStream().forEach(file ->
+                new CorpusReader(file).forEachLine(line -> {
+                    if (getGoodOnes(line, docids)) {
+                        doALine(line.getText(), map);
+                    }
+                }));
+        }
+    }
+
+    /**
+     * Gets the details of a set of documents from a corpus file, all in one go.
+     * @param docids the docids of the documents to get
+     * @param corpus the corpus file
+     * @return the documents that were found, keyed by docid
+     */
+    public static Map<String, DocumentDetails> getDocuments(Set<String> docids, String corpus) {
+        Map<String, DocumentDetails> map = new ConcurrentHashMap<>();
+        getDocuments(docids, corpus, map::put);
+        return map;
     }
 
+    /**
+     * Gets one document's details from a corpus file. This used to run grep over the corpus file;
+     * callers that need several documents should call getDocuments() once with all of their docids.
+     * @param docid the docid
+     * @param corpus the corpus file
+     * @param map gets the document's details
+     */
     public static void getDocumentWithGrep (String docid, String corpus, Map<String, DocumentDetails> map
                                             /*Map<String,String> map,
                                                     Map<String,List<SentenceRange>> sentenceMap,
                                             Map<String,String> translatedMap, Map<String, List<Event>> eventMap*/) {
-        String command = "grep";
-//        String grepText = "\"id\": \"" + docid + "\"";
-        String grepText = docid;
-        ProcessBuilder processBuilder = new ProcessBuilder(
-                command, grepText,
-                corpus);
-        int exitVal = 0;
-        logger.info("Calling " + command + " " + grepText + " " + corpus);
-        try {
-            Process process = processBuilder.start();
-            BufferedReader reader = new BufferedReader(
-                    new InputStreamReader(process.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.length() == 0) {
-                    continue;
-                }
-                doALine(line, map/*, sentenceMap, translatedMap, eventMap*/);
-            }
-            exitVal = process.waitFor();
-        } catch (Exception e) {
-            throw new TasksRunnerException(e);
-        }
-        if (exitVal != 0) {
-            throw new TasksRunnerException("Unexpected ERROR while executing grep. Exit value is " + exitVal);
-        }
+        getDocuments(Collections.singleton(docid), corpus, map::put);
     }
 
     public static void getDocumentWithGalago(String docid, String indexPath, Map<String,String> map,
@@ -99,7 +121,7 @@ public class Document {
 
             List<SentenceRange> sentences = new ArrayList<>();
             if (includeSentences) {
-                getSentenceRangesFromText(docText, sentences);
+                getSentenceRangesFromText(docid, docText, "", sentences);
             }
 
             map.put(docid, docText);
@@ -110,33 +132,38 @@ public class Document {
         }
     }
 
-    private static boolean getGoodOnes(String line, Set<String> uniqueDocIDs) {
-        JSONParser parser = new JSONParser();
-        JSONObject json = null;
-        try {
-            json = (JSONObject) parser.parse(line);
-        } catch (ParseException e) {
-            throw new TasksRunnerException(e);
-        }
-        String uuid;
-        String text;
-        if (json.containsKey("uuid")) {
-            // OLD STYLE
-            uuid = (String) json.get("uuid");
-        } else {
-            JSONObject derived_metadata = (JSONObject) json.get("derived-metadata");
-            uuid = (String) derived_metadata.get("id");
-        }
-        return (uniqueDocIDs.contains(uuid));
+    /**
+     * Tells whether a corpus line is one of the documents we want. Only the docid is extracted from the line;
+     * the document text is skipped over without being decoded.
+     */
+    private static boolean getGoodOnes(CorpusReader.Line line, Set<String> uniqueDocIDs) {
+        return (uniqueDocIDs.contains(CorpusIdExtractor.getDocid(line)));
     }
 
-    private static void buildDocMap(Set<String> uniqueDocIDs, String corpus, Map<String, DocumentDetails> map,
+    private static void buildDocMap(Set<String> uniqueDocIDs, String corpus, DocumentCache map,
                                     /*Map<String,String> map,
                                     Map<String,List<SentenceRange>> sentenceMap, Map<String,String> translatedMap,
                                     Map<String, List<Event>> eventMap,*/ boolean isEnglishCorpus) {
 //        AtomicInteger idx = new AtomicInteger(0);
-        logger.info("Building document map for " + uniqueDocIDs.size() + " docs from corpus file "
-        + corpus);
+        /* Documents that are already loaded (by an earlier stage, or prefetched) do not need a corpus pass */
+        Set<String> toLoad = new HashSet<>();
+        for (String docid : uniqueDocIDs) {
+            if (!map.containsKey(docid)) {
+                toLoad.add(docid);
+            }
+        }
+        if (toLoad.isEmpty()) {
+            logger.info("All " + uniqueDocIDs.size() + " docs are already loaded from corpus file " + corpus);
+            return;
+        }
+        /* We are making a pass anyway, so take the documents the coming stages are going to want along */
+        for (String docid : DocumentPrefetcher.takePlanned(corpus)) {
+            if (!map.containsKey(docid)) {
+                toLoad.add(docid);
+            }
+        }
+        logger.info("Building document map for " + toLoad.size() + " docs (" + uniqueDocIDs.size()
+                + " requested) from corpus file " + corpus);
 /*
         if (isEnglishCorpus) {
 
@@ -153,17 +180,17 @@ public class Document {
                         map, sentenceMap, false);
             }
 */
-            logger.info("Using corpus file scan method");
-            try (Stream<String> stream = Files.lines(Paths.get(corpus))) {
-                stream.parallel().filter(l -> getGoodOnes(l, uniqueDocIDs))
-                        .forEach(line -> {
-                            doALine(line, map/*, sentenceMap, translatedMap, eventMap*/);
-                        });
-            } catch (IOException e) {
-                throw new TasksRunnerException(e);
-            }
+        logger.info(Pathnames.useCorpusOffsetIndex ? "Using corpus offset index method"
+                : "Using corpus file scan method");
+        Queue<DocumentDetails> loaded = new ConcurrentLinkedQueue<>();
+        getDocuments(toLoad, corpus, (docid, d) -> {
+            map.put(docid, d, corpus);
+            loaded.add(d);
+        }/*, sentenceMap, translatedMap, eventMap*/);
  //       }
+        segmentLoaded(loaded);
         logger.info("Document map complete");
+        Spacy.logStatistics();
         List<String> missingDocids = new ArrayList<>();
         for (String d : uniqueDocIDs) {
             if (!map.containsKey(d)) {
@@ -176,10 +203,68 @@ public class Document {
         }
     }
 
-    private static void doALine(String line, Map<String, DocumentDetails> map
+    /**
+     * Loads the documents planned for a corpus file that are not loaded yet, in one pass.
+     * @param corpus the corpus file
+     */
+    static void loadPlanned(String corpus) {
+        Set<String> toLoad = new HashSet<>();
+        for (String docid : DocumentPrefetcher.takePlanned(corpus)) {
+            if (!docMap.containsKey(docid)) {
+                toLoad.add(docid);
+            }
+        }
+        Queue<DocumentDetails> loaded = new ConcurrentLinkedQueue<>();
+        getDocuments(toLoad, corpus, (docid, d) -> {
+            docMap.put(docid, d, corpus);
+            loaded.add(d);
+        });
+        segmentLoaded(loaded);
+        docMap.logStatistics();
+    }
+
+    /**
+     * Works out the sentences of just-loaded lazy documents that have no sentence metadata, all of them
+     * together, so they go to the segmenters in batches (and to the spaCy daemons in parallel) instead of
+     * one spaCy call at a time when the stages that follow ask each document for its sentences.
+     * @param loaded the loaded documents
+     */
+    private static void segmentLoaded(Collection<DocumentDetails> loaded) {
+        if (!Pathnames.lazyDocumentDetails) {
+            return;
+        }
+        List<DocumentDetails> unsegmented = loaded.parallelStream().filter(DocumentDetails::needsSegmenting)
+                .collect(Collectors.toList());
+        if (unsegmented.isEmpty()) {
+            return;
+        }
+        List<String> docids = new ArrayList<>(unsegmented.size());
+        List<String> texts = new ArrayList<>(unsegmented.size());
+        List<String> languages = new ArrayList<>(unsegmented.size());
+        List<List<SentenceRange>> sentenceLists = new ArrayList<>(unsegmented.size());
+        for (DocumentDetails d : unsegmented) {
+            docids.add(d.getDocid());
+            texts.add(d.getText());
+            languages.add(d.getLanguage());
+            sentenceLists.add(new ArrayList<>());
+        }
+        getSentenceRangesFromTexts(docids, texts, languages, sentenceLists);
+        for (int i = 0; i < unsegmented.size(); ++i) {
+            unsegmented.get(i).setSentences(sentenceLists.get(i));
+        }
+        logger.info("Segmented " + unsegmented.size() + " loaded docs with no sentence metadata");
+    }
+
+    static void doALine(String line, BiConsumer<String, DocumentDetails> map
                                 /*Map<String,String> map,
                          Map<String,List<SentenceRange>> sentenceMap, Map<String, String> translatedMap,
                                 Map<String, List<Event>> eventMap */) {
+        if (Pathnames.lazyDocumentDetails) {
+            /* The details are taken out of the line when they are first asked for */
+            DocumentDetails details = new DocumentDetails(line);
+            map.accept(details.getDocid(), details);
+            return;
+        }
         JSONParser parser = new JSONParser();
         JSONObject json = null;
         try {
@@ -193,7 +278,8 @@ public class Document {
         String translatedText;
         List<SentenceRange> sentences = new ArrayList<>();
         List<Event> events = new ArrayList<>();
-        if (json.containsKey("uuid")) {
+        /* A line with derived-metadata is new-style, even if it has a uuid too (see CorpusIdExtractor) */
+        if (!json.containsKey("derived-metadata")) {
             // OLD STYLE
             uuid = (String) json.get("uuid");
             text = (String) json.get("text");
@@ -201,7 +287,7 @@ public class Document {
             if (json.containsKey("translated-text")) {
                 translatedText = (String) json.get("translated-text");
             }
-            getSentenceRangesFromText(text, sentences);
+            getSentenceRangesFromText(uuid, text, "", sentences);
         } else {
             JSONObject derived_metadata = (JSONObject) json.get("derived-metadata");
             uuid = (String) derived_metadata.get("id");
@@ -237,7 +323,7 @@ public class Document {
                     sentences.add(sentence);
                 }
             } else {
-                getSentenceRangesFromText(text, sentences);
+                getSentenceRangesFromText(uuid, text, language, sentences);
             }
         }
         // If there are duplicate docs in the corpus, we will keep the last one we encounter
@@ -249,15 +335,103 @@ public class Document {
         sentenceMap.put(uuid, sentences);
         eventMap.put(uuid, events);
          */
-        map.put(uuid, new DocumentDetails(text, translatedText, sentences, events, language));
+        map.accept(uuid, new DocumentDetails(text, translatedText, sentences, events, language));
     }
 
-    private static List<String> callSpacy(String s) {
-        return Spacy.getSentences(s);
+    /**
+     * Reads one document back in from its corpus file, after it has been evicted from the document cache.
+     * This always goes through the corpus offset index, building it if Pathnames.useCorpusOffsetIndex is
+     * false and it was not built yet, since without it every reload would be a scan of the whole corpus.
+     * @param docid the docid
+     * @param corpus the corpus file it was originally loaded from
+     * @return the document's details
+     */
+    private static DocumentDetails reloadDocument(String docid, String corpus) {
+        if (!Pathnames.useCorpusOffsetIndex && reloadIndexedCorpora.add(corpus)) {
+            logger.info("Evicted docs are reloaded from " + corpus + " with its offset index, even though"
+                    + " useCorpusOffsetIndex is false");
+        }
+        Map<String, DocumentDetails> reloaded = new HashMap<>();
+        CorpusOffsetIndex.get(corpus).forEachLine(Collections.singleton(docid), line -> doALine(line,
+                (id, d) -> {
+                    synchronized (reloaded) {
+                        reloaded.put(id, d);
+                    }
+                }));
+        if (!reloaded.containsKey(docid)) {
+            throw new TasksRunnerException("Evicted docid " + docid + " not found in corpus file " + corpus);
+        }
+        return reloaded.get(docid);
     }
 
-    private static void getSentenceRangesFromText(String text, List<SentenceRange> sentences) {
-        List<String> spacySentences = callSpacy(text);
+    /**
+     * Gets the sentences of a document from the language's sentence segmenter, or from the sentence cache
+     * if the segmenter has already segmented this document's text.
+     * @param language the canonical form of the document's language, or an empty string if it is not known
+     */
+    static void getSentenceRangesFromText(String docid, String text, String language,
+                                          List<SentenceRange> sentences) {
+        SentenceSegmenterInterface segmenter = SentenceSegmenters.get(language);
+        boolean useCache = Pathnames.useSentenceCache && segmenter.useSentenceCache();
+        if (useCache) {
+            List<SentenceRange> cachedSentences = SentenceCache.get(docid, text, segmenter.getId());
+            if (cachedSentences != null) {
+                sentences.addAll(cachedSentences);
+                return;
+            }
+        }
+        toSentenceRanges(text, segmenter.getSentences(text), sentences);
+        if (useCache) {
+            SentenceCache.put(docid, text, segmenter.getId(), sentences);
+        }
+    }
+
+    /**
+     * Gets the sentences of many documents, like getSentenceRangesFromText() does for one, but sends
+     * the documents that are not in the sentence cache to their segmenters in batches instead of one at a time.
+     * @param docids the docids
+     * @param texts the document texts, in the same order as the docids
+     * @param languages the documents' languages, in the same order as the docids
+     * @param sentenceLists the lists to add each document's sentences to, in the same order as the docids
+     */
+    private static void getSentenceRangesFromTexts(List<String> docids, List<String> texts, List<String> languages,
+                                                   List<List<SentenceRange>> sentenceLists) {
+        /* The key is the segmenter's id, the value is the indexes of the documents it must segment */
+        Map<String, List<Integer>> toSegment = new HashMap<>();
+        Map<String, SentenceSegmenterInterface> segmenters = new HashMap<>();
+        for (int i = 0; i < docids.size(); ++i) {
+            SentenceSegmenterInterface segmenter = SentenceSegmenters.get(languages.get(i));
+            List<SentenceRange> cachedSentences = (Pathnames.useSentenceCache && segmenter.useSentenceCache())
+                    ? SentenceCache.get(docids.get(i), texts.get(i), segmenter.getId()) : null;
+            if (cachedSentences != null) {
+                sentenceLists.get(i).addAll(cachedSentences);
+            } else {
+                segmenters.put(segmenter.getId(), segmenter);
+                toSegment.computeIfAbsent(segmenter.getId(), k -> new ArrayList<>()).add(i);
+            }
+        }
+        for (Map.Entry<String, List<Integer>> entry : toSegment.entrySet()) {
+            SentenceSegmenterInterface segmenter = segmenters.get(entry.getKey());
+            List<Integer> indexes = entry.getValue();
+            List<String> batchTexts = new ArrayList<>(indexes.size());
+            for (int i : indexes) {
+                batchTexts.add(texts.get(i));
+            }
+            List<List<String>> segmenterSentences = segmenter.getSentencesBatch(batchTexts);
+            for (int j = 0; j < indexes.size(); ++j) {
+                int i = indexes.get(j);
+                toSentenceRanges(texts.get(i), segmenterSentences.get(j), sentenceLists.get(i));
+                if (Pathnames.useSentenceCache && segmenter.useSentenceCache()) {
+                    SentenceCache.put(docids.get(i), texts.get(i), segmenter.getId(), sentenceLists.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds each of the segmenter's sentences in the document text, to get their start and end offsets.
+     */
+    private static void toSentenceRanges(String text, List<String> spacySentences, List<SentenceRange> sentences) {
         int start = 0;
         int end = -1;
         int id = 0;
@@ -266,7 +440,7 @@ public class Document {
             if (id > 1) {
                 start = text.indexOf(sentence, end);
                 if (start == -1) {
-                    System.out.println("ERROR: Cannot find spacy sentence in doc");
+                    System.out.println("ERROR: Cannot find segmenter sentence in doc");
                 }
             }
             end = start + sentence.length();
@@ -278,43 +452,47 @@ public class Document {
     }
 
     public static String getDocumentWithMap (String docid) {
-        return docMap.get(docid).text;
+        return docMap.get(docid).getText();
     }
 
     public static String getTargetDocumentWithMap(String docid) {
-        return docMap.get(docid).text;
+        return docMap.get(docid).getText();
     }
 
     public static String getTranslatedTargetDocumentWithMap(String docid) {
-        return docMap.get(docid).translatedText;
+        return docMap.get(docid).getTranslatedText();
     }
 
     public static List<SentenceRange> getDocumentSentences (String docid) {
-        return docMap.get(docid).sentences;
+        return docMap.get(docid).getSentences();
     }
 
     public static List<SentenceRange> getTargetDocumentSentences(String docid) {
-        return docMap.get(docid).sentences;
+        return docMap.get(docid).getSentences();
     }
 
     public static List<Event> getTargetDocumentEvents(String docid) {
-        return docMap.get(docid).events;
+        return docMap.get(docid).getEvents();
     }
 
     public static List<Event> getEnglishDocumentEvents (String docid) {
-        return docMap.get(docid).events;
+        return docMap.get(docid).getEvents();
     }
 
     public static String getLanguage(String docid) {
-        return docMap.get(docid).language;
+        return docMap.get(docid).getLanguage();
     }
 
     public static String getArabicLanguage(String docid) {
-        return docMap.get(docid).language;
+        return docMap.get(docid).getLanguage();
     }
 
 
-    private static void doALineForAllCorpus(String line, Map<String, SimpleHit> hitMap) {
+    /**
+     * Makes a SimpleHit from a corpus line. If the line has no sentence metadata, the hit's sentences are
+     * left empty and the hit is added to unsegmented, so the caller can get all their sentences in batches.
+     */
+    private static void doALineForAllCorpus(String line, Map<String, SimpleHit> hitMap, List<SimpleHit> unsegmented) {
         JSONParser parser = new JSONParser();
         JSONObject json = null;
         try {
@@ -361,25 +539,51 @@ public class Document {
                 SentenceRange sentence = new SentenceRange(id, (int) start, (int) end, sentenceText);
                 sentences.add(sentence);
             }
-        } else {
-            getSentenceRangesFromText(text, sentences);
         }
-        hitMap.put("CorpusDoc" + "--" + "dummy" + "--" + uuid,
-                new SimpleHit(uuid, text, translatedText, sentences, events, language));
+        SimpleHit hit = new SimpleHit(uuid, text, translatedText, sentences, events, language);
+        if (language.equals("russian") || !derived_metadata.containsKey("segment-sections")) {
+            unsegmented.add(hit);
+        }
+        hitMap.put("CorpusDoc" + "--" + "dummy" + "--" + uuid, hit);
     }
 
     public static Map<String,SimpleHit> getSimpleHitsFromCorpus(int startIndex, int numDocsPerFile) {
+        /* Lines before startIndex are skipped without being decoded, and if the corpus is sharded,
+           the shards before the one startIndex is in are not read at all */
+        Iterator<CorpusReader.Line> lines =
+                CorpusShards.iterator(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName, startIndex);
+        List<String> partLines = new ArrayList<>(numDocsPerFile);
+        for (int lineIndex = 0; lineIndex < numDocsPerFile && lines.hasNext(); ++lineIndex) {
+            partLines.add(lines.next().getText());
+        }
+        return getSimpleHitsFromLines(partLines);
+    }
+
+    /**
+     * Gets the documents in some corpus lines ready for event extraction, segmenting the ones
+     * without sentence metadata in batches.
+     * @param lines the corpus lines
+     * @return the documents, keyed the way the event extractor's input file wants them
+     */
+    public static Map<String,SimpleHit> getSimpleHitsFromLines(List<String> lines) {
         int limit = Pathnames.DOCS_TO_PROCESS;
         logger.info("Getting " + limit + " documents from corpus file for event extraction");
         Map<String, SimpleHit> hitMap = new ConcurrentHashMap<>();
-        try (Stream<String> stream = Files.lines(Paths.get(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName))) {
-            stream.skip(startIndex).limit(numDocsPerFile)
-                    .forEach(line -> {
-                        doALineForAllCorpus(line, hitMap);
-                    });
-        } catch (IOException e) {
-            throw new TasksRunnerException(e);
+        List<SimpleHit> unsegmented = new ArrayList<>();
+        for (String line : lines) {
+            doALineForAllCorpus(line, hitMap, unsegmented);
+        }
+        List<String> docids = new ArrayList<>(unsegmented.size());
+        List<String> texts = new ArrayList<>(unsegmented.size());
+        List<String> languages = new ArrayList<>(unsegmented.size());
+        List<List<SentenceRange>> sentenceLists = new ArrayList<>(unsegmented.size());
+        for (SimpleHit hit : unsegmented) {
+            docids.add(hit.docid);
+            texts.add(hit.docText);
+            languages.add(hit.language);
+            sentenceLists.add(hit.sentences);
         }
+        getSentenceRangesFromTexts(docids, texts, languages, sentenceLists);
         return hitMap;
     }
 
@@ -0,0 +1,178 @@
+package edu.umass.ciir;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+/**
+ * The in-memory store of document details that Document hands out, limited to a byte budget.
+ * Entries are weighed by the size of their text plus their translated text (see DocumentDetails.getWeight()),
+ * and when the budget is exceeded the least-recently-used entries are evicted. An evicted document is reloaded
+ * from the corpus file it came from the next time someone asks for it, so callers never see the difference,
+ * except in the hit/miss counters. Callers on several threads asking for the same evicted document share
+ * one reload.
+ */
+public class DocumentCache {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private final long maxBytes;
+    private long currentBytes = 0;
+    /* Access-ordered, so the eldest entry is the least-recently-used one */
+    private final LinkedHashMap<String, DocumentDetails> entries = new LinkedHashMap<>(1024, 0.75f, true);
+    /**
+     * The key is the docid, the value is the corpus file the document was loaded from.
+     * This survives eviction, so we know where to reload the document from.
+     */
+    private final Map<String, String> corpusMap = new ConcurrentHashMap<>();
+    private final BiFunction<String, String, DocumentDetails> loader;
+    /* The reloads in progress, keyed by docid */
+    private final Map<String, CompletableFuture<DocumentDetails>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sharedReloads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes the byte budget for the cached documents
+     * @param loader reloads an evicted document, given its docid and its corpus file name
+     */
+    DocumentCache(long maxBytes, BiFunction<String, String, DocumentDetails> loader) {
+        this.maxBytes = maxBytes;
+        this.loader = loader;
+    }
+
+    private static long weigh(DocumentDetails d) {
+        return d.getWeight();
+    }
+
+    /**
+     * Adds a document to the cache, evicting least-recently-used documents if that puts us over budget.
+     * If there are duplicate docs in the corpus, the last one added wins.
+     * @param docid the docid
+     * @param details the document
+     * @param corpus the corpus file the document came from
+     */
+    public void put(String docid, DocumentDetails details, String corpus) {
+        corpusMap.put(docid, corpus);
+        synchronized (this) {
+            DocumentDetails old = entries.put(docid, details);
+            if (old != null) {
+                currentBytes -= weigh(old);
+            }
+            currentBytes += weigh(details);
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, DocumentDetails>> it = entries.entrySet().iterator();
+        /* Always keep the newest entry, even if it alone is over budget */
+        while (currentBytes > maxBytes && entries.size() > 1 && it.hasNext()) {
+            currentBytes -= weigh(it.next().getValue());
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a document, reloading it from its corpus file if it was evicted.
+     * @param docid the docid
+     * @return the document, or null if it was never loaded
+     */
+    public DocumentDetails get(String docid) {
+        synchronized (this) {
+            DocumentDetails d = entries.get(docid);
+            if (d != null) {
+                hits.incrementAndGet();
+                return d;
+            }
+        }
+        String corpus = corpusMap.get(docid);
+        if (corpus == null) {
+            return null;
+        }
+        misses.incrementAndGet();
+        CompletableFuture<DocumentDetails> reload = new CompletableFuture<>();
+        CompletableFuture<DocumentDetails> other = loading.putIfAbsent(docid, reload);
+        if (other != null) {
+            sharedReloads.incrementAndGet();
+            try {
+                return other.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof TasksRunnerException ? (TasksRunnerException) e.getCause()
+                        : new TasksRunnerException(e);
+            }
+        }
+        try {
+            DocumentDetails d;
+            synchronized (this) {
+                /* Another thread may have finished reloading it just before we asked */
+                d = entries.get(docid);
+            }
+            if (d == null) {
+                d = loader.apply(docid, corpus);
+                put(docid, d, corpus);
+            }
+            reload.complete(d);
+            return d;
+        } catch (RuntimeException e) {
+            reload.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(docid);
+        }
+    }
+
+    /**
+     * Tells whether a document has been loaded, whether or not it is still in memory.
+     * @param docid the docid
+     * @return true if get() will be able to return the document
+     */
+    public boolean containsKey(String docid) {
+        return corpusMap.containsKey(docid);
+    }
+
+    /**
+     * Tells whether a document is in memory right now. Does not count as a use of the document.
+     * @param docid the docid
+     * @return true if the document is in memory
+     */
+    public synchronized boolean isCached(String docid) {
+        return entries.containsKey(docid);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSharedReloads() {
+        return sharedReloads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public void logStatistics() {
+        logger.info("Document cache: " + size() + " docs, " + (getCurrentBytes() / 1048576) + " of "
+                + (maxBytes / 1048576) + " MB, " + getHits() + " hits, " + getMisses() + " misses ("
+                + getSharedReloads() + " sharing another thread's reload), " + getEvictions() + " evictions");
+    }
+}
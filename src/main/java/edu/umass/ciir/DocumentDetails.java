@@ -1,39 +1,334 @@
 package edu.umass.ciir;
 
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+/**
+ * The details of one corpus document: its text, translated text, sentences, events and language.
+ * If Pathnames.compactDocumentStore is set, the text and translated text are each kept as one
+ * compressed UTF-8 block (the translated block only if there is a translation), and the sentences are kept
+ * as (id, start, end) triples. They are decoded each time they are asked for, and the sentence texts are
+ * sliced out of the decoded document text then, instead of being stored as separate copies.
+ * Details made from a corpus line (the lazy mode, see Pathnames.lazyDocumentDetails) keep just the line
+ * (compressed, in compact mode) until a detail is first asked for. Then all the details are taken out of it
+ * at once and kept the same way as above, and the line is dropped. The sentences of lines with no sentence
+ * metadata are worked out by Document right after a load, for all the loaded documents together (see
+ * needsSegmenting()), so that they go to the sentence segmenters in batches rather than one document at a time.
+ */
 public class DocumentDetails {
-    String text;
-    String translatedText;
-    List<SentenceRange> sentences;
-    List<Event> events;
-    String language;
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private String text;
+    private String translatedText;
+    private List<SentenceRange> sentences;
+    private List<Event> events;
+    private String language;
+
+    /* Compact mode */
+    private byte[] compressedText;
+    private int textBytes;
+    private byte[] compressedTranslatedText;
+    private int translatedTextBytes;
+    private int[] sentenceTriples;
+
+    /* Lazy mode */
+    private final boolean lazy;
+    private String docid;
+    private String line;
+    private byte[] compressedLine;
+    private int lineBytes;
+    private long lazyWeight;
+
     DocumentDetails(String text, String translatedText, List<SentenceRange> sentences, List<Event> events,
                     String language) {
-        this.text = text;
-        this.translatedText = translatedText;
-        this.sentences = sentences;
+        this.lazy = false;
         this.events = events;
         this.language = language;
+        if (Pathnames.compactDocumentStore) {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            textBytes = bytes.length;
+            compressedText = compress(bytes);
+            if (translatedText != null && !translatedText.isEmpty()) {
+                bytes = translatedText.getBytes(StandardCharsets.UTF_8);
+                translatedTextBytes = bytes.length;
+                compressedTranslatedText = compress(bytes);
+            }
+            sentenceTriples = toTriples(sentences);
+        } else {
+            this.text = text;
+            this.translatedText = translatedText;
+            this.sentences = sentences;
+        }
+    }
+
+    /**
+     * Makes lazy document details from a corpus line. Only the docid is taken out of the line now.
+     * @param line the corpus line, old-style or new-style
+     */
+    DocumentDetails(String line) {
+        this.lazy = true;
+        this.docid = new CorpusLineFields(line).getDocid();
+        if (Pathnames.compactDocumentStore) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            lineBytes = bytes.length;
+            compressedLine = compress(bytes);
+            lazyWeight = compressedLine.length;
+        } else {
+            this.line = line;
+            lazyWeight = 4L * line.length();
+        }
+    }
+
+    private static byte[] compress(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(bytes);
+        deflater.finish();
+        byte[] buffer = new byte[Math.max(64, bytes.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffer.length) {
+                byte[] bigger = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, bigger, 0, length);
+                buffer = bigger;
+            }
+            length += deflater.deflate(buffer, length, buffer.length - length);
+        }
+        deflater.end();
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    private static String decompress(byte[] compressed, int length) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] bytes = new byte[length];
+        try {
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                n += inflater.inflate(bytes, n, length - n);
+            }
+        } catch (DataFormatException e) {
+            throw new TasksRunnerException(e);
+        } finally {
+            inflater.end();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int[] toTriples(List<SentenceRange> sentences) {
+        int[] triples = new int[sentences.size() * 3];
+        int i = 0;
+        for (SentenceRange sentence : sentences) {
+            triples[i++] = sentence.id;
+            triples[i++] = sentence.start;
+            triples[i++] = sentence.end;
+        }
+        return triples;
+    }
+
+    private static List<SentenceRange> fromTriples(int[] triples, String docText) {
+        List<SentenceRange> sentenceList = new ArrayList<>(triples.length / 3);
+        for (int i = 0; i < triples.length; i += 3) {
+            int start = triples[i + 1];
+            int end = triples[i + 2];
+            String sentenceText = (start >= 0 && end <= docText.length() && start <= end)
+                    ? docText.substring(start, end) : "";
+            sentenceList.add(new SentenceRange(triples[i], start, end, sentenceText));
+        }
+        return sentenceList;
     }
 
-    public String getText() {
+    /**
+     * Returns the docid, if these details were made from a corpus line.
+     * @return the docid, or null
+     */
+    public String getDocid() {
+        return docid;
+    }
+
+    /* Russian docs have sentence metadata left over from Arabic, so theirs is not used */
+    private static boolean hasLineSentences(CorpusLineFields lineFields, String lineLanguage) {
+        return lineFields.isNewStyle() && !lineLanguage.equals("russian") && lineFields.has("segment-sections");
+    }
+
+    private static String getLanguage(CorpusLineFields lineFields) {
+        return lineFields.isNewStyle() ? SearchEngineInterface.toCanonicalForm(lineFields.getString("language")) : "";
+    }
+
+    /*
+     * Takes all the details out of the line the first time any of them is asked for, walking the line (and in
+     * compact mode decompressing it) just once, and then lets the line go, so from then on the details are
+     * kept just as the eager constructor keeps them. The sentences are taken from the line's segment-sections
+     * if it has them; otherwise they are left for getSentences() or setSentences()
+     */
+    private void unpack() {
+        if (line == null && compressedLine == null) {
+            return;
+        }
+        boolean compact = compressedLine != null;
+        CorpusLineFields lineFields = new CorpusLineFields(compact ? decompress(compressedLine, lineBytes) : line);
+        String lineText = lineFields.getString("text");
+        String lineTranslatedText = lineFields.getString("translated-text");
+        if (lineTranslatedText == null) {
+            lineTranslatedText = "";
+        }
+        language = getLanguage(lineFields);
+        if (lineFields.isNewStyle() && lineFields.has("isi-events")) {
+            logger.info("Found isi-events object in corpus line");
+            events = Event.getEventsFromJSON((JSONArray) lineFields.parseValue("isi-events"));
+        } else {
+            events = new ArrayList<>();
+        }
+        List<SentenceRange> lineSentences = hasLineSentences(lineFields, language)
+                ? getSentencesFromLine(lineFields, lineText) : null;
+        line = null;
+        compressedLine = null;
+        if (compact) {
+            byte[] bytes = lineText.getBytes(StandardCharsets.UTF_8);
+            textBytes = bytes.length;
+            compressedText = compress(bytes);
+            if (!lineTranslatedText.isEmpty()) {
+                bytes = lineTranslatedText.getBytes(StandardCharsets.UTF_8);
+                translatedTextBytes = bytes.length;
+                compressedTranslatedText = compress(bytes);
+            }
+            if (lineSentences != null) {
+                sentenceTriples = toTriples(lineSentences);
+            }
+        } else {
+            text = lineText;
+            translatedText = lineTranslatedText;
+            sentences = lineSentences;
+        }
+    }
+
+    public synchronized String getText() {
+        unpack();
+        if (compressedText != null) {
+            return decompress(compressedText, textBytes);
+        }
         return text;
     }
 
-    public String getTranslatedText() {
+    public synchronized String getTranslatedText() {
+        unpack();
+        if (compressedText != null) {
+            return compressedTranslatedText == null ? ""
+                    : decompress(compressedTranslatedText, translatedTextBytes);
+        }
         return translatedText;
     }
 
-    public List<SentenceRange> getSentences() {
+    public synchronized List<SentenceRange> getSentences() {
+        unpack();
+        if (lazy && sentences == null && sentenceTriples == null) {
+            List<SentenceRange> segmented = new ArrayList<>();
+            Document.getSentenceRangesFromText(docid, getText(), language, segmented);
+            setSentences(segmented);
+            return segmented;
+        }
+        if (compressedText != null) {
+            return fromTriples(sentenceTriples, getText());
+        }
         return sentences;
     }
 
-    public List<Event> getEvents() {
+    /**
+     * Tells whether getSentences() would have to call a sentence segmenter: these are lazy details whose
+     * sentences have not been worked out yet, and the line has no sentence metadata to take them from.
+     * A compressed line is taken apart now, since its compressed blocks take up no more room than it does, so
+     * it is decompressed just this once. An uncompressed line is only checked, and taken apart only if it
+     * needs segmenting, since the caller is about to ask for its text and language.
+     * @return true if the sentences need segmenting
+     */
+    synchronized boolean needsSegmenting() {
+        if (!lazy) {
+            return false;
+        }
+        if (line != null) {
+            CorpusLineFields lineFields = new CorpusLineFields(line);
+            if (hasLineSentences(lineFields, getLanguage(lineFields))) {
+                return false;
+            }
+        }
+        unpack();
+        return sentences == null && sentenceTriples == null;
+    }
+
+    /**
+     * Sets the sentences of lazy details, worked out by the caller for many documents at once.
+     * @param segmented the sentences
+     */
+    synchronized void setSentences(List<SentenceRange> segmented) {
+        unpack();
+        if (compressedText != null) {
+            sentenceTriples = toTriples(segmented);
+        } else {
+            sentences = segmented;
+        }
+    }
+
+    /**
+     * Gets the sentences from the line's segment-sections, the same way Document.doALine always has.
+     */
+    private static List<SentenceRange> getSentencesFromLine(CorpusLineFields lineFields, String docText) {
+        List<SentenceRange> lineSentences = new ArrayList<>();
+        JSONArray segment_sections = (JSONArray) lineFields.parseValue("segment-sections");
+        int id = 0;
+        for (Object oSection : segment_sections) {
+            ++id;
+            JSONObject segment_section = (JSONObject) oSection;
+            long start = (long) segment_section.get("start");
+            long end = (long) segment_section.get("end");
+            String sentenceText = "";
+            try {
+                sentenceText = docText.substring((int) start, (int) end);
+            } catch (IndexOutOfBoundsException e) {
+                System.out.println("ERROR: sentence boundaries not right");
+                System.out.println("Start: " + start + ", End: " + end);
+                System.out.println("Length of text: " + docText.length());
+                System.out.println(docText);
+            }
+            lineSentences.add(new SentenceRange(id, (int) start, (int) end, sentenceText));
+        }
+        return lineSentences;
+    }
+
+    public synchronized List<Event> getEvents() {
+        unpack();
         return events;
     }
 
-    public String getLanguage() {
+    public synchronized String getLanguage() {
+        unpack();
         return language;
     }
+
+    /**
+     * Returns the approximate number of bytes this document's text takes up in memory:
+     * the compressed blocks in compact mode, or the UTF-16 text and translated text otherwise.
+     * In the lazy mode it is the compressed line in compact mode, or otherwise twice the line, since the text
+     * and sentences taken out of it take up about as much again. The weight does not change once the
+     * details are made, so the document cache's accounting stays right when the line is taken apart.
+     * @return the weight of this document, in bytes
+     */
+    public long getWeight() {
+        if (lazy) {
+            return lazyWeight;
+        }
+        if (compressedText != null) {
+            return compressedText.length + (compressedTranslatedText == null ? 0 : compressedTranslatedText.length)
+                    + 4L * sentenceTriples.length;
+        }
+        return 2L * ((text == null ? 0 : text.length()) + (translatedText == null ? 0 : translatedText.length()));
+    }
 }
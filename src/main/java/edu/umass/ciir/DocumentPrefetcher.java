@@ -0,0 +1,72 @@
+package edu.umass.ciir;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * Plans which documents the coming stages of a run will need, so they can all be loaded in one pass over
+ * each corpus instead of one pass per stage.
+ * Stages plan their needs as soon as they know them (the top hits of a request run, for example, are known
+ * as soon as the run file exists). The next time Document has to go to a corpus for documents that are
+ * not loaded yet, it takes the planned documents for that corpus along with the ones it was asked for,
+ * so when the later stages ask for their documents, they are already loaded and no corpus pass is needed.
+ * Planned documents that the document cache later evicts are reloaded one by one when they are asked for,
+ * as any evicted document is.
+ */
+public class DocumentPrefetcher {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    /* The key is the corpus file, the value is the docids planned for it */
+    private static final Map<String, Set<String>> planned = new ConcurrentHashMap<>();
+
+    /**
+     * Plans to load some documents from a corpus file.
+     * @param corpus the corpus file
+     * @param docids the docids
+     */
+    public static void plan(String corpus, Collection<String> docids) {
+        planned.computeIfAbsent(corpus, c -> ConcurrentHashMap.newKeySet()).addAll(docids);
+    }
+
+    /**
+     * Plans to load some documents from the target corpus.
+     * @param docids the docids
+     */
+    public static void planTargetDocs(Collection<String> docids) {
+        plan(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName, docids);
+    }
+
+    /**
+     * Plans to load some documents from the English corpus, if there is one.
+     * @param docids the docids
+     */
+    public static void planEnglishDocs(Collection<String> docids) {
+        if (!Pathnames.englishCorpusFileName.isEmpty()) {
+            plan(Pathnames.corpusFileLocation + Pathnames.englishCorpusFileName, docids);
+        }
+    }
+
+    /**
+     * Takes the documents planned for a corpus file, so the caller can load them. They are no longer planned.
+     * @param corpus the corpus file
+     * @return the planned docids, possibly empty
+     */
+    static Set<String> takePlanned(String corpus) {
+        Set<String> docids = planned.remove(corpus);
+        if (docids == null) {
+            return Collections.emptySet();
+        }
+        logger.info("Prefetching " + docids.size() + " planned docs from corpus file " + corpus);
+        return docids;
+    }
+
+    /**
+     * Loads all the planned documents now, one pass per corpus file.
+     */
+    public static void fetchPlanned() {
+        for (String corpus : new ArrayList<>(planned.keySet())) {
+            Document.loadPlanned(corpus);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package edu.umass.ciir;
+
+import org.lemurproject.galago.core.retrieval.Results;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.RetrievalFactory;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Runs Galago query files in this JVM, in place of "galago batch-search" and "galago threaded-batch-search"
+ * commands, each of which starts a JVM, opens its indexes and warms their caches anew.
+ * The Retrieval for a long-lived index (a full index, or one with its delta indexes) is opened the first
+ * time it is searched and kept open for the rest of the process. The Retrieval for a task-level group of
+ * indexes ({partial, full}) is opened for the one query file that searches it and closed after, since each
+ * task has its own and there are more of them in a run than are worth keeping open.
+ * The queries of every query file are run on one pool of Pathnames.galagoSearchThreads threads, shared by all
+ * the callers, so callers running query files in parallel (one per task, say) do not add up to more than that
+ * many searching threads.
+ * The search parameters are the ones the batch-search command line would have had (index, requested,
+ * defaultTextPart and so on), and the run file is written as batch-search writes it, the queries in the
+ * order of the query file.
+ */
+public class GalagoRetrievalService {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    /* The key is the "index" search parameter, with the index paths resolved */
+    private static final Map<String, Retrieval> retrievals = new ConcurrentHashMap<>();
+    private static ExecutorService searchers = null;
+
+    /**
+     * Resolves an index path to the directory it names, following symbolic links (a cached task-level
+     * index, for one, is a link), so that a path that is made to point somewhere else gets its own Retrieval.
+     * @param indexPath the index path
+     * @return the real path, or the path as it is if it does not exist
+     */
+    public static String resolve(String indexPath) {
+        try {
+            return Paths.get(indexPath).toRealPath().toString();
+        } catch (IOException e) {
+            return indexPath;
+        }
+    }
+
+    /**
+     * Returns the open Retrieval for some search parameters' "index", opening it the first time.
+     * @param parameters the search parameters, with the index paths resolved
+     * @return the Retrieval
+     */
+    public static Retrieval getSearchRetrieval(Parameters parameters) {
+        return retrievals.computeIfAbsent(String.valueOf(parameters.get("index")), index -> {
+            try {
+                Instant start = Instant.now();
+                Retrieval retrieval = RetrievalFactory.create(parameters);
+                logger.info("Opened Galago index " + index + " in "
+                        + Duration.between(start, Instant.now()).toMillis() + " ms");
+                return retrieval;
+            } catch (Exception cause) {
+                throw new TasksRunnerException(cause);
+            }
+        });
+    }
+
+    /**
+     * Returns the open Retrieval for one index, opening it the first time.
+     * @param indexPath the index path
+     * @return the Retrieval
+     */
+    public static Retrieval getRetrieval(String indexPath) {
+        Parameters parameters = Parameters.create();
+        parameters.set("index", resolve(indexPath));
+        return getSearchRetrieval(parameters);
+    }
+
+    private static synchronized ExecutorService getSearchers() {
+        if (searchers == null) {
+            searchers = Executors.newFixedThreadPool(Pathnames.galagoSearchThreads, runnable -> {
+                Thread thread = new Thread(runnable, "galago-search");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return searchers;
+    }
+
+    /**
+     * Runs a query file on a long-lived index, as batch-search would with the same parameters, keeping the
+     * index's Retrieval open for the next query file.
+     * @param parameters makes a new copy of the search parameters each time it is called, one for each query
+     * @param queryFileName the query file, {"queries": [{"number": ..., "text": ...}, ...]}
+     * @param runFileName the run file to write
+     * @param systemName the system name for the run file
+     */
+    public static void search(Supplier<Parameters> parameters, String queryFileName, String runFileName,
+                              String systemName) {
+        Instant start = Instant.now();
+        Retrieval retrieval = getSearchRetrieval(parameters.get());
+        search(retrieval, parameters, queryFileName, runFileName, systemName, start);
+    }
+
+    /**
+     * Runs a query file on a group of indexes searched by this query file only, such as a task-level
+     * {partial, full} group, as batch-search would with the same parameters. The group's Retrieval is
+     * opened for it and closed after.
+     * @param parameters makes a new copy of the search parameters each time it is called, one for each query
+     * @param queryFileName the query file, {"queries": [{"number": ..., "text": ...}, ...]}
+     * @param runFileName the run file to write
+     * @param systemName the system name for the run file
+     */
+    public static void searchOnce(Supplier<Parameters> parameters, String queryFileName, String runFileName,
+                                  String systemName) {
+        Instant start = Instant.now();
+        Retrieval retrieval;
+        try {
+            retrieval = RetrievalFactory.create(parameters.get());
+        } catch (Exception cause) {
+            throw new TasksRunnerException(cause);
+        }
+        try {
+            search(retrieval, parameters, queryFileName, runFileName, systemName, start);
+        } finally {
+            try {
+                retrieval.close();
+            } catch (IOException e) {
+                logger.warning("Could not close the Galago index for " + queryFileName + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static void search(Retrieval retrieval, Supplier<Parameters> parameters, String queryFileName,
+                               String runFileName, String systemName, Instant start) {
+        Instant searchStart = Instant.now();
+        Map<String, String> queries = new GalagoSearchEngine().getQueries(queryFileName);
+        if (queries.isEmpty()) {
+            throw new TasksRunnerException("No queries in query file " + queryFileName);
+        }
+        /* In the order of the query file, which getQueries() keeps */
+        Map<String, Future<List<String>>> results = new LinkedHashMap<>();
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            results.put(query.getKey(), getSearchers().submit(() ->
+                    runQuery(retrieval, parameters.get(), query.getKey(), query.getValue(), systemName)));
+        }
+        long hits = 0;
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(runFileName), StandardCharsets.UTF_8)))) {
+            for (Future<List<String>> result : results.values()) {
+                for (String line : ParallelTasks.get(result)) {
+                    writer.println(line);
+                    ++hits;
+                }
+            }
+        } catch (IOException cause) {
+            throw new TasksRunnerException(cause);
+        } finally {
+            ParallelTasks.cancelAll(results.values());
+        }
+        long millis = Math.max(1, Duration.between(start, Instant.now()).toMillis());
+        logger.info(String.format("Ran %d queries from %s in %d ms (%d ms opening the index), %.1f queries/sec,"
+                        + " %d hits to %s", queries.size(), queryFileName, millis,
+                Duration.between(start, searchStart).toMillis(), queries.size() * 1000.0 / millis, hits,
+                runFileName));
+    }
+
+    /* Runs one query, returning its run file lines */
+    private static List<String> runQuery(Retrieval retrieval, Parameters parameters, String queryNumber,
+                                         String queryText, String systemName) throws Exception {
+        Node root = StructuredQuery.parse(queryText);
+        Node transformed = retrieval.transformQuery(root, parameters);
+        Results results = retrieval.executeQuery(transformed, parameters);
+        List<String> lines = new ArrayList<>(results.scoredDocuments.size());
+        for (ScoredDocument document : results.scoredDocuments) {
+            if (document.documentName == null) {
+                document.documentName = retrieval.getDocumentName(document.document);
+            }
+            lines.add(document.toTRECformat(queryNumber, systemName));
+        }
+        return lines;
+    }
+}
@@ -3,16 +3,28 @@ package edu.umass.ciir;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.ScoredDocument;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.tools.apps.BuildIndex;
+import org.lemurproject.galago.core.tools.apps.BuildPartialIndex;
+import org.lemurproject.galago.utility.Parameters;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 public class GalagoSearchEngine implements SearchEngineInterface {
@@ -23,6 +35,14 @@ public class GalagoSearchEngine implements SearchEngineInterface {
      * The key is the normalized language, the value is a PrintWriter ready to write to the file for that language
      */
     private Map<String,PrintWriter> printWriterMap = new HashMap<>();
+    /* The next trectext ID to give out, one past the highest written so far, or the first ID preprocess()
+       was given if it has written none, so a delta build with no new docs keeps the manifest's next ID */
+    private final AtomicLong nextId = new AtomicLong(1);
+    /* The key is the language, the value is the number of docs written to its trectext file */
+    private final Map<String, AtomicLong> languageDocs = new ConcurrentHashMap<>();
+    /* How many index builds run at once, and the parallel splits of each, set by planIndexBuilds() */
+    private int concurrentBuilds = 1;
+    private int buildSplits = 1;
 
 /*
     public GalagoSearchEngine(String indexType) {
@@ -37,6 +57,8 @@ public class GalagoSearchEngine implements SearchEngineInterface {
      * using the specified number of Galago batch threads,
      * requesting the specified number of scoredHits, producing the specified runfile, using
      * the specified PARTIAL index.
+     * If Pathnames.inProcessSearch is set, the queryfile is run in this JVM by GalagoRetrievalService instead,
+     * on its shared thread pool, and threadCount is not used.
      *
      * @param threadCount number of threads galago threaded-batch-search should use
      * @param N the number of hits to fetch
@@ -46,8 +68,26 @@ public class GalagoSearchEngine implements SearchEngineInterface {
     public void executeAgainstPartialIndex(int threadCount, int N, String theQueryFileName,
                                             String theRunFileName, String taskNum, String submissionId, String language,
                                             String taskLevelIndexName) {
-        // TBD: change this to use the library instead of the CLI
         Instant start = Instant.now();
+        if (Pathnames.inProcessSearch) {
+            GalagoRetrievalService.searchOnce(() -> {
+                Parameters index = Parameters.create();
+                index.set("partial", GalagoRetrievalService.resolve(Pathnames.indexLocation + "galago/"
+                        + taskLevelIndexName));
+                index.set("full", GalagoRetrievalService.resolve(Pathnames.indexLocation
+                        + "galago/better-clear-ir-" + language));
+                Parameters parameters = Parameters.create();
+                parameters.set("index", index);
+                parameters.set("defaultIndexPart", "partial");
+                parameters.set("backgroundIndex", "full");
+                if (!Pathnames.runGetCandidateDocs && (language.equals("arabic") || language.equals("russian"))) {
+                    parameters.set("defaultTextPart", "postings.snowball");
+                }
+                parameters.set("requested", N);
+                return parameters;
+            }, theQueryFileName, theRunFileName, "CLEAR");
+            return;
+        }
 
         String command = "galago threaded-batch-search";
         if (threadCount == 1) {
@@ -70,30 +110,189 @@ public class GalagoSearchEngine implements SearchEngineInterface {
         Command.execute(tempCommand, galagoLogFile);
     }
 
+    /**
+     * Executes the specified queryfile on a task's candidate docs with an InMemoryTaskIndex, producing the
+     * specified runfile, as executeAgainstPartialIndex() would with a partial index built on the candidates,
+     * but without building one.
+     * @param N the number of hits to fetch
+     * @param theQueryFileName the query file name
+     * @param theRunFileName the run file name
+     * @param taskNum the task
+     * @param language the language
+     * @param docids the task's candidate docs
+     * @return false, having done nothing, if a query uses an operator InMemoryTaskIndex cannot evaluate,
+     * so the caller should build a partial index and use executeAgainstPartialIndex()
+     */
+    public boolean executeAgainstTaskDocs(int N, String theQueryFileName, String theRunFileName, String taskNum,
+                                          String language, List<String> docids) {
+        Instant start = Instant.now();
+        checkNoDeltaIndexes(language);
+        Retrieval fullIndex = GalagoRetrievalService.getRetrieval(Pathnames.indexLocation + "galago/better-clear-ir-" + language);
+        Parameters queryParams = Parameters.create();
+        queryParams.set("requested", N);
+        if (!Pathnames.runGetCandidateDocs && (language.equals("arabic") || language.equals("russian"))) {
+            queryParams.set("defaultTextPart", "postings.snowball");
+        }
+        Map<String, String> queries = getQueries(theQueryFileName);
+        Map<String, Node> transformed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> query : queries.entrySet()) {
+            Node node = InMemoryTaskIndex.transform(fullIndex, query.getValue(), queryParams);
+            if (!InMemoryTaskIndex.isSupported(node, language)) {
+                logger.info("Query " + query.getKey() + " of task " + taskNum + " cannot be run in memory: "
+                        + node);
+                return false;
+            }
+            transformed.put(query.getKey(), node);
+        }
+        Instant indexStart = Instant.now();
+        InMemoryTaskIndex taskIndex = new InMemoryTaskIndex(fullIndex, language, docids);
+        Instant searchStart = Instant.now();
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(theRunFileName), StandardCharsets.UTF_8)))) {
+            for (Map.Entry<String, Node> query : transformed.entrySet()) {
+                int rank = 0;
+                for (InMemoryTaskIndex.Result result : taskIndex.search(query.getValue(), N)) {
+                    /* Formatted the way batch-search formats its run lines */
+                    ScoredDocument document = new ScoredDocument();
+                    document.documentName = result.name;
+                    document.rank = ++rank;
+                    document.score = result.score;
+                    writer.println(document.toTRECformat(query.getKey(), "CLEAR"));
+                }
+            }
+        } catch (IOException cause) {
+            throw new TasksRunnerException(cause);
+        }
+        Instant end = Instant.now();
+        logger.info(String.format("Task %s: %d queries on %d candidate docs in memory in %d ms"
+                        + " (queries transformed in %d ms, index built in %d ms, searched in %d ms)",
+                taskNum, transformed.size(), taskIndex.getDocumentCount(), Duration.between(start, end).toMillis(),
+                Duration.between(start, indexStart).toMillis(), Duration.between(indexStart, searchStart).toMillis(),
+                Duration.between(searchStart, end).toMillis()));
+        return true;
+    }
+
+    /**
+     * Returns how many task-level partial indexes to build at once: no more than Pathnames.partialIndexThreads,
+     * and no more than leave each build Pathnames.partialIndexMemoryMB of three quarters of the heap.
+     * @param tasks the number of partial indexes to build
+     * @return the number to build at once, at least 1
+     */
+    public static int getConcurrentPartialIndexBuilds(int tasks) {
+        long availableMB = Runtime.getRuntime().maxMemory() / 1048576 * 3 / 4;
+        return (int) Math.max(1, Math.min(Math.min(tasks, Pathnames.partialIndexThreads),
+                availableMB / Pathnames.partialIndexMemoryMB));
+    }
+
+    /**
+     * Task-level searches use the main index only, so a language with delta indexes would silently lose
+     * their documents. TasksRunner rebuilds the indexes before a two-step run instead (unless the index build
+     * is skipped), so this should not happen.
+     * @param language the language
+     * @throws TasksRunnerException if the language has delta indexes
+     */
+    private static void checkNoDeltaIndexes(String language) {
+        IndexDocidManifest manifest = IndexDocidManifest.load();
+        if (manifest != null && !manifest.getDeltaIndexes(language).isEmpty()) {
+            throw new TasksRunnerException("The " + language + " index has delta indexes, whose documents"
+                    + " cannot be in task-level indexes; rebuild the target indexes first");
+        }
+    }
+
+    /**
+     * Checks a task's document list against the full index, and if some of the documents are not in it
+     * (the corpus changed after it was built, say), writes a list of just the ones that are, and returns that.
+     * @return the document list file to build from
+     */
+    private String checkDocumentNameList(String taskID, String indexName, String documentNameList) {
+        try {
+            Retrieval retrieval = GalagoRetrievalService.getRetrieval(indexName);
+            List<String> names = Files.readAllLines(Paths.get(documentNameList), StandardCharsets.UTF_8);
+            List<String> found = new ArrayList<>(names.size());
+            for (String name : names) {
+                Long id = name.isEmpty() ? null : retrieval.getDocumentId(name);
+                if (id != null && id >= 0) {
+                    found.add(name);
+                }
+            }
+            if (found.size() == names.size()) {
+                return documentNameList;
+            }
+            logger.warning((names.size() - found.size()) + " of the " + names.size() + " documents for task "
+                    + taskID + " are not in " + indexName + ", so they will not be in its task-level index");
+            String foundList = documentNameList + ".found";
+            Files.write(Paths.get(foundList), found, StandardCharsets.UTF_8);
+            return foundList;
+        } catch (IOException cause) {
+            throw new TasksRunnerException(cause);
+        }
+    }
+
     /**
      * Builds a Galago partial index on the top scoredHits for this task.
+     * The build is a "galago build-partial-index" command, unless Pathnames.inProcessIndexBuild is set, in
+     * which case it runs in this JVM through Galago's BuildPartialIndex. Either way the document list is
+     * first checked against the full index, to leave out documents that are not in it. The Retrieval used for
+     * that check is opened once and shared by all the tasks' builds, but it only filters the document lists:
+     * each build still opens the full index itself, to copy from it. Callers should run no
+     * more builds at once than getConcurrentPartialIndexBuilds() says.
+     * If an index was built before from the same full index, documents and settings, it is reused instead
+     * (see PartialIndexCache).
      * @param taskID the task ID
      */
     public void buildTaskPartialIndex(String taskID, String submissionId, String indexName, String documentNameList,
                                       String taskLevelIndexName, String language, String taskLevelConfFile) {
-        createGalagoPartialIndexConfFile(taskID, language, taskLevelConfFile);
+        Instant start = Instant.now();
+        checkNoDeltaIndexes(language);
+        String configuration = createGalagoPartialIndexConfFile(taskID, language, taskLevelConfFile);
+        String checkedDocumentNameList = checkDocumentNameList(taskID, indexName, documentNameList);
+        String partialIndex = Pathnames.indexLocation + "galago/" + taskLevelIndexName;
+
+        if (PartialIndexCache.isEnabled()) {
+            PartialIndexCache.getOrBuild(PartialIndexCache.getKey(indexName, checkedDocumentNameList, configuration),
+                    partialIndex, taskID, path -> buildPartialIndex(taskID, submissionId, indexName,
+                            checkedDocumentNameList, path, taskLevelConfFile));
+        } else {
+            buildPartialIndex(taskID, submissionId, indexName, checkedDocumentNameList, partialIndex,
+                    taskLevelConfFile);
+        }
+        logger.info(String.format("Task-level index for task %s ready in %.1f seconds", taskID,
+                Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0));
+    }
 
-        String galagoLogFile = Pathnames.logFileLocation + submissionId + ".galago_" + taskID + "_indexbuild.log";
-        String tempCommand = Pathnames.galagoLocation + "galago build-partial-index --documentNameList=" +
-                documentNameList +
-                " --index=" + indexName +
-                " --partialIndex=" + Pathnames.indexLocation + "galago/" + taskLevelIndexName
-                + " " + taskLevelConfFile;  // this is the way to specify fields for a partial index build
+    private void buildPartialIndex(String taskID, String submissionId, String indexName, String documentNameList,
+                                   String partialIndex, String taskLevelConfFile) {
+        if (Pathnames.inProcessIndexBuild) {
+            try (PrintStream progress = new PrintStream(new LogOutputStream("Galago task " + taskID
+                    + " partial index build: "), true, "UTF-8")) {
+                Parameters parameters = Parameters.parseFile(new File(taskLevelConfFile));
+                parameters.set("documentNameList", documentNameList);
+                parameters.set("index", indexName);
+                parameters.set("partialIndex", partialIndex);
+                new BuildPartialIndex().run(parameters, progress);
+            } catch (Exception cause) {
+                throw new TasksRunnerException(cause);
+            }
+        } else {
+            String galagoLogFile = Pathnames.logFileLocation + submissionId + ".galago_" + taskID + "_indexbuild.log";
+            String tempCommand = Pathnames.galagoLocation + "galago build-partial-index --documentNameList=" +
+                    documentNameList +
+                    " --index=" + indexName +
+                    " --partialIndex=" + partialIndex
+                    + " " + taskLevelConfFile;  // this is the way to specify fields for a partial index build
 
-        Command.execute(tempCommand, galagoLogFile);
+            Command.execute(tempCommand, galagoLogFile);
+        }
     }
 
     /**
      * Creates a Galago config file specifying the parameters for building the index
      * for this task's top scoredHits. This is the version to be used when building a PARTIAL index.
      * @param taskID the task ID
+     * @return the settings that change what is indexed (the stemmers and the tokenizer), for the
+     * partial index cache's key
      */
-    private void createGalagoPartialIndexConfFile(String taskID, String language, String taskLevelConfFile) {
+    private String createGalagoPartialIndexConfFile(String taskID, String language, String taskLevelConfFile) {
         try {
             JSONObject outputQueries = new JSONObject();
             outputQueries.put("mode", "local" );
@@ -133,12 +332,14 @@ public class GalagoSearchEngine implements SearchEngineInterface {
             outputQueries.put("tokenizer", tokenizer);
             outputQueries.put("galagoJobDir", Pathnames.galagoJobDirLocation + taskID);
             outputQueries.put("deleteJobDir", true);
-            outputQueries.put("mem", "40g");
+            outputQueries.put("mem", Pathnames.partialIndexMemoryMB + "m");
 
             PrintWriter writer = new PrintWriter(new OutputStreamWriter(
                     new FileOutputStream(taskLevelConfFile)));
             writer.write(outputQueries.toJSONString());
             writer.close();
+            return "fieldIndex=true stemmer=" + stemmerList + " stemmerClass=" + new TreeMap<>(stemmerClass)
+                    + " tokenizer=" + fields + " " + new TreeMap<>(formats);
         } catch (Exception cause) {
             throw new TasksRunnerException(cause);
         }
@@ -152,6 +353,11 @@ public class GalagoSearchEngine implements SearchEngineInterface {
      * using the specified number of Galago batch threads,
      * requesting the specified number of scoredHits, producing the specified runfile, using
      * the specified index.
+     * If the language has delta indexes (see buildDeltaIndexes()), they are searched along with the main
+     * index, as one collection: Galago adds up the collection statistics of all the indexes it is given
+     * before scoring, so documents score the same as they would in one index built from all of them.
+     * If Pathnames.inProcessSearch is set, the queryfile is run in this JVM by GalagoRetrievalService instead,
+     * on its shared thread pool, and threadCount is not used.
      *
      * @param threadCount the number of threads galago threaded-batch-search should use
      * @param N the number of hits to fetch
@@ -169,10 +375,42 @@ public class GalagoSearchEngine implements SearchEngineInterface {
         if (!Pathnames.runGetCandidateDocs && (language.equals("arabic")) || language.equals("russian")) {
             arabicParm = "--defaultTextPart=postings.snowball ";
         }
+        String indexParm = "--index=" + Pathnames.indexLocation + "galago/better-clear-ir-" + language;
+        IndexDocidManifest manifest = IndexDocidManifest.load();
+        if (manifest != null && !manifest.getDeltaIndexes(language).isEmpty()) {
+            indexParm = "--index+" + Pathnames.indexLocation + "galago/better-clear-ir-" + language;
+            for (String deltaIndex : manifest.getDeltaIndexes(language)) {
+                indexParm += " --index+" + deltaIndex;
+            }
+        }
+        if (Pathnames.inProcessSearch) {
+            logger.info("Run file will be  " + theRunFileName);
+            boolean snowball = !arabicParm.isEmpty();
+            GalagoRetrievalService.search(() -> {
+                Parameters parameters = Parameters.create();
+                if (manifest != null && !manifest.getDeltaIndexes(language).isEmpty()) {
+                    List<String> indexes = new ArrayList<>();
+                    indexes.add(GalagoRetrievalService.resolve(Pathnames.indexLocation + "galago/better-clear-ir-"
+                            + language));
+                    for (String deltaIndex : manifest.getDeltaIndexes(language)) {
+                        indexes.add(GalagoRetrievalService.resolve(deltaIndex));
+                    }
+                    parameters.set("index", indexes);
+                } else {
+                    parameters.set("index", GalagoRetrievalService.resolve(Pathnames.indexLocation
+                            + "galago/better-clear-ir-" + language));
+                }
+                if (snowball) {
+                    parameters.set("defaultTextPart", "postings.snowball");
+                }
+                parameters.set("requested", N);
+                return parameters;
+            }, theQueryFileName, theRunFileName, "CLEAR");
+            return;
+        }
         String tempCommand = Pathnames.galagoLocation + command
                 + " --outputFile=" + theRunFileName + " --threadCount=" + threadCount
-                + " --systemName=CLEAR " + arabicParm + "--trec=true --index=" + Pathnames.indexLocation
-                      + "galago/better-clear-ir-" + language
+                + " --systemName=CLEAR " + arabicParm + "--trec=true " + indexParm
                 + " --requested=" + N + " " + theQueryFileName;
 
         logger.info("Run file will be  " + theRunFileName);
@@ -180,14 +418,14 @@ public class GalagoSearchEngine implements SearchEngineInterface {
         Command.execute(tempCommand, galagoLogFile);
     }
 
-    private String mustContainString(JSONObject json, String objectName, int lineNo) {
+    private String mustContainString(JSONObject json, String objectName, long lineNo) {
         if (!json.containsKey(objectName)) {
             throw new TasksRunnerException("No " + objectName + " field in corpus file, line " + lineNo);
         }
         return (String) json.get(objectName);
     }
 
-    private JSONObject mustContainObject(JSONObject json, String objectName, int lineNo) {
+    private JSONObject mustContainObject(JSONObject json, String objectName, long lineNo) {
         if (!json.containsKey(objectName)) {
             throw new TasksRunnerException("No " + objectName + " field in corpus file, line " + lineNo);
         }
@@ -195,7 +433,8 @@ public class GalagoSearchEngine implements SearchEngineInterface {
     }
 
     public Map<String, String> getQueries(String queryFileName) {
-        Map<String, String> queriesMap = new HashMap<>();
+        /* In the order of the query file */
+        Map<String, String> queriesMap = new LinkedHashMap<>();
         File f = new File(queryFileName);
         if (f.exists()) {
             try {
@@ -219,109 +458,274 @@ public class GalagoSearchEngine implements SearchEngineInterface {
     }
 
 
+    private static final CjkTokenizer BIGRAM_TOKENIZER = new CjkTokenizer(CjkTokenizer.Mode.BIGRAM);
+
+    /* Corpus lines are handed to the worker pool this many at a time */
+    private static final int PREPROCESS_BATCH_SIZE = 1024;
+    /* Docs/sec is logged each time this many more docs have been written */
+    private static final long PREPROCESS_PROGRESS_DOCS = 100000;
+
+    /**
+     * One document, formatted for the trectext file except for its ID, which is only known once
+     * duplicates have been dropped, in corpus order.
+     */
+    private static class TrecDoc {
+        final String uuid;
+        final String language;
+        final String afterId;
+
+        TrecDoc(String uuid, String language, String afterId) {
+            this.uuid = uuid;
+            this.language = language;
+            this.afterId = afterId;
+        }
+    }
+
     /**
      * @author dfisher (originally)
      * Reads in the corpus file, which is a JSON file that has a BETTER-specific schema,
-     * and outputs the documents in the trectext format, suitable for indexing by Galago.
+     * and outputs the documents in the trectext format, suitable for indexing by Galago,
+     * in one pass: the EXID field (see below) is written along with the rest of each document.
+     * The lines are parsed and formatted on a pool of Pathnames.preprocessThreads worker threads,
+     * and written out in corpus order.
+     * If the corpus has been split into shards (see CorpusShards), the shards are converted concurrently,
+     * each to its own files, and then each language's files are concatenated in shard order.
+     * Only one copy of a docid that is in the corpus more than once is written: the first copy in corpus
+     * order, as it always was. For a sharded corpus, the shards' docids are found first (see
+     * findShardDuplicates()), so each shard knows which of its lines to leave out before any are written,
+     * and the copy kept does not depend on which shard gets to it first.
+     * @param inputFile the corpus file
+     * @param ids gets the docids written, and on entry holds any docids not to write
+     * @param indexed docids already in the indexes, whose lines are skipped without being parsed, or null
+     * @param firstId the trectext ID of the first line of the corpus file
      */
-    private void betterToTrec (String inputFile) {
+    private void betterToTrec (String inputFile, Set<String> ids, Set<String> indexed, long firstId) {
+        List<CorpusShards.Shard> shards = CorpusShards.getShardsOrCorpus(inputFile);
+        ExecutorService workers = Executors.newFixedThreadPool(Pathnames.preprocessThreads);
+        AtomicLong docsWritten = new AtomicLong();
+        Instant start = Instant.now();
+        List<Map<String, PrintWriter>> shardWriterMaps;
         try {
-            // Some corpora have duplicates, index only one
-            Set<String> ids = new HashSet<>();
-
-            JSONParser parser = new JSONParser();
-            BufferedReader rdr = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile)));
-            String line;
-            int lineNo = 1;
-            while ((line = rdr.readLine()) != null) {
-                JSONObject json = (JSONObject) parser.parse(line);
-                JSONObject derived_metadata = mustContainObject(json, "derived-metadata", lineNo);
-                String uuid = mustContainString(derived_metadata, "id", lineNo);
-                String text = mustContainString(derived_metadata, "text", lineNo);
-                String language = mustContainString(derived_metadata, "language", lineNo);
-                language = SearchEngineInterface.toCanonicalForm(language);
-                if (!ids.contains(uuid)) {
-                    ids.add(uuid);
-                    if (!printWriterMap.containsKey(language)) {
-                        printWriterMap.put(language, new PrintWriter(Pathnames.tempFileLocation + language + ".jl.out"));
-                    }
-                    PrintWriter writer = printWriterMap.get(language);
-
-                    writer.println("<DOC>\n<DOCNO>" + uuid + "</DOCNO>\n<ID>" + lineNo + "</ID>\n<TEXT>");
-
-                    if (language.equals("chinese")) {
-                        text = bigramIt(text);
+            if (shards.size() == 1) {
+                shardWriterMaps = Collections.singletonList(betterToTrec(shards.get(0), "", ids, null, indexed,
+                        firstId, workers, docsWritten, start));
+            } else {
+                List<ShardDuplicates> duplicates = findShardDuplicates(shards, ids, indexed);
+                shardWriterMaps = IntStream.range(0, shards.size()).parallel()
+                        .mapToObj(i -> betterToTrec(shards.get(i), String.format(".shard-%04d", i), null,
+                                duplicates.get(i), indexed, firstId, workers, docsWritten, start))
+                        .collect(Collectors.toList());
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        logProgress(docsWritten.get(), start);
+        for (Map<String, PrintWriter> shardWriterMap : shardWriterMaps) {
+            printWriterMap.putAll(shardWriterMap);
+        }
+        if (shards.size() > 1) {
+            for (String language : printWriterMap.keySet()) {
+                try (OutputStream out = new FileOutputStream(Pathnames.tempFileLocation + language + ".trectext")) {
+                    for (int i = 0; i < shards.size(); ++i) {
+                        Path part = Paths.get(Pathnames.tempFileLocation + language
+                                + String.format(".shard-%04d", i) + ".trectext");
+                        if (Files.exists(part)) {
+                            Files.copy(part, out);
+                            Files.delete(part);
+                        }
                     }
-                    writer.println(text);
-                    writer.println("</TEXT>\n</DOC>");
-                    ++lineNo;
+                } catch (IOException cause) {
+                    throw new TasksRunnerException(cause);
                 }
             }
-            for (PrintWriter writer : printWriterMap.values()) {
-                writer.close();
-            }
-        } catch (Exception cause) {
-            throw new TasksRunnerException(cause);
         }
     }
 
-    public String bigramIt(String rawtext) {
-        String[] sentences = rawtext.split("。");
-        String newText = "";
-        for (String sentence : sentences) {
-            // Remove any whitespace and punctuation
-            String text = sentence.replaceAll("\\p{Punct}", "");
-            text = text.replaceAll("\\s+", "");
-
-            if (text.length() == 1) {
-                newText += text.charAt(0);
-            } else if (text.length() == 2) {
-                newText += text.substring(0, 2);
-            } else {
-                for (int i = 1; i < text.length(); ++i) {
-                    newText += text.substring(i - 1, i + 1);
-                    newText += " ";
+    /* The lines of one shard of the corpus not to write: later copies of a docid whose first copy is earlier in
+       the shard, and every copy of a docid that is in an earlier shard */
+    private static class ShardDuplicates {
+        DocidSet docids = new DocidSet();
+        final Set<Long> laterCopyLines = new HashSet<>();
+        final Set<String> inEarlierShards = new HashSet<>();
+
+        boolean isDuplicate(long corpusLineNo, String docid) {
+            return laterCopyLines.contains(corpusLineNo) || inEarlierShards.contains(docid);
+        }
+    }
+
+    /**
+     * Finds the duplicate lines of each shard of a sharded corpus, reading the shards' docids concurrently,
+     * and then going through the shards in order to see which of their docids are in an earlier shard.
+     * @param shards the shards
+     * @param ids gets the docids to write, and on entry holds any docids not to write
+     * @param indexed docids already in the indexes, whose lines are skipped, or null
+     * @return the duplicates of each shard, in shard order
+     */
+    private static List<ShardDuplicates> findShardDuplicates(List<CorpusShards.Shard> shards, Set<String> ids,
+                                                             Set<String> indexed) {
+        List<ShardDuplicates> duplicates = shards.parallelStream().map(shard -> {
+            ShardDuplicates shardDuplicates = new ShardDuplicates();
+            long corpusLineNo = shard.getFirstDoc();
+            for (CorpusReader.Line corpusLine : new CorpusReader(shard.getFile())) {
+                ++corpusLineNo;
+                String docid = CorpusIdExtractor.getDocid(corpusLine);
+                if (docid != null && (indexed == null || !indexed.contains(docid))
+                        && !shardDuplicates.docids.add(docid)) {
+                    shardDuplicates.laterCopyLines.add(corpusLineNo);
                 }
             }
-            newText += " ";
+            return shardDuplicates;
+        }).collect(Collectors.toList());
+        for (ShardDuplicates shardDuplicates : duplicates) {
+            for (String docid : shardDuplicates.docids) {
+                if (!ids.add(docid)) {
+                    shardDuplicates.inEarlierShards.add(docid);
+                }
+            }
+            shardDuplicates.docids = null;
         }
-        return newText;
+        return duplicates;
+    }
+
+    private static void logProgress(long docs, Instant start) {
+        double seconds = Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0;
+        logger.info(String.format("Preprocessed %d docs in %.1f seconds, %.0f docs/sec", docs, seconds,
+                docs / seconds));
     }
 
     /**
-     * In order to use Galago's #reject operator we add a field to each
-     * document that contains its unique identifier.
+     * Converts one shard of the corpus file to trectext, one file per language.
+     * The shard is read on the calling thread, which hands batches of lines to the workers to parse and
+     * format, and writes each batch out when it is done, in order. At most twice as many batches as there
+     * are workers are in flight at once, so a slow writer holds back the reading instead of filling memory.
+     * The IDs of a shard's documents count up from the corpus line number of the shard's first line,
+     * skipping duplicates, so they are unique across shards (and, if the corpus is not sharded,
+     * they are the same as they always were).
+     * @param shard the shard (or the whole corpus file, if it has not been sharded)
+     * @param suffix added to the output file names, to keep them apart from the other shards' files
+     * @param ids if the corpus is not sharded, gets the docids written, and on entry holds any docids not to
+     * write; otherwise null
+     * @param duplicates if the corpus is sharded, the shard's lines not to write, which are skipped without
+     * being parsed; otherwise null
+     * @param indexed docids already in the indexes, whose lines are skipped without being parsed, or null
+     * @param firstId the trectext ID of the first line of the corpus file
+     * @param workers the threads to parse and format the lines on
+     * @param docsWritten the number of docs written so far, in all shards
+     * @param start when preprocessing started, for the docs/sec figure
+     * @return the writers for the languages found in this shard, which are closed
      */
-    private void addExid () {
+    private Map<String, PrintWriter> betterToTrec(CorpusShards.Shard shard, String suffix, Set<String> ids,
+                                                  ShardDuplicates duplicates, Set<String> indexed, long firstId,
+                                                  ExecutorService workers, AtomicLong docsWritten, Instant start) {
+        Map<String, PrintWriter> shardWriterMap = new HashMap<>();
+        Deque<Future<List<TrecDoc>>> inFlight = new ArrayDeque<>();
+        int maxInFlight = 2 * Pathnames.preprocessThreads;
+        long[] lineNo = {shard.getFirstDoc() + firstId};
         try {
-            for (String language : printWriterMap.keySet()) {
-                PrintWriter writer = new PrintWriter(Pathnames.tempFileLocation + language + ".trectext");
-                FileReader reader = new FileReader(Pathnames.tempFileLocation + language + ".jl.out");
-                BufferedReader br = new BufferedReader(reader);
-                String line;
-                int linesRead = 0;
-                int linesWritten = 0;
-                int docs = 0;
-                String save_line = "";
-                while ((line = br.readLine()) != null) {
-                    ++linesRead;
-                    writer.println(line);
-                    ++linesWritten;
-                    if (line.startsWith("<DOCNO>")) {
-                        ++docs;
-                        save_line = line;
-                        save_line = save_line.replace("DOCNO", "EXID");
-                    } else if (line.startsWith("<TEXT>")) {
-                        writer.println(save_line);
-                        ++linesWritten;
+            List<String> batch = new ArrayList<>(PREPROCESS_BATCH_SIZE);
+            long[] batchLineNumbers = new long[PREPROCESS_BATCH_SIZE];
+            long corpusLineNo = shard.getFirstDoc();
+            for (CorpusReader.Line corpusLine : new CorpusReader(shard.getFile())) {
+                ++corpusLineNo;
+                if (indexed != null || duplicates != null) {
+                    String docid = CorpusIdExtractor.getDocid(corpusLine);
+                    if ((indexed != null && indexed.contains(docid))
+                            || (duplicates != null && duplicates.isDuplicate(corpusLineNo, docid))) {
+                        continue;
+                    }
+                }
+                batchLineNumbers[batch.size()] = corpusLineNo;
+                batch.add(corpusLine.getText());
+                if (batch.size() == PREPROCESS_BATCH_SIZE) {
+                    List<String> lines = batch;
+                    long[] lineNumbers = batchLineNumbers;
+                    inFlight.addLast(workers.submit(() -> toTrecDocs(lines, lineNumbers)));
+                    batch = new ArrayList<>(PREPROCESS_BATCH_SIZE);
+                    batchLineNumbers = new long[PREPROCESS_BATCH_SIZE];
+                    if (inFlight.size() >= maxInFlight) {
+                        writeTrecDocs(ParallelTasks.get(inFlight.removeFirst()), suffix, ids, shardWriterMap,
+                                lineNo, docsWritten, start);
                     }
                 }
+            }
+            if (!batch.isEmpty()) {
+                List<String> lines = batch;
+                long[] lineNumbers = batchLineNumbers;
+                inFlight.addLast(workers.submit(() -> toTrecDocs(lines, lineNumbers)));
+            }
+            while (!inFlight.isEmpty()) {
+                writeTrecDocs(ParallelTasks.get(inFlight.removeFirst()), suffix, ids, shardWriterMap, lineNo,
+                        docsWritten, start);
+            }
+            for (PrintWriter writer : shardWriterMap.values()) {
                 writer.close();
-                reader.close();
             }
-        } catch (Exception cause) {
+        } catch (IOException cause) {
             throw new TasksRunnerException(cause);
+        } finally {
+            ParallelTasks.cancelAll(inFlight);
         }
+        return shardWriterMap;
+    }
+
+    /**
+     * Parses a batch of corpus lines and formats them for the trectext file.
+     * @param lines the corpus lines
+     * @param lineNumbers the corpus line number of each line, for error messages
+     */
+    private List<TrecDoc> toTrecDocs(List<String> lines, long[] lineNumbers) throws ParseException {
+        JSONParser parser = new JSONParser();
+        List<TrecDoc> docs = new ArrayList<>(lines.size());
+        for (int i = 0; i < lines.size(); ++i) {
+            String line = lines.get(i);
+            long lineNo = lineNumbers[i];
+            JSONObject json = (JSONObject) parser.parse(line);
+            JSONObject derived_metadata = mustContainObject(json, "derived-metadata", lineNo);
+            String uuid = mustContainString(derived_metadata, "id", lineNo);
+            String text = mustContainString(derived_metadata, "text", lineNo);
+            String language = mustContainString(derived_metadata, "language", lineNo);
+            language = SearchEngineInterface.toCanonicalForm(language);
+            if (language.equals("chinese")) {
+                text = bigramIt(text);
+            }
+            /* In order to use Galago's #reject operator we add a field to each
+               document that contains its unique identifier, the EXID field */
+            docs.add(new TrecDoc(uuid, language, "</ID>\n<TEXT>\n<EXID>" + uuid + "</EXID>\n" + text
+                    + "\n</TEXT>\n</DOC>\n"));
+        }
+        return docs;
+    }
+
+    private void writeTrecDocs(List<TrecDoc> docs, String suffix, Set<String> ids,
+                               Map<String, PrintWriter> shardWriterMap, long[] lineNo, AtomicLong docsWritten,
+                               Instant start) throws IOException {
+        for (TrecDoc doc : docs) {
+            if (ids == null || ids.add(doc.uuid)) {
+                if (!shardWriterMap.containsKey(doc.language)) {
+                    shardWriterMap.put(doc.language, new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                            new FileOutputStream(Pathnames.tempFileLocation + doc.language + suffix + ".trectext"),
+                            StandardCharsets.UTF_8), 1 << 20)));
+                }
+                PrintWriter writer = shardWriterMap.get(doc.language);
+                writer.print("<DOC>\n<DOCNO>" + doc.uuid + "</DOCNO>\n<ID>" + lineNo[0]);
+                writer.print(doc.afterId);
+                ++lineNo[0];
+                nextId.accumulateAndGet(lineNo[0], Math::max);
+                languageDocs.computeIfAbsent(doc.language, l -> new AtomicLong()).incrementAndGet();
+                if (docsWritten.incrementAndGet() % PREPROCESS_PROGRESS_DOCS == 0) {
+                    logProgress(docsWritten.get(), start);
+                }
+            }
+        }
+    }
+
+    /**
+     * Splits Chinese text into overlapping character bigrams, for indexing.
+     * @param rawtext the text
+     * @return the bigrams, separated by spaces
+     */
+    public String bigramIt(String rawtext) {
+        return BIGRAM_TOKENIZER.tokenize(rawtext);
     }
 
     private void deleteLogFile(String galagoLogFile) {
@@ -334,24 +738,178 @@ public class GalagoSearchEngine implements SearchEngineInterface {
 
     /**
      * Builds a Galago index for the target corpus.
+     * For the target corpus, a docid manifest (see IndexDocidManifest) is written too, so documents added to
+     * the corpus later can be indexed on their own, by buildDeltaIndexes().
      */
     public void buildIndexes(String corpusFile) {
         logger.info("Building indexes");
         Instant start = Instant.now();
-        preprocess(corpusFile);   // splits the corpus by language
+        // Some corpora have duplicates, index only one
+        DocidSet ids = new DocidSet();
+        IndexDocidManifest.CorpusStamp stamp = IndexDocidManifest.CorpusStamp.of(corpusFile);
+        preprocess(corpusFile, ids, null, 1);   // splits the corpus by language
+        logger.info("Duplicate check: " + ids.describeMemory());
+        planIndexBuilds(printWriterMap.size());
         createGalagoConfFiles();  // creates language-dependent Galago config files for the create index steps
+        Map<String, String> confFiles = new TreeMap<>();
+        for (String language : printWriterMap.keySet()) {
+            confFiles.put(language, Pathnames.indexLocation + "galago/" + language + ".conf");
+        }
+        runIndexBuilds(confFiles, "indexbuild");
+
+        Instant end = Instant.now();
+        Duration interval = Duration.between(start, end);
+        long runTime = interval.toMinutes();
+        logger.info("GalagoSearchEngine build time (minutes):\n" + runTime);
+        if (corpusFile.equals(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName)) {
+            IndexDocidManifest.writeAfterFullBuild(corpusFile, stamp, ids, nextId.get());
+        }
+    }
+
+    /**
+     * Indexes the documents that have been added to the target corpus since its indexes were built.
+     * The docid manifest says which documents are already indexed; the lines of those are skipped without
+     * being parsed, and the rest are written to trectext files and indexed, for each language, into a new
+     * delta index (better-clear-ir-LANGUAGE-delta-NNNN), which search() then searches along with the main
+     * index. A language that has no index yet gets its main index built from its new documents.
+     * If there is no manifest, the indexes are rebuilt in full.
+     * The delta indexes are merged into the main ones by the next full build (see TasksRunner).
+     * @param corpusFile the target corpus file
+     */
+    @Override
+    public void buildDeltaIndexes(String corpusFile) {
+        IndexDocidManifest manifest = IndexDocidManifest.load();
+        if (manifest == null) {
+            logger.info("The indexes have no docid manifest, so we will rebuild them in full");
+            buildIndexes(corpusFile);
+            return;
+        }
+        logger.info("Building delta indexes for the documents added to " + corpusFile);
+        Instant start = Instant.now();
+        DocidSet indexed = manifest.getDocids();
+        DocidSet ids = new DocidSet(indexed);
+        IndexDocidManifest.CorpusStamp stamp = IndexDocidManifest.CorpusStamp.of(corpusFile);
+        preprocess(corpusFile, ids, indexed, manifest.getNextId());
+        logger.info((ids.size() - indexed.size()) + " new documents to index");
+        logger.info("Duplicate check: " + ids.describeMemory());
+        Map<String, String> newDeltaIndexes = new TreeMap<>();
+        Map<String, String> confFiles = new TreeMap<>();
+        planIndexBuilds(printWriterMap.size());
         for (String language : printWriterMap.keySet()) {
-            // build a Galago index for this language's documents
-            String galagoLogFile = Pathnames.logFileLocation + "galago_" + language + "_indexbuild.log";
+            String mainIndex = Pathnames.indexLocation + "galago/better-clear-ir-" + language;
+            String indexPath;
+            String confFile;
+            String jobName = language;
+            if (new File(mainIndex).exists()) {
+                String deltaName = String.format("better-clear-ir-%s-delta-%04d", language,
+                        manifest.getDeltaIndexes(language).size() + 1);
+                indexPath = Pathnames.indexLocation + "galago/" + deltaName;
+                new File(Pathnames.indexLocation + "galago/deltas").mkdirs();
+                confFile = Pathnames.indexLocation + "galago/deltas/" + deltaName + ".conf";
+                jobName = deltaName;
+                newDeltaIndexes.put(language, indexPath);
+            } else {
+                indexPath = mainIndex;
+                confFile = Pathnames.indexLocation + "galago/" + language + ".conf";
+            }
+            createGalagoConfFile(language, indexPath, confFile, jobName);
+            confFiles.put(language, confFile);
+        }
+        runIndexBuilds(confFiles, "deltaindexbuild");
+        manifest.addDelta(stamp, ids, newDeltaIndexes, nextId.get());
+        logger.info("GalagoSearchEngine delta build time (minutes):\n"
+                + Duration.between(start, Instant.now()).toMinutes());
+    }
 
-            String tempCommand = Pathnames.galagoLocation + "galago build " + Pathnames.indexLocation + "galago/" + language + ".conf";
+    /**
+     * Decides how many languages to index at once, and how many parallel splits each build gets, from
+     * Pathnames.indexBuildThreads: no more builds run at once than there are threads, and the threads are shared
+     * out among them, each using its share as Galago's parallel splits. If the builds run in this JVM
+     * (Pathnames.inProcessIndexBuild), no more run at once than three quarters of the heap would give
+     * Pathnames.minIndexBuildMemoryMB each. Nothing limits the memory a build actually takes up.
+     * @param languages the number of languages to index
+     */
+    private void planIndexBuilds(int languages) {
+        concurrentBuilds = Math.max(1, Math.min(languages, Pathnames.indexBuildThreads));
+        if (Pathnames.inProcessIndexBuild) {
+            long availableMB = Runtime.getRuntime().maxMemory() / 1048576 * 3 / 4;
+            concurrentBuilds = (int) Math.max(1, Math.min(concurrentBuilds,
+                    availableMB / Pathnames.minIndexBuildMemoryMB));
+        }
+        buildSplits = Math.max(1, Pathnames.indexBuildThreads / concurrentBuilds);
+        logger.info("Indexing " + concurrentBuilds + " of " + languages + " languages at a time, each with "
+                + buildSplits + " splits");
+    }
 
-            Command.execute(tempCommand, galagoLogFile);
+    /**
+     * Builds a Galago index for each of some config files, running planIndexBuilds()'s number of builds at once.
+     * Each build is a "galago build" command, unless Pathnames.inProcessIndexBuild is set, in which case the
+     * builds run in this JVM through Galago's BuildIndex, and Galago's progress messages go to the log.
+     * @param confFiles the key is the language, the value is its config file
+     * @param logName used in the name of the Galago log files, if the builds are commands
+     */
+    private void runIndexBuilds(Map<String, String> confFiles, String logName) {
+        if (confFiles.isEmpty()) {
+            return;
+        }
+        List<Runnable> builds = new ArrayList<>();
+        for (Map.Entry<String, String> entry : confFiles.entrySet()) {
+            builds.add(() -> runIndexBuild(entry.getKey(), entry.getValue(), logName));
+        }
+        ParallelTasks.runAll(builds, concurrentBuilds);
+    }
+
+    private void runIndexBuild(String language, String confFile, String logName) {
+        logger.info("Building the " + language + " index from " + confFile);
+        Instant start = Instant.now();
+        if (Pathnames.inProcessIndexBuild) {
+            try (PrintStream progress = new PrintStream(new LogOutputStream("Galago " + language + " index build: "),
+                    true, "UTF-8")) {
+                new BuildIndex().run(Parameters.parseFile(new File(confFile)), progress);
+            } catch (Exception cause) {
+                throw new TasksRunnerException(cause);
+            }
+        } else {
+            String galagoLogFile = Pathnames.logFileLocation + "galago_" + language + "_" + logName + ".log";
+            Command.execute(Pathnames.galagoLocation + "galago build " + confFile, galagoLogFile);
+        }
+        double seconds = Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0;
+        long docs = languageDocs.getOrDefault(language, new AtomicLong()).get();
+        logger.info(String.format("Built the %s index: %d docs in %.1f seconds, %.0f docs/sec", language, docs,
+                seconds, docs / seconds));
+    }
+
+    /**
+     * Sends what is written to it to the log, a line at a time.
+     */
+    private static class LogOutputStream extends OutputStream {
+        private final String prefix;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        LogOutputStream(String prefix) {
+            this.prefix = prefix;
+        }
 
-            Instant end = Instant.now();
-            Duration interval = Duration.between(start, end);
-            long runTime = interval.toMinutes();
-            logger.info("GalagoSearchEngine build time (minutes):\n" + runTime);
+        @Override
+        public synchronized void write(int b) {
+            if (b == '\n') {
+                flushLine();
+            } else {
+                line.write(b);
+            }
+        }
+
+        private void flushLine() {
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8).trim();
+            line.reset();
+            if (!text.isEmpty()) {
+                logger.info(prefix + text);
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            flushLine();
         }
     }
 
@@ -360,71 +918,85 @@ public class GalagoSearchEngine implements SearchEngineInterface {
      */
     private void createGalagoConfFiles() {
         for (String language : printWriterMap.keySet()) {
-            try {
-                JSONObject outputQueries = new JSONObject();
-                outputQueries.put("fileType", "trectext");
-                outputQueries.put("inputPath", Pathnames.tempFileLocation + language + ".trectext");
-                outputQueries.put("indexPath", Pathnames.indexLocation + "galago/better-clear-ir-" + language);
-                outputQueries.put("mode", "local");
-                outputQueries.put("fieldIndex", true);
-                outputQueries.put("tmpdir", Pathnames.tempFileLocation);
-                JSONArray stemmerList = new JSONArray();
-                JSONObject stemmerClass = new JSONObject();
-                switch (language) {
-                    case "arabic":
-                        stemmerList.add("snowball");
-                        stemmerClass.put("snowball", "org.lemurproject.galago.core.parse.stem.SnowballArabicStemmer");
-                        break;
-                    case "russian":
-                        stemmerList.add("snowball");
-                        stemmerClass.put("snowball", "org.lemurproject.galago.core.parse.stem.SnowballRussianStemmer");
-                        break;
-                    case "chinese":
-                        break;
-                    case "korean":
-                        break;
-                    default:
-                        /* English training corpus */
-                        stemmerList.add("krovetz");
-                        stemmerClass.put("krovetz", "org.lemurproject.galago.core.parse.stem.KrovetzStemmer");
-                        break;
-                }
-                outputQueries.put("stemmer", stemmerList);
-                outputQueries.put("stemmerClass", stemmerClass);
-                JSONObject tokenizer = new JSONObject();
-                JSONArray fields = new JSONArray();
-                fields.add("exid");
-                tokenizer.put("fields", fields);
-                JSONObject formats = new JSONObject();
-                formats.put("exid", "string");
-                tokenizer.put("formats", formats);
-                outputQueries.put("tokenizer", tokenizer);
-                outputQueries.put("galagoJobDir", Pathnames.galagoJobDirLocation);
-                outputQueries.put("deleteJobDir", true);
-                outputQueries.put("mem", "40g");
-
-                PrintWriter writer = new PrintWriter(new OutputStreamWriter(
-                        new FileOutputStream(Pathnames.indexLocation + "galago/" + language + ".conf")));
-                writer.write(outputQueries.toJSONString());
-                writer.close();
-            } catch (Exception cause) {
-                throw new TasksRunnerException(cause);
+            createGalagoConfFile(language, Pathnames.indexLocation + "galago/better-clear-ir-" + language,
+                    Pathnames.indexLocation + "galago/" + language + ".conf", language);
+        }
+    }
+
+    /**
+     * Creates a Galago config file for indexing one language's trectext file.
+     * Each build gets a job directory of its own, since builds run at once and each deletes its job
+     * directory when it is done.
+     * @param language the language
+     * @param indexPath where to build the index
+     * @param confFile the config file to create
+     * @param jobName names the build's job directory, under Pathnames.galagoJobDirLocation
+     */
+    private void createGalagoConfFile(String language, String indexPath, String confFile, String jobName) {
+        try {
+            JSONObject outputQueries = new JSONObject();
+            outputQueries.put("fileType", "trectext");
+            outputQueries.put("inputPath", Pathnames.tempFileLocation + language + ".trectext");
+            outputQueries.put("indexPath", indexPath);
+            outputQueries.put("mode", buildSplits > 1 ? "threaded" : "local");
+            outputQueries.put("distrib", buildSplits);
+            outputQueries.put("fieldIndex", true);
+            outputQueries.put("tmpdir", Pathnames.tempFileLocation);
+            JSONArray stemmerList = new JSONArray();
+            JSONObject stemmerClass = new JSONObject();
+            switch (language) {
+                case "arabic":
+                    stemmerList.add("snowball");
+                    stemmerClass.put("snowball", "org.lemurproject.galago.core.parse.stem.SnowballArabicStemmer");
+                    break;
+                case "russian":
+                    stemmerList.add("snowball");
+                    stemmerClass.put("snowball", "org.lemurproject.galago.core.parse.stem.SnowballRussianStemmer");
+                    break;
+                case "chinese":
+                    break;
+                case "korean":
+                    break;
+                default:
+                    /* English training corpus */
+                    stemmerList.add("krovetz");
+                    stemmerClass.put("krovetz", "org.lemurproject.galago.core.parse.stem.KrovetzStemmer");
+                    break;
             }
+            outputQueries.put("stemmer", stemmerList);
+            outputQueries.put("stemmerClass", stemmerClass);
+            JSONObject tokenizer = new JSONObject();
+            JSONArray fields = new JSONArray();
+            fields.add("exid");
+            tokenizer.put("fields", fields);
+            JSONObject formats = new JSONObject();
+            formats.put("exid", "string");
+            tokenizer.put("formats", formats);
+            outputQueries.put("tokenizer", tokenizer);
+            outputQueries.put("galagoJobDir", Pathnames.galagoJobDirLocation + jobName);
+            outputQueries.put("deleteJobDir", true);
+            outputQueries.put("mem", "40g");
+
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    new FileOutputStream(confFile)));
+            writer.write(outputQueries.toJSONString());
+            writer.close();
+        } catch (Exception cause) {
+            throw new TasksRunnerException(cause);
         }
     }
 
     /**
      * Pre-processes the target corpus file. Must be done before calling buildIndex().
      */
-    private void preprocess(String corpusFile) {
+    private void preprocess(String corpusFile, Set<String> ids, Set<String> indexed, long firstId) {
             logger.info("Preprocessing the corpus file at " + corpusFile);
 
             /* Convert the target corpus file into a format we can use. Create separate files for each language
-             * found in the corpus file. Create the printWriterMap of which languages are in use.
+             * found in the corpus file, with the EXID field that stores the unique ID (docid) for each document.
+             * Create the printWriterMap of which languages are in use.
              */
-            betterToTrec(corpusFile);
-
-            /* Add the EXID field, to store the unique ID (docid) for each document. */
-            addExid();
+            nextId.accumulateAndGet(firstId, Math::max);
+            betterToTrec(corpusFile, ids, indexed, firstId);
     }
 }
@@ -0,0 +1,434 @@
+package edu.umass.ciir;
+
+import org.lemurproject.galago.core.parse.stem.Stemmer;
+import org.lemurproject.galago.core.retrieval.Retrieval;
+import org.lemurproject.galago.core.retrieval.query.Node;
+import org.lemurproject.galago.core.retrieval.query.NodeParameters;
+import org.lemurproject.galago.core.retrieval.query.StructuredQuery;
+import org.lemurproject.galago.utility.Parameters;
+
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * An inverted index of a task's candidate documents (its task-level query's top hits), built in memory,
+ * for running the task's request queries on them without building a Galago partial index on disk.
+ * The documents' terms come from the full index, tokenized as it tokenized them, and are stemmed as
+ * each postings part the queries use was stemmed; the postings are kept as one int array per term.
+ * A query is parsed and transformed by the full index's Retrieval, as batch-search does with
+ * --backgroundIndex=full, so the transformed query carries the full index's collection statistics
+ * (#sdm, for one, is expanded into #combine, #od and #uw nodes, and the #dirichlet nodes are given
+ * collectionLength and nodeFrequency), and the transformed query is evaluated here, on the candidates.
+ * Only the operators Galago's query likelihood and SDM queries turn into are evaluated: #combine, #dirichlet,
+ * #lengths, #counts, #extents, #od, #uw and #syn. For anything else isSupported() is false, and the caller
+ * should search a partial index instead.
+ * An InMemoryTaskIndex can be searched from one thread at a time.
+ */
+public class InMemoryTaskIndex {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private static final double DEFAULT_MU = 1500;
+    private static final int[] NO_EXTENTS = new int[0];
+
+    private final Retrieval fullIndex;
+    private final String language;
+    private final String[] names;
+    /* The documents' internal IDs in the full index, which break ties in the ranking, as Galago's do */
+    private final long[] fullIds;
+    private final String[][] terms;
+    /* The key is the postings part, the value's key is the stemmed term, and its value is the postings:
+       for each document with the term, its number, the term count, then the positions */
+    private final Map<String, Map<String, int[]>> parts = new HashMap<>();
+
+    /**
+     * Builds the index.
+     * @param fullIndex the full index the documents are in
+     * @param language the language
+     * @param docNames the documents' names, the docids; names not in the full index are skipped
+     */
+    public InMemoryTaskIndex(Retrieval fullIndex, String language, List<String> docNames) {
+        this.fullIndex = fullIndex;
+        this.language = language;
+        List<String> foundNames = new ArrayList<>(docNames.size());
+        List<Long> foundIds = new ArrayList<>(docNames.size());
+        List<String[]> foundTerms = new ArrayList<>(docNames.size());
+        org.lemurproject.galago.core.parse.Document.DocumentComponents components =
+                new org.lemurproject.galago.core.parse.Document.DocumentComponents(false, false, true);
+        try {
+            for (String name : new LinkedHashSet<>(docNames)) {
+                Long id = fullIndex.getDocumentId(name);
+                org.lemurproject.galago.core.parse.Document document = (id == null || id < 0) ? null
+                        : fullIndex.getDocument(name, components);
+                if (document == null) {
+                    continue;
+                }
+                foundNames.add(name);
+                foundIds.add(id);
+                foundTerms.add(document.terms.toArray(new String[0]));
+            }
+        } catch (Exception cause) {
+            throw new TasksRunnerException(cause);
+        }
+        if (foundNames.size() < docNames.size()) {
+            logger.warning((docNames.size() - foundNames.size()) + " of the " + docNames.size()
+                    + " candidate docs are not in the full index, so they will not be searched");
+        }
+        names = foundNames.toArray(new String[0]);
+        fullIds = foundIds.stream().mapToLong(Long::longValue).toArray();
+        terms = foundTerms.toArray(new String[0][]);
+    }
+
+    public int getDocumentCount() {
+        return names.length;
+    }
+
+    /**
+     * Parses a query and transforms it with the full index, which adds its collection statistics to it.
+     * @param fullIndex the full index
+     * @param queryText the query, in Galago's query language
+     * @param parameters the search parameters, like defaultTextPart
+     * @return the transformed query
+     */
+    public static Node transform(Retrieval fullIndex, String queryText, Parameters parameters) {
+        try {
+            return fullIndex.transformQuery(StructuredQuery.parse(queryText), parameters);
+        } catch (Exception cause) {
+            throw new TasksRunnerException(cause);
+        }
+    }
+
+    /**
+     * Tells whether a transformed query has only operators this index can evaluate.
+     * @param query the transformed query
+     * @param language the language
+     * @return true if search() can run it
+     */
+    public static boolean isSupported(Node query, String language) {
+        switch (query.getOperator()) {
+            case "combine":
+                break;
+            case "dirichlet":
+                if (!query.getNodeParameters().containsKey("collectionLength")
+                        || !query.getNodeParameters().containsKey("nodeFrequency")) {
+                    return false;
+                }
+                break;
+            case "lengths":
+                return query.getDefaultParameter() == null || query.getDefaultParameter().equals("document");
+            case "counts":
+            case "extents":
+                return getStemmerClass(query.getNodeParameters().get("part", "postings"), language) != null;
+            case "od":
+            case "ordered":
+            case "uw":
+            case "unordered":
+            case "syn":
+            case "synonym":
+                break;
+            default:
+                return false;
+        }
+        for (Node child : query.getInternalNodes()) {
+            if (!isSupported(child, language)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* The stemmer a postings part was built with: "" for none, null for a part this index does not know */
+    private static String getStemmerClass(String part, String language) {
+        switch (part) {
+            case "postings":
+                return "";
+            case "postings.krovetz":
+                return "org.lemurproject.galago.core.parse.stem.KrovetzStemmer";
+            case "postings.snowball":
+                if (language.equals("arabic")) {
+                    return "org.lemurproject.galago.core.parse.stem.SnowballArabicStemmer";
+                } else if (language.equals("russian")) {
+                    return "org.lemurproject.galago.core.parse.stem.SnowballRussianStemmer";
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /* Returns a postings part, indexing the documents' terms for it the first time it is asked for */
+    private Map<String, int[]> getPart(String part) {
+        Map<String, int[]> postings = parts.get(part);
+        if (postings != null) {
+            return postings;
+        }
+        Stemmer stemmer = null;
+        String stemmerClass = getStemmerClass(part, language);
+        if (!stemmerClass.isEmpty()) {
+            try {
+                stemmer = Class.forName(stemmerClass).asSubclass(Stemmer.class).getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException cause) {
+                throw new TasksRunnerException(cause);
+            }
+        }
+        /* Each term's positions in each document, gathered a document at a time, then flattened */
+        Map<String, List<int[]>> gathered = new HashMap<>();
+        Map<String, int[]> documentPositions = new HashMap<>();
+        for (int doc = 0; doc < terms.length; ++doc) {
+            documentPositions.clear();
+            String[] stems = new String[terms[doc].length];
+            Map<String, Integer> counts = new HashMap<>();
+            for (int position = 0; position < stems.length; ++position) {
+                stems[position] = stemmer == null ? terms[doc][position] : stemmer.stem(terms[doc][position]);
+                counts.merge(stems[position], 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                int[] positions = new int[2 + entry.getValue()];
+                positions[0] = doc;
+                documentPositions.put(entry.getKey(), positions);
+            }
+            for (int position = 0; position < stems.length; ++position) {
+                int[] positions = documentPositions.get(stems[position]);
+                positions[2 + positions[1]++] = position;
+            }
+            for (Map.Entry<String, int[]> entry : documentPositions.entrySet()) {
+                gathered.computeIfAbsent(entry.getKey(), t -> new ArrayList<>()).add(entry.getValue());
+            }
+        }
+        postings = new HashMap<>(gathered.size() * 2);
+        for (Map.Entry<String, List<int[]>> entry : gathered.entrySet()) {
+            int length = 0;
+            for (int[] positions : entry.getValue()) {
+                length += positions.length;
+            }
+            int[] flattened = new int[length];
+            int offset = 0;
+            for (int[] positions : entry.getValue()) {
+                System.arraycopy(positions, 0, flattened, offset, positions.length);
+                offset += positions.length;
+            }
+            postings.put(entry.getKey(), flattened);
+        }
+        parts.put(part, postings);
+        return postings;
+    }
+
+    /**
+     * One document of a search's results.
+     */
+    public static class Result {
+        public final String name;
+        public final double score;
+
+        Result(String name, double score) {
+            this.name = name;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Scores the documents that match any of a query's terms, as Galago does.
+     * @param query the transformed query, for which isSupported() is true
+     * @param requested the number of results wanted
+     * @return the best results, best first
+     */
+    public List<Result> search(Node query, int requested) {
+        BitSet candidates = new BitSet(names.length);
+        Scorer scorer = compileScorer(query, candidates);
+        Integer[] docs = candidates.stream().boxed().toArray(Integer[]::new);
+        double[] scores = new double[names.length];
+        for (int doc : docs) {
+            scores[doc] = scorer.score(doc);
+        }
+        Arrays.sort(docs, (a, b) -> scores[a] != scores[b] ? Double.compare(scores[b], scores[a])
+                : Long.compare(fullIds[a], fullIds[b]));
+        List<Result> results = new ArrayList<>(Math.min(requested, docs.length));
+        for (int i = 0; i < docs.length && i < requested; ++i) {
+            results.add(new Result(names[docs[i]], scores[docs[i]]));
+        }
+        return results;
+    }
+
+    private interface Scorer {
+        double score(int doc);
+    }
+
+    /* A node's extents in a document, begin and end pairs in order of their beginnings */
+    private interface Extents {
+        int[] extents(int doc);
+    }
+
+    private Scorer compileScorer(Node node, BitSet candidates) {
+        NodeParameters parameters = node.getNodeParameters();
+        List<Node> children = node.getInternalNodes();
+        switch (node.getOperator()) {
+            case "combine": {
+                Scorer[] scorers = new Scorer[children.size()];
+                double[] weights = new double[children.size()];
+                double total = 0;
+                for (int i = 0; i < scorers.length; ++i) {
+                    scorers[i] = compileScorer(children.get(i), candidates);
+                    weights[i] = parameters.get(Integer.toString(i), 1.0);
+                    total += weights[i];
+                }
+                if (parameters.get("norm", true) && total != 0) {
+                    for (int i = 0; i < weights.length; ++i) {
+                        weights[i] /= total;
+                    }
+                }
+                return doc -> {
+                    double score = 0;
+                    for (int i = 0; i < scorers.length; ++i) {
+                        score += weights[i] * scorers[i].score(doc);
+                    }
+                    return score;
+                };
+            }
+            case "dirichlet": {
+                double mu = parameters.get("mu", DEFAULT_MU);
+                long collectionLength = parameters.getLong("collectionLength");
+                long nodeFrequency = parameters.getLong("nodeFrequency");
+                double background = nodeFrequency > 0 ? (double) nodeFrequency / collectionLength
+                        : 0.5 / collectionLength;
+                Extents counted = null;
+                for (Node child : children) {
+                    if (!child.getOperator().equals("lengths")) {
+                        counted = compileExtents(child, candidates);
+                    }
+                }
+                if (counted == null) {
+                    throw new TasksRunnerException("No counts under " + node);
+                }
+                Extents extents = counted;
+                return doc -> Math.log((extents.extents(doc).length / 2 + mu * background)
+                        / (terms[doc].length + mu));
+            }
+            default:
+                throw new TasksRunnerException("Cannot score " + node + " in memory");
+        }
+    }
+
+    private Extents compileExtents(Node node, BitSet candidates) {
+        NodeParameters parameters = node.getNodeParameters();
+        List<Node> children = node.getInternalNodes();
+        switch (node.getOperator()) {
+            case "counts":
+            case "extents": {
+                int[] postings = getPart(parameters.get("part", "postings")).get(node.getDefaultParameter());
+                int[][] byDoc = new int[names.length][];
+                for (int i = 0; postings != null && i < postings.length; i += 2 + postings[i + 1]) {
+                    int[] extents = new int[2 * postings[i + 1]];
+                    for (int j = 0; j < postings[i + 1]; ++j) {
+                        extents[2 * j] = postings[i + 2 + j];
+                        extents[2 * j + 1] = postings[i + 2 + j] + 1;
+                    }
+                    byDoc[postings[i]] = extents;
+                    candidates.set(postings[i]);
+                }
+                return doc -> byDoc[doc] == null ? NO_EXTENTS : byDoc[doc];
+            }
+            case "od":
+            case "ordered":
+                return compileWindow(children, candidates, (int) parameters.get("default", 1L), true);
+            case "uw":
+            case "unordered":
+                return compileWindow(children, candidates, (int) parameters.get("default", -1L), false);
+            case "syn":
+            case "synonym": {
+                Extents[] synonyms = new Extents[children.size()];
+                for (int i = 0; i < synonyms.length; ++i) {
+                    synonyms[i] = compileExtents(children.get(i), candidates);
+                }
+                return doc -> {
+                    List<int[]> all = new ArrayList<>();
+                    for (Extents synonym : synonyms) {
+                        int[] extents = synonym.extents(doc);
+                        for (int i = 0; i < extents.length; i += 2) {
+                            all.add(new int[] {extents[i], extents[i + 1]});
+                        }
+                    }
+                    all.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+                    int[] merged = new int[2 * all.size()];
+                    for (int i = 0; i < all.size(); ++i) {
+                        merged[2 * i] = all.get(i)[0];
+                        merged[2 * i + 1] = all.get(i)[1];
+                    }
+                    return merged;
+                };
+            }
+            default:
+                throw new TasksRunnerException("Cannot evaluate " + node + " in memory");
+        }
+    }
+
+    /*
+     * An ordered window matches where each term begins less than width positions after the end of the one
+     * before it; an unordered window matches where the terms' extents, taken at the earliest beginning
+     * first, span no more than width positions (any span if width is -1), as Galago's #od and #uw do
+     */
+    private Extents compileWindow(List<Node> children, BitSet candidates, int width, boolean ordered) {
+        Extents[] parts = new Extents[children.size()];
+        for (int i = 0; i < parts.length; ++i) {
+            parts[i] = compileExtents(children.get(i), candidates);
+        }
+        return doc -> {
+            int[][] extents = new int[parts.length][];
+            for (int i = 0; i < parts.length; ++i) {
+                extents[i] = parts[i].extents(doc);
+                if (extents[i].length == 0) {
+                    return NO_EXTENTS;
+                }
+            }
+            return ordered ? orderedWindows(extents, width) : unorderedWindows(extents, width);
+        };
+    }
+
+    private static int[] orderedWindows(int[][] extents, int width) {
+        List<Integer> windows = new ArrayList<>();
+        int[] next = new int[extents.length];
+        for (int first = 0; first < extents[0].length; first += 2) {
+            int end = extents[0][first + 1];
+            boolean matched = true;
+            for (int i = 1; i < extents.length && matched; ++i) {
+                while (next[i] < extents[i].length && extents[i][next[i]] < end) {
+                    next[i] += 2;
+                }
+                if (next[i] >= extents[i].length || extents[i][next[i]] - end >= width) {
+                    matched = false;
+                } else {
+                    end = extents[i][next[i] + 1];
+                }
+            }
+            if (matched) {
+                windows.add(extents[0][first]);
+                windows.add(end);
+            }
+        }
+        return windows.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static int[] unorderedWindows(int[][] extents, int width) {
+        List<Integer> windows = new ArrayList<>();
+        int[] next = new int[extents.length];
+        while (true) {
+            int minimum = -1;
+            int begin = Integer.MAX_VALUE;
+            int end = Integer.MIN_VALUE;
+            for (int i = 0; i < extents.length; ++i) {
+                if (next[i] >= extents[i].length) {
+                    return windows.stream().mapToInt(Integer::intValue).toArray();
+                }
+                if (extents[i][next[i]] < begin) {
+                    begin = extents[i][next[i]];
+                    minimum = i;
+                }
+                end = Math.max(end, extents[i][next[i] + 1]);
+            }
+            if (width == -1 || end - begin <= width) {
+                windows.add(begin);
+                windows.add(end);
+            }
+            next[minimum] += 2;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package edu.umass.ciir;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Records what the target indexes were built from, so that when documents are added to the corpus,
+ * only the new ones need to be indexed (see GalagoSearchEngine.buildDeltaIndexes()).
+ * The manifest is kept in the search engine's index directory: docid-manifest.json records the corpus file's
+ * size and modification time when it was last indexed, the next free trectext ID, the file that lists the
+ * docids of all the indexed documents, one per line, and, for each language, the delta indexes
+ * (side indexes of documents added since the full build), oldest first.
+ * A full build starts a new manifest with no delta indexes; each delta build adds its docids and its
+ * delta indexes to it.
+ */
+public class IndexDocidManifest {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private final String corpus;
+    private long corpusBytes;
+    private long corpusLastModified;
+    private long nextId;
+    private String docidFile;
+    /* The key is the language, the value is the delta index paths, oldest first */
+    private final Map<String, List<String>> deltaIndexes = new TreeMap<>();
+
+    private IndexDocidManifest(String corpus) {
+        this.corpus = corpus;
+    }
+
+    /**
+     * The size and modification time of a corpus file at some moment.
+     * A build takes one before it reads the corpus, so lines appended while it runs make the corpus look
+     * changed afterwards, and get indexed by the next build.
+     */
+    public static final class CorpusStamp {
+        private final long bytes;
+        private final long lastModified;
+
+        private CorpusStamp(long bytes, long lastModified) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @param corpusFile the corpus file
+         * @return its size and modification time now
+         */
+        public static CorpusStamp of(String corpusFile) {
+            File file = new File(corpusFile);
+            return new CorpusStamp(file.length(), file.lastModified());
+        }
+    }
+
+    private static String getDirectory() {
+        return Pathnames.indexLocation + Pathnames.searchEngine + "/";
+    }
+
+    private static Path getManifestFile() {
+        return Paths.get(getDirectory() + "docid-manifest.json");
+    }
+
+    /**
+     * Reads the manifest of the current indexes.
+     * @return the manifest, or null if the indexes were built without one
+     */
+    public static IndexDocidManifest load() {
+        File file = getManifestFile().toFile();
+        if (!file.exists()) {
+            return null;
+        }
+        JSONObject json;
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            json = (JSONObject) new JSONParser().parse(reader);
+        } catch (IOException | ParseException e) {
+            logger.warning("Unreadable docid manifest " + file + ": " + e.getMessage());
+            return null;
+        }
+        IndexDocidManifest manifest = new IndexDocidManifest((String) json.get("corpus"));
+        manifest.corpusBytes = (long) json.get("corpusBytes");
+        manifest.corpusLastModified = (long) json.get("corpusLastModified");
+        manifest.nextId = (long) json.get("nextId");
+        manifest.docidFile = (String) json.get("docidFile");
+        JSONObject deltas = (JSONObject) json.get("deltaIndexes");
+        for (Object language : deltas.keySet()) {
+            List<String> paths = new ArrayList<>();
+            for (Object path : (JSONArray) deltas.get(language)) {
+                paths.add((String) path);
+            }
+            manifest.deltaIndexes.put((String) language, paths);
+        }
+        return manifest;
+    }
+
+    /**
+     * Starts a new manifest after a full index build, deleting the delta indexes of the old one.
+     * @param corpus the corpus file that was indexed
+     * @param stamp the corpus file's size and modification time before the build read it
+     * @param docids the docids of the indexed documents
+     * @param nextId the next free trectext ID
+     */
+    public static void writeAfterFullBuild(String corpus, CorpusStamp stamp, Collection<String> docids,
+                                           long nextId) {
+        IndexDocidManifest old = load();
+        IndexDocidManifest manifest = new IndexDocidManifest(corpus);
+        manifest.nextId = nextId;
+        manifest.docidFile = old != null ? old.docidFile : null;
+        manifest.write(stamp, docids);
+        if (old != null) {
+            old.deleteDeltaIndexes();
+        }
+    }
+
+    /**
+     * Tells whether the corpus file is the same as when it was last indexed.
+     * @param corpusFile the corpus file
+     * @return true if it is the same file, with the same size and modification time
+     */
+    public boolean isCurrent(String corpusFile) {
+        File file = new File(corpusFile);
+        return corpusFile.equals(corpus) && file.length() == corpusBytes && file.lastModified() == corpusLastModified;
+    }
+
+    /**
+     * Reads the docids of all the indexed documents, main and delta.
+     * @return the docids
+     */
+    public DocidSet getDocids() {
+        try (Stream<String> lines = Files.lines(Paths.get(docidFile), StandardCharsets.UTF_8)) {
+            DocidSet docids = new DocidSet();
+            lines.forEach(docids::add);
+            return docids;
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    public long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Returns the delta indexes of a language.
+     * @param language the language
+     * @return the delta index paths, oldest first, possibly empty
+     */
+    public List<String> getDeltaIndexes(String language) {
+        return deltaIndexes.getOrDefault(language, Collections.emptyList());
+    }
+
+    /**
+     * @return the largest number of delta indexes any language has
+     */
+    public int getMaxDeltaIndexCount() {
+        return deltaIndexes.values().stream().mapToInt(List::size).max().orElse(0);
+    }
+
+    /**
+     * Records a delta build: the docids now indexed, the delta indexes it made, and the corpus file's
+     * size and modification time before the build read it.
+     * @param stamp the corpus file's size and modification time before the build read it
+     * @param docids the docids of all the indexed documents, old and new
+     * @param newDeltaIndexes the key is the language, the value is the new delta index path
+     * @param nextId the next free trectext ID
+     */
+    public void addDelta(CorpusStamp stamp, Collection<String> docids, Map<String, String> newDeltaIndexes,
+                         long nextId) {
+        for (Map.Entry<String, String> entry : newDeltaIndexes.entrySet()) {
+            deltaIndexes.computeIfAbsent(entry.getKey(), l -> new ArrayList<>()).add(entry.getValue());
+        }
+        this.nextId = nextId;
+        write(stamp, docids);
+    }
+
+    /*
+     * Each version of the docid list goes in a new file, which the JSON file names, and the JSON file is
+     * moved into place last, so if a build dies part way, the manifest is still the old one, whole
+     */
+    private void write(CorpusStamp stamp, Collection<String> docids) {
+        String oldDocidFile = docidFile;
+        docidFile = getDirectory() + "docid-manifest-" + System.currentTimeMillis() + ".txt";
+        corpusBytes = stamp.bytes;
+        corpusLastModified = stamp.lastModified;
+        JSONObject json = new JSONObject();
+        json.put("corpus", corpus);
+        json.put("corpusBytes", corpusBytes);
+        json.put("corpusLastModified", corpusLastModified);
+        json.put("nextId", nextId);
+        json.put("docidFile", docidFile);
+        JSONObject deltas = new JSONObject();
+        for (Map.Entry<String, List<String>> entry : deltaIndexes.entrySet()) {
+            JSONArray paths = new JSONArray();
+            paths.addAll(entry.getValue());
+            deltas.put(entry.getKey(), paths);
+        }
+        json.put("deltaIndexes", deltas);
+        try (PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(docidFile), StandardCharsets.UTF_8)))) {
+            for (String docid : docids) {
+                writer.println(docid);
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        Path tempFile = Paths.get(getManifestFile() + ".tmp");
+        try {
+            Files.write(tempFile, json.toJSONString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, getManifestFile(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            if (oldDocidFile != null && !oldDocidFile.equals(docidFile)) {
+                Files.deleteIfExists(Paths.get(oldDocidFile));
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    private void deleteDeltaIndexes() {
+        for (List<String> paths : deltaIndexes.values()) {
+            for (String path : paths) {
+                logger.info("Deleting delta index " + path);
+                try (Stream<Path> files = Files.walk(Paths.get(path))) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                } catch (IOException e) {
+                    logger.warning("Could not delete delta index " + path + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package edu.umass.ciir;
+
+import java.text.BreakIterator;
+import java.util.*;
+
+/**
+ * A rule-based sentence segmenter that runs in the JVM, for languages where spaCy does little better
+ * than splitting at sentence punctuation and is not worth the trip to a Python daemon.
+ * It starts with java.text.BreakIterator's sentence boundaries for the language, then:
+ *   - removes boundaries after the language's common abbreviations and after single-letter initials
+ *     ("Dr. Smith", "J. Smith", "т.е. пример"), where BreakIterator splits
+ *   - adds boundaries after the language's own sentence-ending punctuation that BreakIterator
+ *     does not split at, like the Arabic question mark, and after the Chinese full stop (the same
+ *     sentence separator GalagoSearchEngine.bigramIt() uses)
+ * Select it for a language by adding the language to Pathnames.javaSegmenterLanguages.
+ */
+public class JavaSentenceSegmenter implements SentenceSegmenterInterface {
+    /* Change this when the rules change, so sentences cached from the old rules are not used */
+    private static final int RULES_VERSION = 1;
+
+    private static final Map<String, Set<String>> ABBREVIATIONS = new HashMap<>();
+    private static final Map<String, String> TERMINATORS = new HashMap<>();
+    /* Closing quotes and brackets that stay with the sentence they end */
+    private static final String CLOSERS = "\"')]}»”’」』）";
+
+    static {
+        ABBREVIATIONS.put("english", new HashSet<>(Arrays.asList(
+                "mr", "mrs", "ms", "dr", "prof", "sr", "jr", "st", "vs", "etc", "e.g", "i.e", "inc", "ltd",
+                "co", "corp", "dept", "gen", "gov", "sen", "rep", "lt", "col", "sgt", "capt", "no", "vol",
+                "fig", "approx", "est", "jan", "feb", "mar", "apr", "jun", "jul", "aug", "sep", "sept", "oct",
+                "nov", "dec", "u.s", "u.k", "u.n", "a.m", "p.m")));
+        ABBREVIATIONS.put("russian", new HashSet<>(Arrays.asList(
+                "г", "гг", "т.е", "т.д", "т.п", "т.к", "др", "пр", "ул", "им", "см", "стр", "тыс", "млн", "млрд",
+                "руб", "коп", "проф", "акад", "д", "т")));
+        ABBREVIATIONS.put("farsi", new HashSet<>());
+        ABBREVIATIONS.put("arabic", new HashSet<>());
+        ABBREVIATIONS.put("korean", new HashSet<>());
+        ABBREVIATIONS.put("chinese", new HashSet<>());
+
+        TERMINATORS.put("chinese", "。！？");
+        TERMINATORS.put("arabic", "؟۔");
+        TERMINATORS.put("farsi", "؟۔");
+    }
+
+    private final String language;
+    private final Locale locale;
+    private final Set<String> abbreviations;
+    private final String terminators;
+
+    /**
+     * @param language the canonical form of the language (e.g. chinese)
+     */
+    JavaSentenceSegmenter(String language) {
+        this.language = language;
+        this.locale = language.isEmpty() ? Locale.ROOT
+                : new Locale(SearchEngineInterface.toTwoCharForm(language));
+        this.abbreviations = ABBREVIATIONS.getOrDefault(language, Collections.emptySet());
+        this.terminators = TERMINATORS.getOrDefault(language, "");
+    }
+
+    @Override
+    public String getId() {
+        return "java:" + language + ":" + RULES_VERSION;
+    }
+
+    /* It is quicker to segment a document again than to look it up in the sentence cache */
+    @Override
+    public boolean useSentenceCache() {
+        return false;
+    }
+
+    @Override
+    public List<String> getSentences(String text) {
+        List<String> sentences = new ArrayList<>();
+        /* BreakIterators are not thread-safe, so each call gets its own */
+        BreakIterator breakIterator = BreakIterator.getSentenceInstance(locale);
+        breakIterator.setText(text);
+        int start = breakIterator.first();
+        for (int end = breakIterator.next(); end != BreakIterator.DONE; end = breakIterator.next()) {
+            if (end < text.length() && endsWithAbbreviation(text, start, end)) {
+                continue;
+            }
+            splitAtTerminators(text, start, end, sentences);
+            start = end;
+        }
+        return sentences;
+    }
+
+    /* Tells whether the candidate sentence text[start, end) ends with an abbreviation or an initial */
+    private boolean endsWithAbbreviation(String text, int start, int end) {
+        int last = end - 1;
+        while (last >= start && Character.isWhitespace(text.charAt(last))) {
+            --last;
+        }
+        if (last < start || text.charAt(last) != '.') {
+            return false;
+        }
+        int wordStart = last;
+        while (wordStart > start && !Character.isWhitespace(text.charAt(wordStart - 1))) {
+            --wordStart;
+        }
+        while (wordStart < last && !Character.isLetterOrDigit(text.charAt(wordStart))) {
+            ++wordStart;
+        }
+        String word = text.substring(wordStart, last).toLowerCase(locale);
+        if (word.length() == 1 && Character.isLetter(word.charAt(0))) {
+            return true;
+        }
+        return abbreviations.contains(word);
+    }
+
+    /* Adds the sentences in text[start, end), splitting after any of the language's extra terminators */
+    private void splitAtTerminators(String text, int start, int end, List<String> sentences) {
+        int sentenceStart = start;
+        for (int i = start; i < end; ++i) {
+            if (terminators.indexOf(text.charAt(i)) >= 0) {
+                int sentenceEnd = i + 1;
+                while (sentenceEnd < end && (terminators.indexOf(text.charAt(sentenceEnd)) >= 0
+                        || CLOSERS.indexOf(text.charAt(sentenceEnd)) >= 0)) {
+                    ++sentenceEnd;
+                }
+                addSentence(text, sentenceStart, sentenceEnd, sentences);
+                sentenceStart = sentenceEnd;
+                i = sentenceEnd - 1;
+            }
+        }
+        addSentence(text, sentenceStart, end, sentences);
+    }
+
+    private static void addSentence(String text, int start, int end, List<String> sentences) {
+        String sentence = text.substring(start, end).trim();
+        if (!sentence.isEmpty()) {
+            sentences.add(sentence);
+        }
+    }
+}
@@ -1,14 +1,25 @@
 package edu.umass.ciir;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+/**
+ * Talks to a long-running Python program over its STDIN and STDOUT.
+ * Documents are sent in batches, as one framed message:
+ *   BATCH k\n   followed by k payloads, each one   n\n   followed by n bytes of UTF-8 text
+ * and the answers come back the same way, one answer list per document, in the same order:
+ *   BATCH k\n   followed by k answer lists, each one   m\n   followed by m payloads
+ * Length-prefixed payloads mean documents and answers can contain newlines, and one round trip
+ * covers k documents instead of one.
+ */
 public class LineOrientedPythonDaemon {
     private  ProcessBuilder sentenceProcessBuilder = null;
     private  Process sentenceProcess = null;
-    private  BufferedWriter sentenceCalledProcessStdin = null;
-    private  BufferedReader sentenceCalledProcessStdout = null;
+    private  OutputStream sentenceCalledProcessStdin = null;
+    private  InputStream sentenceCalledProcessStdout = null;
 
     LineOrientedPythonDaemon(String programName) {
         try {
@@ -17,33 +28,108 @@ public class LineOrientedPythonDaemon {
             sentenceProcessBuilder.directory(new File(Pathnames.programFileLocation));
             sentenceProcess = sentenceProcessBuilder.start();
 
-            sentenceCalledProcessStdin = new BufferedWriter(
-                    new OutputStreamWriter(sentenceProcess.getOutputStream()));
-            sentenceCalledProcessStdout = new BufferedReader(
-                    new InputStreamReader(sentenceProcess.getInputStream()));
+            sentenceCalledProcessStdin = new BufferedOutputStream(sentenceProcess.getOutputStream(), 1 << 16);
+            sentenceCalledProcessStdout = new BufferedInputStream(sentenceProcess.getInputStream(), 1 << 16);
         } catch (Exception e) {
             throw new TasksRunnerException(e);
         }
     }
 
-    public  synchronized List<String> getAnswers(String text) {
-        List<String> phrases = new ArrayList<String>();
+    /**
+     * Sends one document and gets back its answers.
+     * @param text the document
+     * @return the answers
+     */
+    public List<String> getAnswers(String text) {
+        return getAnswersBatch(Collections.singletonList(text)).get(0);
+    }
+
+    /**
+     * Sends a batch of documents in one message and gets back the answers for each of them.
+     * @param texts the documents
+     * @return one list of answers per document, in the same order as the documents
+     */
+    public synchronized List<List<String>> getAnswersBatch(List<String> texts) {
+        List<List<String>> answers = new ArrayList<>(texts.size());
         try {
-            sentenceCalledProcessStdin.write(text + "\n");
-            sentenceCalledProcessStdin.write("EOD\n");
+            writeLine("BATCH " + texts.size());
+            for (String text : texts) {
+                writePayload(text);
+            }
             sentenceCalledProcessStdin.flush();
 
-            String line;
-            while ((line = sentenceCalledProcessStdout.readLine()) != null) {
-                if (line.equals("EOL")) {
-                    break;
+            String header = readLine();
+            if (!header.equals("BATCH " + texts.size())) {
+                throw new TasksRunnerException("Unexpected answer header from Python daemon: " + header);
+            }
+            for (int i = 0; i < texts.size(); ++i) {
+                int numAnswers = Integer.parseInt(readLine());
+                List<String> phrases = new ArrayList<>(numAnswers);
+                for (int j = 0; j < numAnswers; ++j) {
+                    phrases.add(readPayload());
                 }
-                phrases.add(line);
+                answers.add(phrases);
             }
+        } catch (TasksRunnerException e) {
+            throw e;
         } catch (Exception e) {
             throw new TasksRunnerException(e);
         }
-        return phrases;
+        return answers;
+    }
+
+    private void writeLine(String line) throws IOException {
+        sentenceCalledProcessStdin.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writePayload(String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        writeLine(String.valueOf(bytes.length));
+        sentenceCalledProcessStdin.write(bytes);
+    }
+
+    /* Header and length lines are plain ASCII */
+    private String readLine() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        int b;
+        while ((b = sentenceCalledProcessStdout.read()) != '\n') {
+            if (b == -1) {
+                throw new TasksRunnerException("Python daemon exited before answering");
+            }
+            builder.append((char) b);
+        }
+        return builder.toString();
+    }
+
+    private String readPayload() throws IOException {
+        int length = Integer.parseInt(readLine());
+        byte[] bytes = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int count = sentenceCalledProcessStdout.read(bytes, n, length - n);
+            if (count == -1) {
+                throw new TasksRunnerException("Python daemon exited before answering");
+            }
+            n += count;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public boolean isAlive() {
+        return sentenceProcess.isAlive();
+    }
+
+    /**
+     * Kills the process and waits for it to exit.
+     */
+    public void kill() {
+        sentenceProcess.destroyForcibly();
+        try {
+            sentenceProcess.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TasksRunnerException(e);
+        }
     }
 
     // No need to do this, let it run until the whole program ends
@@ -0,0 +1,272 @@
+package edu.umass.ciir;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.ar.ArabicAnalyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.analysis.en.EnglishAnalyzer;
+import org.apache.lucene.analysis.fa.PersianAnalyzer;
+import org.apache.lucene.analysis.ru.RussianAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Builds the Anserini indexes of a corpus file in this JVM, with Lucene's IndexWriter, in one pass over the
+ * corpus and without writing the documents out as JsonCollection files first.
+ * The corpus is read on the calling thread (the shards concurrently, if it has been sharded, see CorpusShards),
+ * which drops duplicate docids and hands batches of lines to Pathnames.anseriniThreads indexing threads.
+ * Each indexing thread takes the fields out of its lines and adds the documents to their language's
+ * IndexWriter; IndexWriter indexes documents from different threads in parallel.
+ * The indexes are what Anserini's IndexCollection makes of a JsonCollection with the
+ * DefaultLuceneDocumentGenerator and -storePositions -storeDocvectors -storeRaw -optimize, with the analyzer
+ * its -language option picks, so SearchCollection searches them as it always has:
+ * an "id" field (stored, and as sorted doc values, which SearchCollection breaks ties with),
+ * a "contents" field with positions and term vectors, and a stored "raw" field with the JsonCollection line.
+ */
+public class LuceneIndexer {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    /* The names Anserini gives the fields */
+    private static final String ID_FIELD = "id";
+    private static final String CONTENTS_FIELD = "contents";
+    private static final String RAW_FIELD = "raw";
+
+    /* Corpus lines are handed to the indexing threads this many at a time */
+    private static final int BATCH_SIZE = 1024;
+    /* IndexWriter's limit on the RAM buffer of one indexing thread */
+    private static final long MAX_RAM_BUFFER_MB = 1945;
+
+    private static final FieldType CONTENTS_TYPE = new FieldType();
+    static {
+        CONTENTS_TYPE.setTokenized(true);
+        CONTENTS_TYPE.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+        CONTENTS_TYPE.setStoreTermVectors(true);
+        CONTENTS_TYPE.setStoreTermVectorPositions(true);
+        CONTENTS_TYPE.freeze();
+    }
+
+    private final String indexDirectory;
+    /* The key is the language */
+    private final Map<String, IndexWriter> writers = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> docs = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> chars = new ConcurrentHashMap<>();
+
+    /**
+     * @param indexDirectory the directory to make the indexes in, as better-clear-ir-LANGUAGE
+     */
+    public LuceneIndexer(String indexDirectory) {
+        this.indexDirectory = indexDirectory;
+    }
+
+    /**
+     * Returns the analyzer Anserini's IndexCollection and SearchCollection use for a language.
+     * @param language the canonical language
+     * @return the analyzer
+     */
+    static Analyzer getAnalyzer(String language) {
+        switch (language) {
+            case "arabic":
+                return new ArabicAnalyzer();
+            case "chinese":
+            case "korean":
+                return new CJKAnalyzer();
+            case "farsi":
+                return new PersianAnalyzer();
+            case "russian":
+                return new RussianAnalyzer();
+            default:
+                /* Porter stemming and English stopwords, as Anserini's DefaultEnglishAnalyzer */
+                return new EnglishAnalyzer();
+        }
+    }
+
+    /**
+     * Indexes a corpus file, a new index for each language in it, replacing any old ones.
+     * @param corpusFile the corpus file
+     */
+    public void index(String corpusFile) {
+        DocidSet ids = new DocidSet();
+        List<CorpusShards.Shard> shards = CorpusShards.getShardsOrCorpus(corpusFile);
+        ExecutorService indexers = Executors.newFixedThreadPool(Pathnames.anseriniThreads);
+        Instant start = Instant.now();
+        boolean finished = false;
+        try {
+            shards.parallelStream().forEach(shard -> index(shard, ids, indexers));
+            finished = true;
+        } finally {
+            indexers.shutdownNow();
+            if (!finished) {
+                for (IndexWriter writer : writers.values()) {
+                    try (Directory directory = writer.getDirectory()) {
+                        writer.rollback();
+                    } catch (IOException ignore) {
+                        // the build has already failed
+                    }
+                }
+            }
+        }
+        double seconds = Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0;
+        logger.info(String.format("Indexed %d docs in %.1f seconds with %d threads, %.0f docs/sec",
+                ids.size(), seconds, Pathnames.anseriniThreads, ids.size() / seconds));
+        logger.info("Duplicate check: " + ids.describeMemory());
+        for (Map.Entry<String, IndexWriter> entry : new TreeMap<>(writers).entrySet()) {
+            Instant mergeStart = Instant.now();
+            try (Directory directory = entry.getValue().getDirectory(); IndexWriter writer = entry.getValue()) {
+                writer.forceMerge(1);
+                writer.commit();
+            } catch (IOException cause) {
+                throw new TasksRunnerException(cause);
+            }
+            logger.info(String.format("Merged the %s index into one segment in %.1f seconds", entry.getKey(),
+                    Math.max(1, Duration.between(mergeStart, Instant.now()).toMillis()) / 1000.0));
+        }
+    }
+
+    /**
+     * Returns the languages indexed.
+     * @return the canonical languages
+     */
+    public Set<String> getLanguages() {
+        return new TreeSet<>(docs.keySet());
+    }
+
+    public long getDocs(String language) {
+        return docs.getOrDefault(language, new AtomicLong()).get();
+    }
+
+    /**
+     * Returns the number of characters of text indexed for a language.
+     * @param language the language
+     * @return the number of characters
+     */
+    public long getChars(String language) {
+        return chars.getOrDefault(language, new AtomicLong()).get();
+    }
+
+    /**
+     * Reads one shard, keeping at most twice as many batches in flight as there are indexing threads,
+     * so the reading waits for the indexing instead of filling memory.
+     */
+    private void index(CorpusShards.Shard shard, Set<String> ids, ExecutorService indexers) {
+        Deque<Future<?>> inFlight = new ArrayDeque<>();
+        int maxInFlight = 2 * Pathnames.anseriniThreads;
+        try {
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            long[] batchLineNumbers = new long[BATCH_SIZE];
+            long lineNo = shard.getFirstDoc();
+            for (CorpusReader.Line corpusLine : new CorpusReader(shard.getFile())) {
+                ++lineNo;
+                // Some corpora have duplicates, index only one
+                if (!ids.add(CorpusIdExtractor.getDocid(corpusLine))) {
+                    continue;
+                }
+                batchLineNumbers[batch.size()] = lineNo;
+                batch.add(corpusLine.getText());
+                if (batch.size() == BATCH_SIZE) {
+                    List<String> lines = batch;
+                    long[] lineNumbers = batchLineNumbers;
+                    inFlight.addLast(indexers.submit(() -> addDocuments(lines, lineNumbers)));
+                    batch = new ArrayList<>(BATCH_SIZE);
+                    batchLineNumbers = new long[BATCH_SIZE];
+                    if (inFlight.size() >= maxInFlight) {
+                        ParallelTasks.get(inFlight.removeFirst());
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                List<String> lines = batch;
+                long[] lineNumbers = batchLineNumbers;
+                inFlight.addLast(indexers.submit(() -> addDocuments(lines, lineNumbers)));
+            }
+            while (!inFlight.isEmpty()) {
+                ParallelTasks.get(inFlight.removeFirst());
+            }
+        } finally {
+            ParallelTasks.cancelAll(inFlight);
+        }
+    }
+
+    private static String mustContainString(CorpusLineFields fields, String fieldName, long lineNo) {
+        String value = fields.getString(fieldName);
+        if (value == null) {
+            throw new TasksRunnerException("No " + fieldName + " field in corpus file, line " + lineNo);
+        }
+        return value;
+    }
+
+    private Void addDocuments(List<String> lines, long[] lineNumbers) throws IOException {
+        for (int i = 0; i < lines.size(); ++i) {
+            CorpusLineFields fields = new CorpusLineFields(lines.get(i));
+            if (!fields.isNewStyle()) {
+                throw new TasksRunnerException("No derived-metadata field in corpus file, line " + lineNumbers[i]);
+            }
+            String uuid = fields.getDocid();
+            if (uuid == null) {
+                throw new TasksRunnerException("No id field in corpus file, line " + lineNumbers[i]);
+            }
+            String text = mustContainString(fields, "text", lineNumbers[i]);
+            String language = SearchEngineInterface.toCanonicalForm(
+                    mustContainString(fields, "language", lineNumbers[i]));
+
+            Document document = new Document();
+            document.add(new StringField(ID_FIELD, uuid, Field.Store.YES));
+            document.add(new SortedDocValuesField(ID_FIELD, new BytesRef(uuid)));
+            document.add(new StoredField(RAW_FIELD, "{\"id\": \"" + uuid + "\", \"contents\": \""
+                    + JSONValue.escape(text) + "\"}"));
+            document.add(new Field(CONTENTS_FIELD, text, CONTENTS_TYPE));
+            getWriter(language).addDocument(document);
+            docs.get(language).incrementAndGet();
+            chars.get(language).addAndGet(text.length());
+        }
+        return null;
+    }
+
+    /**
+     * Returns a language's IndexWriter, opening it the first time the language is seen.
+     * A quarter of the heap is shared among the writers for their RAM buffers, so each time a writer is opened,
+     * all the writers' buffers are made smaller.
+     */
+    private IndexWriter getWriter(String language) throws IOException {
+        IndexWriter writer = writers.get(language);
+        if (writer != null) {
+            return writer;
+        }
+        synchronized (writers) {
+            writer = writers.get(language);
+            if (writer == null) {
+                IndexWriterConfig config = new IndexWriterConfig(getAnalyzer(language));
+                config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+                config.setSimilarity(new BM25Similarity());
+                config.setUseCompoundFile(false);
+                writer = new IndexWriter(FSDirectory.open(Paths.get(indexDirectory + "better-clear-ir-" + language)),
+                        config);
+                docs.put(language, new AtomicLong());
+                chars.put(language, new AtomicLong());
+                writers.put(language, writer);
+                double ramBufferMB = Math.max(16, Math.min(MAX_RAM_BUFFER_MB,
+                        Runtime.getRuntime().maxMemory() / 1048576 / 4 / writers.size()));
+                for (IndexWriter languageWriter : writers.values()) {
+                    languageWriter.getConfig().setRAMBufferSizeMB(ramBufferMB);
+                }
+                logger.info("Opened the " + language + " Lucene index, " + writers.size() + " open with "
+                        + ramBufferMB + " MB RAM buffers");
+            }
+            return writer;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package edu.umass.ciir;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs work on thread pools the way the rest of the program expects: a failure on a pool thread is thrown
+ * on the caller's thread as the TasksRunnerException it was (or wrapped in one), and work the caller is no
+ * longer waiting for is cancelled.
+ */
+public class ParallelTasks {
+
+    /**
+     * Runs some tasks on a pool of their own, at most threads of them at once, and waits for all of them.
+     * If one fails, the rest are stopped and its exception is thrown.
+     * @param tasks the tasks
+     * @param threads the most tasks to run at once
+     */
+    public static void runAll(Collection<? extends Runnable> tasks, int threads) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), threads)));
+        List<Future<?>> futures = new ArrayList<>(tasks.size());
+        try {
+            for (Runnable task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (Future<?> future : futures) {
+                get(future);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Waits for a task's result.
+     * @param future the task
+     * @return its result
+     * @throws TasksRunnerException if the task failed, or the wait was interrupted
+     */
+    public static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException cause) {
+            throw cause.getCause() instanceof TasksRunnerException ? (TasksRunnerException) cause.getCause()
+                    : new TasksRunnerException(cause);
+        } catch (InterruptedException cause) {
+            Thread.currentThread().interrupt();
+            throw new TasksRunnerException(cause);
+        }
+    }
+
+    /**
+     * Cancels tasks, interrupting the ones that are running. Tasks that are done are not affected.
+     * @param futures the tasks
+     */
+    public static void cancelAll(Collection<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+}
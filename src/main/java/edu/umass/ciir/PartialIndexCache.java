@@ -0,0 +1,209 @@
+package edu.umass.ciir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the task-level partial indexes of past runs, so a task whose top documents have not changed since
+ * (which is common across HITL iterations, and across reruns with a different request-level formulator)
+ * gets its index back instead of building it again.
+ * A cached index is keyed by a SHA-256 hash of the version of the full index it was built from (the names,
+ * sizes and modification times of its files), its sorted document list, and the stemmer and tokenizer
+ * settings of its build configuration. The cached indexes are in Pathnames.indexLocation/galago/partial-cache/,
+ * each in a directory named by its key, and the task-level index name a run searches is a symbolic link to one.
+ * Each time a cached index is used its modification time is set to now, and once a run's task-level indexes
+ * are ready, the least recently used ones beyond Pathnames.partialIndexCacheSize are deleted, along with any
+ * links to them. The ones the running process has used are never deleted.
+ * A build holds a lock on the file key.lock next to the entry, as well as a lock within the process, so two
+ * processes sharing the cache do not build the same index at once; the second finds the first one's entry
+ * when it gets the lock. Eviction takes the lock too, and skips entries someone else holds it for.
+ * The lock files are left in place, so every process locks the same file.
+ */
+public class PartialIndexCache {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    /* One lock per key, so that two tasks with the same documents do not both build the index. A file lock is
+       held by the JVM as a whole, so threads of the same process must not ask for it at the same time */
+    private static final Map<String, Object> locks = new ConcurrentHashMap<>();
+    /* The keys used by this process */
+    private static final Set<String> used = ConcurrentHashMap.newKeySet();
+
+    private static String getDirectory() {
+        return Pathnames.indexLocation + "galago/partial-cache/";
+    }
+
+    /**
+     * Tells whether task-level indexes are cached at all.
+     * @return false if Pathnames.partialIndexCacheSize is 0
+     */
+    public static boolean isEnabled() {
+        return Pathnames.partialIndexCacheSize > 0;
+    }
+
+    /**
+     * Computes the key of a partial index.
+     * @param fullIndex the full index the partial index is built from
+     * @param documentNameList the file listing the documents it is built on, one per line
+     * @param configuration the settings of its build configuration that change what is indexed
+     * @return the key, 64 hex digits
+     */
+    public static String getKey(String fullIndex, String documentNameList, String configuration) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            File[] files = new File(fullIndex).listFiles();
+            if (files == null) {
+                throw new TasksRunnerException("Full index " + fullIndex + " does not exist");
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                update(digest, file.getName() + " " + file.length() + " " + file.lastModified());
+            }
+            List<String> names = Files.readAllLines(Paths.get(documentNameList), StandardCharsets.UTF_8);
+            Collections.sort(names);
+            for (String name : names) {
+                if (!name.isEmpty()) {
+                    update(digest, name);
+                }
+            }
+            update(digest, configuration);
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (IOException | NoSuchAlgorithmException cause) {
+            throw new TasksRunnerException(cause);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+    }
+
+    /**
+     * Makes indexPath the cached index with this key, building it first if there is none.
+     * @param key the key, from getKey()
+     * @param indexPath the path the task-level index is searched by
+     * @param taskID the task ID, for the log
+     * @param builder builds the index at the path it is given
+     */
+    public static void getOrBuild(String key, String indexPath, String taskID, Consumer<String> builder) {
+        Path entry = Paths.get(getDirectory() + key);
+        synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+            used.add(key);
+            try {
+                Files.createDirectories(entry.getParent());
+                try (FileChannel lockFile = FileChannel.open(Paths.get(entry + ".lock"), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+                     FileLock ignored = lockFile.lock()) {
+                    if (Files.isDirectory(entry)) {
+                        logger.info("Reusing the cached task-level index for task " + taskID + ", " + entry);
+                        entry.toFile().setLastModified(System.currentTimeMillis());
+                    } else {
+                        build(entry, taskID, builder);
+                    }
+                }
+            } catch (IOException cause) {
+                throw new TasksRunnerException(cause);
+            }
+        }
+        try {
+            Path link = Paths.get(indexPath);
+            delete(link);
+            Files.createSymbolicLink(link, entry.toAbsolutePath());
+        } catch (IOException cause) {
+            throw new TasksRunnerException(cause);
+        }
+    }
+
+    /* Builds an entry in a directory of its own and moves it into place. If the entry turns up in the
+       meantime anyway (another process not using the lock file, say), the one built here is thrown away */
+    private static void build(Path entry, String taskID, Consumer<String> builder) throws IOException {
+        Path building = Paths.get(entry + ".building");
+        delete(building);
+        try {
+            builder.accept(building.toString());
+            Files.move(building, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (!Files.isDirectory(entry)) {
+                throw e;
+            }
+            logger.info("Task-level index for task " + taskID + " was cached by someone else meanwhile, " + entry);
+        } finally {
+            delete(building);
+        }
+    }
+
+    /**
+     * Deletes the least recently used cached indexes beyond Pathnames.partialIndexCacheSize, and the links to them,
+     * keeping any this process has used.
+     */
+    public static void evict() {
+        File[] entries = new File(getDirectory()).listFiles(file -> file.isDirectory()
+                && !file.getName().endsWith(".building"));
+        if (entries == null || entries.length <= Pathnames.partialIndexCacheSize) {
+            return;
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified).reversed());
+        Set<Path> evicted = new HashSet<>();
+        for (int i = Pathnames.partialIndexCacheSize; i < entries.length; ++i) {
+            if (!used.contains(entries[i].getName()) && evict(entries[i].toPath())) {
+                evicted.add(entries[i].toPath().toAbsolutePath());
+            }
+        }
+        try (Stream<Path> files = Files.list(Paths.get(Pathnames.indexLocation + "galago"))) {
+            for (Path link : files.filter(Files::isSymbolicLink).collect(Collectors.toList())) {
+                if (evicted.contains(Files.readSymbolicLink(link))) {
+                    Files.delete(link);
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Could not delete the links to evicted task-level indexes: " + e.getMessage());
+        }
+    }
+
+    /* Deletes an entry, unless another process is using it. Returns true if it was deleted */
+    private static boolean evict(Path entry) {
+        try (FileChannel lockFile = FileChannel.open(Paths.get(entry + ".lock"), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+             FileLock lock = lockFile.tryLock()) {
+            if (lock == null) {
+                return false;
+            }
+            logger.info("Evicting cached task-level index " + entry);
+            delete(entry);
+            return true;
+        } catch (IOException | OverlappingFileLockException e) {
+            return false;
+        }
+    }
+
+    /* Deletes a file, link or directory tree, if it exists. A link is deleted, not what it points to */
+    private static void delete(Path path) {
+        try {
+            if (Files.isSymbolicLink(path) || Files.isRegularFile(path)) {
+                Files.delete(path);
+            } else if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+                }
+            }
+        } catch (IOException e) {
+            logger.warning("Could not delete " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -3,9 +3,12 @@ package edu.umass.ciir;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 /**
  * Pathnames of the files used by the program, and settings such as 'targetCorpusFileName'.
@@ -25,6 +28,31 @@ public class Pathnames {
     public static int RESULTS_CAP = 1000;
     public static int RESULTS_CAP_IN_FINAL_RESULTS_FILE = 1000;
     public static int DOCS_TO_PROCESS = 2000;
+    public static boolean useCorpusOffsetIndex = true;  // fetch docs with positioned reads instead of corpus scans
+    public static long documentCacheBytes = Runtime.getRuntime().maxMemory() / 4;  // budget for Document's doc cache
+    public static boolean compactDocumentStore = false;  // keep cached doc text compressed
+    public static boolean lazyDocumentDetails = false;  // take doc details out of the corpus line when first needed
+    public static boolean useSentenceCache = true;  // reuse spaCy sentence boundaries across runs
+    public static int spacyDaemons = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    public static int spacyBatchSize = 64;  // documents sent to a spaCy daemon in one request
+    public static List<String> javaSegmenterLanguages = Arrays.asList();  // languages segmented without spaCy
+    public static int preprocessThreads = Runtime.getRuntime().availableProcessors();  // index preprocessing workers
+    public static int anseriniThreads = Runtime.getRuntime().availableProcessors();  // IndexCollection threads
+    public static int anseriniFilesPerLanguage = anseriniThreads;  // JsonCollection files written per language
+    public static boolean inProcessAnseriniIndexBuild = true;  // build Anserini indexes with Lucene in this JVM
+    public static boolean inProcessIndexBuild = false;  // build Galago indexes in this JVM, not with "galago build"
+    public static int indexBuildThreads = Runtime.getRuntime().availableProcessors();  // shared by Galago builds
+    public static long minIndexBuildMemoryMB = 4096;  // no more in-process Galago builds run at once than get this much heap each
+    public static int partialIndexThreads = Runtime.getRuntime().availableProcessors();  // task-level index builds
+    public static long partialIndexMemoryMB = 2048;  // memory each task-level index build is allowed
+    public static int partialIndexCacheSize = 100;  // task-level indexes kept for reuse, 0 for none
+    public static boolean inMemoryTaskIndex = false;  // search task docs in memory; see Benchmarks task-docs-search
+    public static boolean inProcessSearch = false;  // search in this JVM, not batch-search; see Benchmarks galago-search
+    public static int galagoSearchThreads = Runtime.getRuntime().availableProcessors();  // shared by in-process searches
+    public static int corpusShards = 0;  // if > 1, split the target corpus into this many shards at index build
+    public static int corpusAnnotationPartSize = 3000;  // corpus docs sent to the event extractor at a time
+    // parts 54 and 55 caused errors in the ISI event extractor
+    public static Set<Integer> corpusAnnotationPartsToSkip = new HashSet<>(Arrays.asList(54, 55));  // corpus parts not to annotate
 
     public static String searchEngine = "galago";
     public static boolean developmentTestingNoDocker = false;
@@ -33,6 +61,9 @@ public class Pathnames {
     public static boolean skipReranker = false;
     public static boolean skipPretrain = false;
     public static boolean skipIndexBuild = false;
+    public static boolean deltaIndexBuild = true;  // index only the docs added to the corpus since the last build (one-step model only)
+    public static int maxDeltaIndexes = 5;  // delta indexes per language before a full rebuild merges them
+    public static boolean mergeDeltaIndexes = false;  // rebuild the indexes in full now, merging any delta indexes
     public static boolean skipExampleDocAnnotation = false;
     public static boolean skipRelevantDocAnnotation = false;
     public static boolean skipRequestDocAnnotation = false;
@@ -75,6 +106,8 @@ public class Pathnames {
     public static String eventExtractorFileLocation = scratchFileLocation + "eventextractorfiles/";
     public static String taskCorpusFileLocation = scratchFileLocation + "taskcorpusfiles/";
     public static String galagoJobDirLocation = scratchFileLocation + "galago_job_dir/";
+    public static String sentenceCacheFile = scratchFileLocation + "sentence_cache.log";
+    public static String corpusShardLocation = scratchFileLocation + "corpusshards/";
     public static String targetCorpusFileName = "";
     public static String englishCorpusFileName = "";
     public static String tasksFileName = "ir-tasks.json";
@@ -187,8 +220,43 @@ public class Pathnames {
         DOCS_TO_PROCESS = Integer.parseInt(getFromEnv("DOCS_TO_PROCESS", "1000"));
         RESULTS_CAP = Integer.parseInt(getFromEnv("RESULTS_CAP", "1000"));
         RESULTS_CAP_IN_FINAL_RESULTS_FILE = Integer.parseInt(getFromEnv("RESULTS_CAP_IN_FINAL_RESULTS_FILE", "1000"));
+        useCorpusOffsetIndex = (getFromEnv("useCorpusOffsetIndex", "true").equals("true"));
+        documentCacheBytes = Long.parseLong(getFromEnv("documentCacheMB",
+                String.valueOf(Runtime.getRuntime().maxMemory() / 4 / 1048576))) * 1048576;
+        compactDocumentStore = (getFromEnv("compactDocumentStore", "false").equals("true"));
+        lazyDocumentDetails = (getFromEnv("lazyDocumentDetails", "false").equals("true"));
+        useSentenceCache = (getFromEnv("useSentenceCache", "true").equals("true"));
+        spacyDaemons = Integer.parseInt(getFromEnv("spacyDaemons", String.valueOf(spacyDaemons)));
+        spacyBatchSize = Integer.parseInt(getFromEnv("spacyBatchSize", "64"));
+        /* A comma-separated list of canonical language names, like "chinese,arabic" */
+        javaSegmenterLanguages = Arrays.stream(getFromEnv("javaSegmenterLanguages", "").split(","))
+                .map(String::trim).filter(l -> !l.isEmpty()).collect(Collectors.toList());
+        preprocessThreads = Integer.parseInt(getFromEnv("preprocessThreads", String.valueOf(preprocessThreads)));
+        anseriniThreads = Integer.parseInt(getFromEnv("anseriniThreads", String.valueOf(anseriniThreads)));
+        anseriniFilesPerLanguage = Integer.parseInt(getFromEnv("anseriniFilesPerLanguage",
+                String.valueOf(anseriniThreads)));
+        inProcessAnseriniIndexBuild = (getFromEnv("inProcessAnseriniIndexBuild", "true").equals("true"));
+        inProcessIndexBuild = (getFromEnv("inProcessIndexBuild", "false").equals("true"));
+        indexBuildThreads = Integer.parseInt(getFromEnv("indexBuildThreads", String.valueOf(indexBuildThreads)));
+        minIndexBuildMemoryMB = Long.parseLong(getFromEnv("minIndexBuildMemoryMB", "4096"));
+        partialIndexThreads = Integer.parseInt(getFromEnv("partialIndexThreads",
+                String.valueOf(partialIndexThreads)));
+        partialIndexMemoryMB = Long.parseLong(getFromEnv("partialIndexMemoryMB", "2048"));
+        partialIndexCacheSize = Integer.parseInt(getFromEnv("partialIndexCacheSize", "100"));
+        inMemoryTaskIndex = (getFromEnv("inMemoryTaskIndex", "false").equals("true"));
+        inProcessSearch = (getFromEnv("inProcessSearch", "false").equals("true"));
+        galagoSearchThreads = Integer.parseInt(getFromEnv("galagoSearchThreads",
+                String.valueOf(galagoSearchThreads)));
+        corpusShards = Integer.parseInt(getFromEnv("corpusShards", "0"));
+        corpusAnnotationPartSize = Integer.parseInt(getFromEnv("corpusAnnotationPartSize", "3000"));
+        /* A comma-separated list of part numbers, like "54,55" */
+        corpusAnnotationPartsToSkip = Arrays.stream(getFromEnv("corpusAnnotationPartsToSkip", "54,55").split(","))
+                .map(String::trim).filter(p -> !p.isEmpty()).map(Integer::parseInt).collect(Collectors.toSet());
         includeEventsInFinalResults = (getFromEnv("includeEventsInFinalResults", "false").equals("true"));
         skipIndexBuild = (getFromEnv("skipIndexBuild", "false").equals("true"));
+        deltaIndexBuild = (getFromEnv("deltaIndexBuild", "true").equals("true"));
+        maxDeltaIndexes = Integer.parseInt(getFromEnv("maxDeltaIndexes", "5"));
+        mergeDeltaIndexes = (getFromEnv("mergeDeltaIndexes", "false").equals("true"));
         skipNeuralIndexBuild = (getFromEnv("skipNeuralIndexBuild", "false").equals("true"));
         skipExampleDocAnnotation = (getFromEnv("skipAnnotateExampleDocs", "false").equals("true"));
         skipRelevantDocAnnotation = (getFromEnv("skipAnnotateRelevantDocs", "false").equals("true"));
@@ -297,6 +365,9 @@ public class Pathnames {
                 scratchFileLocation + "taskcorpusfiles/"));
         galagoJobDirLocation = ensureTrailingSlash(getFromEnv("galagoJobDirLocation",
                 scratchFileLocation + "galago_job_dir/"));
+        sentenceCacheFile = getFromEnv("sentenceCacheFile", scratchFileLocation + "sentence_cache.log");
+        corpusShardLocation = ensureTrailingSlash(getFromEnv("corpusShardLocation",
+                scratchFileLocation + "corpusshards/"));
 
         targetCorpusFileName = getFromEnv("targetCorpusFileName",
                 "MISSING ENV VAR: targetCorpusFileName", Required.REQUIRED);
@@ -0,0 +1,165 @@
+package edu.umass.ciir;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * A pool of identical LineOrientedPythonDaemon processes. Each call is handed to whichever process is idle,
+ * so callers on different threads (like the parallel stream in Document.buildDocMap) are not all queued up
+ * behind a single Python process. A process that has died, or that fails a call, is killed and restarted, and
+ * the call is retried on the new one.
+ */
+public class PythonDaemonPool {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    private final String programName;
+    private final Slot[] slots;
+    private final BlockingQueue<Slot> idleSlots;
+    /* Number of callers waiting for a process to become idle */
+    private final AtomicInteger waiting = new AtomicInteger();
+    /* Statistics since the last logStatistics(): the most callers waiting at once, and the time they all
+       spent waiting, which divided by the time since then is the average number waiting */
+    private final AtomicInteger peakWaiting = new AtomicInteger();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private volatile long statisticsStart = System.nanoTime();
+
+    /**
+     * One process in the pool, with its statistics.
+     */
+    private class Slot {
+        final int id;
+        LineOrientedPythonDaemon daemon;
+        /* Time spent on requests since the last logStatistics() */
+        final AtomicLong busyNanos = new AtomicLong();
+        final AtomicLong served = new AtomicLong();
+        final AtomicInteger restarts = new AtomicInteger();
+
+        Slot(int id) {
+            this.id = id;
+            this.daemon = new LineOrientedPythonDaemon(programName);
+        }
+
+        void restart() {
+            logger.info("Restarting " + programName + " daemon " + id);
+            daemon.kill();
+            daemon = new LineOrientedPythonDaemon(programName);
+            restarts.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts the pool's processes.
+     * @param programName the Python program, in the program files directory
+     * @param size how many processes to run
+     */
+    PythonDaemonPool(String programName, int size) {
+        this.programName = programName;
+        logger.info("Starting " + size + " " + programName + " daemons");
+        slots = new Slot[size];
+        idleSlots = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; ++i) {
+            slots[i] = new Slot(i);
+            idleSlots.add(slots[i]);
+        }
+    }
+
+    /**
+     * Runs a request on an idle process, waiting for one if they are all busy.
+     * If the process has died, or the request fails, the process is killed and restarted and the request is tried
+     * once more. A process whose request failed is never reused: even if it is still running (its output may
+     * have closed before it exited), it may be part way through a message.
+     * @param request what to do with the process
+     * @return the request's result
+     */
+    public <T> T call(Function<LineOrientedPythonDaemon, T> request) {
+        Slot slot;
+        peakWaiting.accumulateAndGet(waiting.incrementAndGet(), Math::max);
+        long waitStart = System.nanoTime();
+        try {
+            slot = idleSlots.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TasksRunnerException(e);
+        } finally {
+            waiting.decrementAndGet();
+            waitNanos.addAndGet(System.nanoTime() - waitStart);
+        }
+        long busyStart = System.nanoTime();
+        try {
+            if (!slot.daemon.isAlive()) {
+                slot.restart();
+            }
+            T result;
+            try {
+                result = request.apply(slot.daemon);
+            } catch (RuntimeException e) {
+                logger.warning(programName + " daemon " + slot.id + " failed, retrying: " + e.getMessage());
+                slot.restart();
+                try {
+                    result = request.apply(slot.daemon);
+                } catch (RuntimeException again) {
+                    slot.restart();
+                    throw again;
+                }
+            }
+            slot.served.incrementAndGet();
+            return result;
+        } finally {
+            slot.busyNanos.addAndGet(System.nanoTime() - busyStart);
+            idleSlots.add(slot);
+        }
+    }
+
+    /**
+     * Gets the answers for one text from an idle process.
+     * @param text the text to send
+     * @return the answer lines
+     */
+    public List<String> getAnswers(String text) {
+        return call(daemon -> daemon.getAnswers(text));
+    }
+
+    /**
+     * Gets the answers for a batch of texts from an idle process, in one request.
+     * @param texts the texts to send
+     * @return the answer lines for each text, in the same order as the texts
+     */
+    public List<List<String>> getAnswersBatch(List<String> texts) {
+        return call(daemon -> daemon.getAnswersBatch(texts));
+    }
+
+    public int size() {
+        return slots.length;
+    }
+
+    /**
+     * Logs the peak and average number of callers waiting for an idle process, and for each process the time
+     * it spent on requests (and what share of the time that is), all since the last call, plus how many
+     * requests it has served and how many times it has been restarted.
+     */
+    public void logStatistics() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - statisticsStart) / 1e9;
+        statisticsStart = now;
+        StringBuilder builder = new StringBuilder(String.format("%s daemon pool, last %.1f s: callers waiting"
+                        + " for a daemon peak %d, average %.2f", programName, seconds,
+                peakWaiting.getAndSet(waiting.get()), waitNanos.getAndSet(0) / 1e9 / seconds));
+        for (Slot slot : slots) {
+            double busySeconds = slot.busyNanos.getAndSet(0) / 1e9;
+            builder.append(String.format("%n  daemon %d: busy %.1f s (%.0f%%), served %d, restarts %d", slot.id,
+                    busySeconds, 100 * busySeconds / seconds, slot.served.get(), slot.restarts.get()));
+        }
+        logger.info(builder.toString());
+    }
+
+    public void stop() {
+        for (Slot slot : slots) {
+            slot.daemon.stop();
+        }
+    }
+}
@@ -8,6 +8,8 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
@@ -776,6 +778,9 @@ public class QueryManager {
 
         AtomicLong totalRunTime = new AtomicLong(0);
         List<String> runFiles = new CopyOnWriteArrayList<>();
+        // The task-level query's hits, the candidates the request queries are run on in memory
+        Run taskLevelRun = Pathnames.inMemoryTaskIndex
+                ? new Run(Pathnames.runFileLocation + getTaskLevelKey() + ".out") : null;
         logger.info("Executing request queries for " + tasks.getTaskList().size());
         tasks.getTaskList().parallelStream().forEach(t ->  {
             String theRunFileName = Pathnames.runFileLocation + key + ".TASK." + t.taskNum + ".out";
@@ -785,8 +790,21 @@ public class QueryManager {
             logger.info("Executing request queries for task " + t.taskNum);
 
             GalagoSearchEngine galagoSearchEngine = new GalagoSearchEngine();
-            galagoSearchEngine.executeAgainstPartialIndex(1, numResults, queryFileName, theRunFileName,
-                    t.taskNum, submissionId, language, getTaskLevelIndexName(t.taskNum));
+            if (taskLevelRun == null || !galagoSearchEngine.executeAgainstTaskDocs(numResults, queryFileName,
+                    theRunFileName, t.taskNum, language, getTaskLevelDocids(taskLevelRun, t.taskNum))) {
+                if (taskLevelRun != null) {
+                    // buildTaskLevelIndexes() left the partial index to be built here, if it was needed
+                    String taskLevelKey = getTaskLevelKey() + "." + t.taskNum;
+                    writeTaskDocIDList(t.taskNum, getTaskLevelDocids(taskLevelRun, t.taskNum));
+                    galagoSearchEngine.buildTaskPartialIndex(t.taskNum, submissionId,
+                            Pathnames.indexLocation + Pathnames.searchEngine + "/better-clear-ir-" + language,
+                            Pathnames.taskCorpusFileLocation + taskLevelKey + ".DOC_LIST.txt",
+                            getTaskLevelIndexName(t.taskNum), language,
+                            Pathnames.taskCorpusFileLocation + taskLevelKey + ".conf");
+                }
+                galagoSearchEngine.executeAgainstPartialIndex(1, numResults, queryFileName, theRunFileName,
+                        t.taskNum, submissionId, language, getTaskLevelIndexName(t.taskNum));
+            }
             run = new Run(theRunFileName);  // Get new run file into memory
 
             totalRunTime.getAndAdd(runTime);
@@ -794,24 +812,42 @@ public class QueryManager {
         logger.info("Merging run files");
 
         mergeRunFiles(runFiles);
+        planRequestHitPrefetch();
 
         runTime = totalRunTime.get();
     }
     /**
      * Builds a Galago index on the top scoredHits for each task.
+     * The builds run on a pool of their own, as many at once as the memory budget allows
+     * (see GalagoSearchEngine.getConcurrentPartialIndexBuilds()).
      */
     public void buildTaskLevelIndexes() {
+        if (Pathnames.inMemoryTaskIndex) {
+            logger.info("Task-level indexes will be built in memory when the request queries are run");
+            return;
+        }
         GalagoSearchEngine galagoSearchEngine = new GalagoSearchEngine();
-        tasks.getTaskList().parallelStream().forEach(t ->
-                {
-                    createTaskDocIDListFromHits(t.taskNum);
-                    galagoSearchEngine.buildTaskPartialIndex(t.taskNum, submissionId,
-                Pathnames.indexLocation + Pathnames.searchEngine + "/better-clear-ir-" + language,
-                            Pathnames.taskCorpusFileLocation + key + "." + t.taskNum + ".DOC_LIST.txt",
-                            getTaskLevelIndexName(t.taskNum), language,
-                            Pathnames.taskCorpusFileLocation + key + "." + t.taskNum + ".conf");
-                }
-                );
+        int concurrentBuilds = GalagoSearchEngine.getConcurrentPartialIndexBuilds(tasks.getTaskList().size());
+        logger.info("Building " + tasks.getTaskList().size() + " task-level indexes, " + concurrentBuilds
+                + " at a time");
+        Instant start = Instant.now();
+        List<Runnable> builds = new ArrayList<>();
+        for (Task t : tasks.getTaskList()) {
+            builds.add(() -> {
+                createTaskDocIDListFromHits(t.taskNum);
+                galagoSearchEngine.buildTaskPartialIndex(t.taskNum, submissionId,
+                        Pathnames.indexLocation + Pathnames.searchEngine + "/better-clear-ir-" + language,
+                        Pathnames.taskCorpusFileLocation + key + "." + t.taskNum + ".DOC_LIST.txt",
+                        getTaskLevelIndexName(t.taskNum), language,
+                        Pathnames.taskCorpusFileLocation + key + "." + t.taskNum + ".conf");
+            });
+        }
+        ParallelTasks.runAll(builds, concurrentBuilds);
+        if (PartialIndexCache.isEnabled()) {
+            PartialIndexCache.evict();
+        }
+        logger.info(String.format("Built the task-level indexes in %.1f seconds",
+                Math.max(1, Duration.between(start, Instant.now()).toMillis()) / 1000.0));
     }
     /**
      * Asks the search engine to executes the default queryfile,
@@ -828,6 +864,22 @@ public class QueryManager {
         }
 
         run = new Run(runFileName);  // Get new run file into memory
+        planRequestHitPrefetch();
+    }
+
+    /**
+     * Now that the run file exists, plans to load the top hits of each request, which the event extractor
+     * input, event annotation and reranker stages will all want, so they are loaded in one corpus pass.
+     */
+    private void planRequestHitPrefetch() {
+        List<String> docids = tasks.getRequests().stream()
+                .flatMap(r -> getDocids(r.reqNum, Pathnames.REQUEST_HITS_DETAILED).stream())
+                .collect(Collectors.toList());
+        if (Pathnames.runGetCandidateDocs || Pathnames.targetLanguageIsEnglish) {
+            DocumentPrefetcher.planEnglishDocs(docids);
+        } else {
+            DocumentPrefetcher.planTargetDocs(docids);
+        }
     }
 
     /**
@@ -836,11 +888,21 @@ public class QueryManager {
      * @param taskID the task ID
      */
     private void createTaskDocIDListFromHits(String taskID) {
-        List<String> docids = this.getAllDocids(taskID);
+        writeTaskDocIDList(taskID, this.getAllDocids(taskID));
+    }
+
+    private List<String> getTaskLevelDocids(Run taskLevelRun, String taskID) {
+        if (!taskLevelRun.requestRuns.containsKey(taskID)) {
+            throw new TasksRunnerException("No hits from Task " + taskID + " Task-level query! Query execution probably failed.");
+        }
+        return taskLevelRun.requestRuns.get(taskID).docids;
+    }
+
+    private void writeTaskDocIDList(String taskID, List<String> docids) {
         if (docids.size() == 0) {
             throw new TasksRunnerException("No hits from Task " + taskID + " Task-level query! Query execution probably failed.");
         }
-        String outputFile = Pathnames.taskCorpusFileLocation + key + "." + taskID + ".DOC_LIST.txt";
+        String outputFile = Pathnames.taskCorpusFileLocation + getTaskLevelKey() + "." + taskID + ".DOC_LIST.txt";
         try {
             PrintWriter writer = new PrintWriter(outputFile);
             for (String docid : docids) {
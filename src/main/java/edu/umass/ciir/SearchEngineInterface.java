@@ -10,6 +10,15 @@ import java.util.*;
 
 public interface SearchEngineInterface {
     void buildIndexes(String corpusFileName);
+
+    /**
+     * Indexes the documents added to a corpus since its indexes were built. Search engines that cannot
+     * index just the new documents rebuild their indexes in full.
+     * @param corpusFileName the corpus file
+     */
+    default void buildDeltaIndexes(String corpusFileName) {
+        buildIndexes(corpusFileName);
+    }
     void search(int threadCount, int maxHits, String queryFileName, String runFileName,
                        String submissionId, String language);
 
@@ -0,0 +1,226 @@
+package edu.umass.ciir;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An on-disk cache of sentence boundaries, so documents are not re-segmented by spaCy in every run and every phase.
+ * Entries are keyed by docid, a hash of the document text and the id of the segmenter that produced them,
+ * so a changed document or a different segmenter is a cache miss.
+ * The cache file is an append-only log with one tab-separated line per document:
+ *   docid  text-hash  segmenter-id  id:start:end,id:start:end,...  checksum
+ * where the checksum is the CRC-32, in hex, of the UTF-8 bytes of the line up to the tab before it.
+ * It is read into memory the first time the cache is used; if a docid appears more than once, the last line wins,
+ * and a line whose checksum does not match (one cut short by a crash, say) is skipped.
+ * Before anything is appended, a last line with no newline is cut off, so the next entry starts a line of its own.
+ * Each new entry is appended with a single write to a channel opened in append mode, holding a lock on the file,
+ * so threads (and other processes) writing at the same time do not interleave their lines, and a line another
+ * process is still writing is not mistaken for an incomplete one.
+ */
+public class SentenceCache {
+    private static final Logger logger = Logger.getLogger("TasksRunner");
+
+    /**
+     * The key is docid + TAB + segmenter id, the value is the cache entry for that document
+     */
+    private static Map<String, Entry> entryMap = null;
+    private static FileChannel logChannel = null;
+
+    private static class Entry {
+        final String textHash;
+        final int[] triples;  // id, start, end for each sentence
+
+        Entry(String textHash, int[] triples) {
+            this.textHash = textHash;
+            this.triples = triples;
+        }
+    }
+
+    private static synchronized Map<String, Entry> getEntryMap() {
+        if (entryMap == null) {
+            entryMap = new ConcurrentHashMap<>();
+            truncateIncompleteLine();
+            load();
+            try {
+                logChannel = FileChannel.open(Paths.get(Pathnames.sentenceCacheFile), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                throw new TasksRunnerException(e);
+            }
+        }
+        return entryMap;
+    }
+
+    /* Cuts off the end of the cache file after its last newline, if there is anything there */
+    private static void truncateIncompleteLine() {
+        if (!new File(Pathnames.sentenceCacheFile).exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(Pathnames.sentenceCacheFile), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+             FileLock ignored = channel.lock()) {
+            long size = channel.size();
+            long end = size;
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            boolean found = false;
+            while (end > 0 && !found) {
+                int length = (int) Math.min(buffer.capacity(), end);
+                buffer.clear().limit(length);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, end - length + buffer.position()) < 0) {
+                        throw new TasksRunnerException("Sentence cache " + Pathnames.sentenceCacheFile
+                                + " changed while it was being read");
+                    }
+                }
+                int i = length;
+                while (i > 0 && buffer.get(i - 1) != '\n') {
+                    --i;
+                }
+                found = i > 0;
+                end = end - length + i;
+            }
+            if (end < size) {
+                logger.warning("Cutting " + (size - end) + " bytes of an incomplete last line off sentence cache "
+                        + Pathnames.sentenceCacheFile);
+                channel.truncate(end);
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    private static String checksum(String text) {
+        CRC32 crc = new CRC32();
+        crc.update(text.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    private static void load() {
+        File f = new File(Pathnames.sentenceCacheFile);
+        if (!f.exists()) {
+            logger.info("No sentence cache at " + Pathnames.sentenceCacheFile + ", starting a new one");
+            return;
+        }
+        int badLines = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(f),
+                StandardCharsets.UTF_8), 1 << 20)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                /* A line cut short by a crash is skipped */
+                String[] tokens = line.split("\t", -1);
+                if (tokens.length != 5
+                        || !tokens[4].equals(checksum(line.substring(0, line.lastIndexOf('\t'))))) {
+                    ++badLines;
+                    continue;
+                }
+                try {
+                    String[] sentences = tokens[3].isEmpty() ? new String[0] : tokens[3].split(",");
+                    int[] triples = new int[sentences.length * 3];
+                    int i = 0;
+                    for (String sentence : sentences) {
+                        String[] parts = sentence.split(":");
+                        triples[i++] = Integer.parseInt(parts[0]);
+                        triples[i++] = Integer.parseInt(parts[1]);
+                        triples[i++] = Integer.parseInt(parts[2]);
+                    }
+                    entryMap.put(tokens[0] + "\t" + tokens[2], new Entry(tokens[1], triples));
+                } catch (RuntimeException e) {
+                    ++badLines;
+                }
+            }
+        } catch (IOException e) {
+            throw new TasksRunnerException(e);
+        }
+        logger.info("Loaded " + entryMap.size() + " documents from sentence cache " + Pathnames.sentenceCacheFile
+                + (badLines > 0 ? " (skipped " + badLines + " bad lines)" : ""));
+    }
+
+    private static String hash(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 16; ++i) {
+                builder.append(String.format("%02x", bytes[i]));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new TasksRunnerException(e);
+        }
+    }
+
+    /**
+     * Returns the cached sentences for a document, if this segmenter has already segmented this exact text.
+     * @param docid the docid
+     * @param text the document text
+     * @param segmenterId identifies the segmenter
+     * @return the sentences, with their text, or null if they are not in the cache
+     */
+    public static List<SentenceRange> get(String docid, String text, String segmenterId) {
+        Entry entry = getEntryMap().get(docid + "\t" + segmenterId);
+        if (entry == null || !entry.textHash.equals(hash(text))) {
+            return null;
+        }
+        List<SentenceRange> sentences = new ArrayList<>(entry.triples.length / 3);
+        for (int i = 0; i < entry.triples.length; i += 3) {
+            int start = entry.triples[i + 1];
+            int end = entry.triples[i + 2];
+            if (start < 0 || end > text.length() || start > end) {
+                return null;
+            }
+            sentences.add(new SentenceRange(entry.triples[i], start, end, text.substring(start, end)));
+        }
+        return sentences;
+    }
+
+    /**
+     * Adds a document's sentences to the cache, and appends them to the cache file.
+     * @param docid the docid
+     * @param text the document text
+     * @param segmenterId identifies the segmenter that produced the sentences
+     * @param sentences the sentences
+     */
+    public static void put(String docid, String text, String segmenterId, List<SentenceRange> sentences) {
+        Map<String, Entry> map = getEntryMap();
+        String textHash = hash(text);
+        int[] triples = new int[sentences.size() * 3];
+        StringBuilder line = new StringBuilder();
+        line.append(docid).append('\t').append(textHash).append('\t').append(segmenterId).append('\t');
+        int i = 0;
+        for (SentenceRange sentence : sentences) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(sentence.id).append(':').append(sentence.start).append(':').append(sentence.end);
+            triples[i++] = sentence.id;
+            triples[i++] = sentence.start;
+            triples[i++] = sentence.end;
+        }
+        String fields = line.toString();
+        line.append('\t').append(checksum(fields)).append('\n');
+        map.put(docid + "\t" + segmenterId, new Entry(textHash, triples));
+        ByteBuffer bytes = ByteBuffer.wrap(line.toString().getBytes(StandardCharsets.UTF_8));
+        synchronized (SentenceCache.class) {
+            try (FileLock ignored = logChannel.lock()) {
+                while (bytes.hasRemaining()) {
+                    logChannel.write(bytes);
+                }
+            } catch (IOException e) {
+                throw new TasksRunnerException(e);
+            }
+        }
+    }
+}
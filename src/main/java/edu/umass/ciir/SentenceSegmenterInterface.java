@@ -0,0 +1,46 @@
+package edu.umass.ciir;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a document's text into sentences. Each sentence comes back as a substring of the text,
+ * trimmed of surrounding whitespace, in document order.
+ * SentenceSegmenters says which segmenter to use for a language.
+ */
+public interface SentenceSegmenterInterface {
+    /**
+     * Returns the id that identifies this segmenter's sentences in the sentence cache.
+     * It must change if the segmenter's rules change.
+     * @return the segmenter's id
+     */
+    String getId();
+
+    /**
+     * Splits a text into sentences.
+     * @param text the text
+     * @return the sentences
+     */
+    List<String> getSentences(String text);
+
+    /**
+     * Splits many texts into sentences.
+     * @param texts the texts
+     * @return the sentences of each text, in the same order as the texts
+     */
+    default List<List<String>> getSentencesBatch(List<String> texts) {
+        List<List<String>> sentences = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            sentences.add(getSentences(text));
+        }
+        return sentences;
+    }
+
+    /**
+     * Tells whether this segmenter's sentences are worth keeping in the sentence cache.
+     * @return true if they should be cached
+     */
+    default boolean useSentenceCache() {
+        return true;
+    }
+}
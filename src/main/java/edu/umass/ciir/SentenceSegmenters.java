@@ -0,0 +1,25 @@
+package edu.umass.ciir;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out the sentence segmenter for each language, making each one the first time it is asked for.
+ */
+public class SentenceSegmenters {
+    /* The key is the language for a JavaSentenceSegmenter, or an empty string for spaCy */
+    private static final Map<String, SentenceSegmenterInterface> segmenters = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the segmenter to use for a language: the JavaSentenceSegmenter if the language is in
+     * Pathnames.javaSegmenterLanguages, otherwise spaCy.
+     * @param language the canonical form of the language (e.g. chinese), or an empty string if it is not known
+     * @return the segmenter
+     */
+    public static SentenceSegmenterInterface get(String language) {
+        if (Pathnames.javaSegmenterLanguages.contains(language)) {
+            return segmenters.computeIfAbsent(language, JavaSentenceSegmenter::new);
+        }
+        return segmenters.computeIfAbsent("", l -> new SpacySentenceSegmenter());
+    }
+}
@@ -1,6 +1,9 @@
 package edu.umass.ciir;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.logging.Logger;
 
 /**
@@ -10,31 +13,66 @@ import java.util.logging.Logger;
 public class Spacy {
     private static final Logger logger = Logger.getLogger("TasksRunner");
 
-    private static LineOrientedPythonDaemon sentenceDaemon = null;
+    /**
+     * Identifies the sentences this class produces, in the sentence cache
+     */
+    public static final String SEGMENTER_ID = "spacy:get_sentences_from_spacy_daemon.py";
 
-    static {
-        startSpacySentenceDaemon();
-    }
+    private static PythonDaemonPool sentenceDaemons = null;
 
-    private static void startSpacySentenceDaemon() {
-        logger.info("Starting spacy sentence daemon");
-        sentenceDaemon = new LineOrientedPythonDaemon("get_sentences_from_spacy_daemon.py");
+    /* The daemons are started the first time they are needed, since the sentence cache often makes them unnecessary */
+    private static synchronized PythonDaemonPool getSentenceDaemons() {
+        if (sentenceDaemons == null) {
+            logger.info("Starting spacy sentence daemons");
+            sentenceDaemons = new PythonDaemonPool("get_sentences_from_spacy_daemon.py", Pathnames.spacyDaemons);
+        }
+        return sentenceDaemons;
     }
 
     /**
-     * Calls the spacy sentence daemon with some text, getting back the sentences.
-     * It is synchronized because it is called from inside the Document method that uses a
-     * ConcurrentHashMap to multi-thread through reading the corpus file, and the Python spacy
-     * sentence daemon program is not thread-safe.
+     * Calls a spacy sentence daemon with some text, getting back the sentences.
+     * It is called from inside the Document method that uses a parallel stream to multi-thread
+     * through reading the corpus file, and the Python spacy sentence daemon program is not thread-safe,
+     * so each call is given a daemon of its own from the pool (waiting for one if they are all busy).
      * @param text the text to get sentences from
      * @return the list of sentences
      */
     public static List<String> getSentences(String text) {
-        return sentenceDaemon.getAnswers(text);
+        return getSentenceDaemons().getAnswers(text);
+    }
+
+    /**
+     * Gets the sentences for many texts. The texts are sent to the daemons in batches of
+     * Pathnames.spacyBatchSize, one request per batch, and the batches are spread across the daemons in the pool.
+     * @param texts the texts to get sentences from
+     * @return the list of sentences for each text, in the same order as the texts
+     */
+    public static List<List<String>> getSentencesBatch(List<String> texts) {
+        PythonDaemonPool daemons = getSentenceDaemons();
+        int batchSize = Math.max(1, Pathnames.spacyBatchSize);
+        int numBatches = (texts.size() + batchSize - 1) / batchSize;
+        List<List<List<String>>> batchAnswers = IntStream.range(0, numBatches)
+                .parallel()
+                .mapToObj(i -> daemons.getAnswersBatch(
+                        texts.subList(i * batchSize, Math.min(texts.size(), (i + 1) * batchSize))))
+                .collect(Collectors.toList());
+        List<List<String>> answers = new ArrayList<>(texts.size());
+        for (List<List<String>> batch : batchAnswers) {
+            answers.addAll(batch);
+        }
+        return answers;
+    }
+
+    public static synchronized void logStatistics() {
+        if (sentenceDaemons != null) {
+            sentenceDaemons.logStatistics();
+        }
     }
 
     // No need to do this, let it run until the whole program ends
-    public void stopSpacy() {
-        sentenceDaemon.stop();
+    public synchronized void stopSpacy() {
+        if (sentenceDaemons != null) {
+            sentenceDaemons.stop();
+        }
     }
 }
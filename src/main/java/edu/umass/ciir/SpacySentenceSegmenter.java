@@ -0,0 +1,23 @@
+package edu.umass.ciir;
+
+import java.util.List;
+
+/**
+ * The spaCy sentence daemons, as a SentenceSegmenterInterface.
+ */
+public class SpacySentenceSegmenter implements SentenceSegmenterInterface {
+    @Override
+    public String getId() {
+        return Spacy.SEGMENTER_ID;
+    }
+
+    @Override
+    public List<String> getSentences(String text) {
+        return Spacy.getSentences(text);
+    }
+
+    @Override
+    public List<List<String>> getSentencesBatch(List<String> texts) {
+        return Spacy.getSentencesBatch(texts);
+    }
+}
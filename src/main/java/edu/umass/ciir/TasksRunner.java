@@ -29,6 +29,7 @@ public class TasksRunner {
 //    private boolean runNeuralIndexing = false;
     public enum Action {
         INDEX_BUILD,
+        DELTA_INDEX_BUILD,
         ENGLISH_INDEX_BUILD,
         PRETRAIN,
         GET_IE_FROM_FILE,
@@ -134,7 +135,23 @@ public class TasksRunner {
                     logger.info("Target indexes do not exist, so we will build them");
                     actions.add(Action.INDEX_BUILD);
                 } else {
-                    logger.info("Target indexes already exist, so we will NOT build them");
+                    String corpus = Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName;
+                    IndexDocidManifest manifest = IndexDocidManifest.load();
+                    if (manifest == null) {
+                        logger.info("Target indexes already exist, so we will NOT build them");
+                    } else if (Pathnames.mergeDeltaIndexes && manifest.getMaxDeltaIndexCount() > 0) {
+                        logger.info("Target indexes have delta indexes to merge, so we will rebuild them");
+                        actions.add(Action.INDEX_BUILD);
+                    } else if (manifest.isCurrent(corpus)) {
+                        logger.info("Target indexes are up to date, so we will NOT build them");
+                    } else if (!Pathnames.deltaIndexBuild
+                            || manifest.getMaxDeltaIndexCount() >= Pathnames.maxDeltaIndexes) {
+                        logger.info("Target corpus has changed, so we will rebuild the target indexes");
+                        actions.add(Action.INDEX_BUILD);
+                    } else {
+                        logger.info("Target corpus has changed, so we will index the new documents");
+                        actions.add(Action.DELTA_INDEX_BUILD);
+                    }
                 }
             }
 
@@ -233,6 +250,19 @@ public class TasksRunner {
                     throw new TasksRunnerException("No operation specified in tasks.json");
                 }
             }
+
+            /* Task-level indexes are built from the main target indexes only, so in the two-step model new
+               documents must go into a full rebuild, not a delta index */
+            if (!Pathnames.skipIndexBuild && getProcessingModel() == Pathnames.ProcessingModel.TWO_STEP
+                    && !actions.contains(Action.INDEX_BUILD)) {
+                IndexDocidManifest manifest = IndexDocidManifest.load();
+                if (actions.remove(Action.DELTA_INDEX_BUILD)
+                        || (manifest != null && manifest.getMaxDeltaIndexCount() > 0)) {
+                    logger.info("Task-level indexes cannot include documents in delta indexes, so we will rebuild"
+                            + " the target indexes instead");
+                    actions.add(Action.INDEX_BUILD);
+                }
+            }
         } catch (Exception e) {
             String msg = "ERROR: Exception reading tasks.json file " + taskSetFile;
             System.out.println(msg);
@@ -298,26 +328,41 @@ public class TasksRunner {
         }
     }
 
+    /**
+     * Runs the event extractor over the target corpus, a part at a time, reading the corpus once.
+     * Each finished part is checkpointed, so a run that stops part way through picks up where it left off.
+     * A part whose results file (SUBMISSION.CORPUS.N.results.json) is already there is taken as done, so
+     * results from before there was a checkpoint are not redone either.
+     * A part that fails stops the run and is tried again next time, unless it is in
+     * Pathnames.corpusAnnotationPartsToSkip.
+     */
     public void annotateSomeCorpusDocs() {
-        long linesInOriginalFile;
-        try {
-            linesInOriginalFile = Files.lines(Paths.get(Pathnames.corpusFileLocation +
-                    Pathnames.targetCorpusFileName)).parallel().count();
-        } catch (IOException e) {
-            throw new TasksRunnerException(e);
-        }
-        int linesPerFile = 3000;
-        // parts 54 and 55 caused errors in the ISI event extractor
-        for (int startIndex = 0, part = 108; (part - 1) * linesPerFile < linesInOriginalFile; ++part) {
-            logger.info("part " + part);
-            startIndex = (part - 1) * linesPerFile;
+        CorpusPartitioner partitioner = new CorpusPartitioner(
+                Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName, Pathnames.corpusAnnotationPartSize,
+                Pathnames.eventExtractorFileLocation + submissionId + ".CORPUS.checkpoint.json");
+        while (partitioner.hasNext()) {
+            CorpusPartitioner.Part part = partitioner.next();
+            if (Pathnames.corpusAnnotationPartsToSkip.contains(part.getNumber())) {
+                logger.info("Skipping part " + part.getNumber());
+                partitioner.checkpoint(part);
+                continue;
+            }
+            if (new File(Pathnames.eventExtractorFileLocation + submissionId + ".CORPUS." + part.getNumber()
+                    + ".results.json").exists()) {
+                logger.info("Part " + part.getNumber() + " is already annotated");
+                partitioner.checkpoint(part);
+                continue;
+            }
+            logger.info("part " + part.getNumber());
+            List<String> lines = part.getLines();
             try {
-                eventExtractor.annotateSomeDocs("CORPUS." + part, startIndex, linesPerFile,
-                        Document::getSimpleHitsFromCorpus);
+                eventExtractor.annotateSomeDocs("CORPUS." + part.getNumber(), 0, lines.size(),
+                        (startIndex, numDocsPerFile) -> Document.getSimpleHitsFromLines(lines));
             } catch (Exception e) {
-                logger.info("part " + part + " failed");
+                logger.info("part " + part.getNumber() + " failed");
                 throw new TasksRunnerException(e);
             }
+            partitioner.checkpoint(part);
         }
     }
 
@@ -415,7 +460,7 @@ public class TasksRunner {
         return processingModel;
     }
 
-    private void executeQueryFile(Path path, String language) {
+    private QueryManager executeQueryFile(Path path, String language) {
         logger.info("Found a query file produced by the query formulator: " + path);
 
         QueryManager qf = new QueryManager(submissionId, language, mode, tasks, "Request", eventExtractor);
@@ -440,11 +485,7 @@ public class TasksRunner {
         }
 */
 
-        /* Extract events from the request-level scoredHits, to use when re-ranking the request-level results */
-        qf.createInputFileForEventExtractorFromRequestHits();
-
-        // Create the input file for my Galago reranker project:
-        //eventExtractor.createInputForRerankerFromRequestHits(qf);
+        return qf;
     }
 
     private void doTaskLevelProcessing(String taskLevelFormulator, String language) {
@@ -761,14 +802,26 @@ public class TasksRunner {
                 && (!file.toString().contains(".PRETTY."))
                 && (!file.toString().contains(".NON_TRANSLATED.")));
 
+        List<QueryManager> executedQueryFiles = new ArrayList<>();
         try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(
                 Paths.get(Pathnames.queryFileLocation),
                 filter)) {
-            dirStream.forEach(path -> executeQueryFile(path, language));
+            dirStream.forEach(path -> executedQueryFiles.add(executeQueryFile(path, language)));
         } catch (IOException cause) {
             throw new TasksRunnerException(cause);
         }
 
+        /* Create the event extractor input files for the request-level scoredHits only after all the query files
+           have been executed, so the top hits of all of their runs are planned for prefetch and the first
+           of these loads the docs for all of them in one corpus pass */
+        for (QueryManager executedQf : executedQueryFiles) {
+            /* Extract events from the request-level scoredHits, to use when re-ranking the request-level results */
+            executedQf.createInputFileForEventExtractorFromRequestHits();
+
+            // Create the input file for my Galago reranker project:
+            //eventExtractor.createInputForRerankerFromRequestHits(executedQf);
+        }
+
         /* Extract events from the request-level scoredHits, to use when re-ranking the request-level results */
         logger.info("Extracting events from the top Request-level hits");
         if (Pathnames.skipRequestDocAnnotation) {
@@ -829,7 +882,25 @@ public class TasksRunner {
         }
 
         if (actions.contains(Action.INDEX_BUILD)) {
+            if (Pathnames.corpusShards > 1
+                    && CorpusShards.get(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName) == null) {
+                CorpusShards.shardCorpus(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName,
+                        Pathnames.corpusShards);
+            }
             SearchEngineInterface.getSearchEngine().buildIndexes(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName);
+            if (Pathnames.useCorpusOffsetIndex) {
+                logger.info("Building the corpus offset index");
+                CorpusOffsetIndex.get(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName);
+            }
+        }
+
+        if (actions.contains(Action.DELTA_INDEX_BUILD)) {
+            SearchEngineInterface.getSearchEngine().buildDeltaIndexes(
+                    Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName);
+            if (Pathnames.useCorpusOffsetIndex) {
+                logger.info("Rebuilding the corpus offset index");
+                CorpusOffsetIndex.get(Pathnames.corpusFileLocation + Pathnames.targetCorpusFileName);
+            }
         }
 
         if (actions.contains(Action.NEURAL_INDEX_BUILD)) {
@@ -0,0 +1,86 @@
+package edu.umass.ciir;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CjkTokenizerTest {
+
+    /* GalagoSearchEngine.bigramIt() as it was before CjkTokenizer, which BIGRAM mode must match exactly */
+    private static String oldBigramIt(String rawtext) {
+        String[] sentences = rawtext.split("。");
+        String newText = "";
+        for (String sentence : sentences) {
+            // Remove any whitespace and punctuation
+            String text = sentence.replaceAll("\\p{Punct}", "");
+            text = text.replaceAll("\\s+", "");
+
+            if (text.length() == 1) {
+                newText += text.charAt(0);
+            } else if (text.length() == 2) {
+                newText += text.substring(0, 2);
+            } else {
+                for (int i = 1; i < text.length(); ++i) {
+                    newText += text.substring(i - 1, i + 1);
+                    newText += " ";
+                }
+            }
+            newText += " ";
+        }
+        return newText;
+    }
+
+    @Test
+    public void bigramMatchesOldBigramIt() {
+        List<String> texts = Arrays.asList(
+                "",
+                "中",
+                "中文",
+                "中文句子",
+                "中文。句子。",
+                "。。中文。。",
+                "中。文。",
+                "中, 文 句!子",
+                "abc 中文, \"引号\" (括号)\t\n句子。",
+                "一二三。四。五六。。七八九十",
+                "。");
+        CjkTokenizer tokenizer = new CjkTokenizer(CjkTokenizer.Mode.BIGRAM);
+        for (String text : texts) {
+            assertEquals(text, oldBigramIt(text), tokenizer.tokenize(text));
+        }
+    }
+
+    @Test
+    public void bigramMatchesOldBigramItOnRandomText() {
+        char[] alphabet = "中文句子我们他是的。。 ,.!?a1\t\n\"'-".toCharArray();
+        Random random = new Random(17);
+        CjkTokenizer tokenizer = new CjkTokenizer(CjkTokenizer.Mode.BIGRAM);
+        for (int i = 0; i < 1000; ++i) {
+            char[] text = new char[random.nextInt(40)];
+            for (int j = 0; j < text.length; ++j) {
+                text[j] = alphabet[random.nextInt(alphabet.length)];
+            }
+            String s = new String(text);
+            assertEquals(s, oldBigramIt(s), tokenizer.tokenize(s));
+        }
+    }
+
+    /* Like BIGRAM, each sentence is followed by an extra space */
+    @Test
+    public void otherModes() {
+        assertEquals("中 中文 文 文句 句 句子 子  ",
+                new CjkTokenizer(CjkTokenizer.Mode.UNIGRAM_BIGRAM).tokenize("中文句子"));
+        assertEquals("中 文 句 子  ", new CjkTokenizer(CjkTokenizer.Mode.CHARACTER).tokenize("中文句子"));
+    }
+
+    @Test
+    public void appendsToBuilder() {
+        StringBuilder builder = new StringBuilder("x ");
+        new CjkTokenizer(CjkTokenizer.Mode.BIGRAM).tokenize("中文句子", builder);
+        assertEquals("x 中文 文句 句子  ", builder.toString());
+    }
+}
@@ -0,0 +1,57 @@
+package edu.umass.ciir;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class CorpusIdExtractorTest {
+
+    private static CorpusReader.Line toLine(String text) {
+        return new CorpusReader.Line(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), 0);
+    }
+
+    /* The fast path, the full parse and CorpusLineFields must all find the same docid */
+    private static void assertDocid(String expected, String line) {
+        assertEquals(expected, CorpusIdExtractor.getDocid(toLine(line)));
+        assertEquals(expected, CorpusIdExtractor.getDocidByParsing(line));
+        assertEquals(expected, new CorpusLineFields(line).getDocid());
+    }
+
+    @Test
+    public void oldStyleLineHasTopLevelUuid() {
+        assertDocid("doc-1", "{\"uuid\":\"doc-1\",\"text\":\"Some text\",\"translated-text\":\"Du texte\"}");
+    }
+
+    @Test
+    public void newStyleLineHasIdInDerivedMetadata() {
+        assertDocid("doc-2", "{\"derived-metadata\":{\"text\":\"Some text\",\"id\":\"doc-2\",\"language\":\"arabic\"}}");
+    }
+
+    @Test
+    public void derivedMetadataIdWinsOverUuid() {
+        assertDocid("new-id", "{\"uuid\":\"old-id\",\"derived-metadata\":{\"id\":\"new-id\"}}");
+        assertDocid("new-id", "{\"derived-metadata\":{\"id\":\"new-id\"},\"uuid\":\"old-id\"}");
+    }
+
+    @Test
+    public void escapedIdsAreUnescaped() {
+        assertDocid("a\"b\\c", "{\"uuid\":\"a\\\"b\\\\c\"}");
+        assertDocid("café/1", "{\"derived-metadata\":{\"id\":\"caf\\u00e9\\/1\"}}");
+    }
+
+    @Test
+    public void whitespaceAndNestedValuesAreSkipped() {
+        assertDocid("doc-3", " { \"other\" : { \"id\" : \"not-this\", \"list\" : [1, {\"x\": \"}]\"}] } ,\n"
+                + "\t\"derived-metadata\" : { \"segment-sections\" : [ {\"start\": 0, \"end\": 2} ],"
+                + " \"text\" : \"a \\\"quoted\\\" } brace\", \"count\" : 12 , \"ok\" : true,"
+                + " \"id\" : \"doc-3\" } }");
+    }
+
+    @Test
+    public void nonAsciiTextBeforeTheId() {
+        assertDocid("doc-4", "{\"derived-metadata\":{\"text\":\"中文。句子\",\"id\":\"doc-4\"}}");
+    }
+}
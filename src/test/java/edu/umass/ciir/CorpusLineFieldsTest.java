@@ -0,0 +1,80 @@
+package edu.umass.ciir;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CorpusLineFieldsTest {
+
+    @Test
+    public void oldStyleFieldsAreTopLevel() {
+        CorpusLineFields fields = new CorpusLineFields(
+                "{\"uuid\":\"doc-1\",\"text\":\"Some text\",\"translated-text\":\"Du texte\"}");
+        assertFalse(fields.isNewStyle());
+        assertEquals("doc-1", fields.getDocid());
+        assertEquals("Some text", fields.getString("text"));
+        assertEquals("Du texte", fields.getString("translated-text"));
+        assertFalse(fields.has("language"));
+        assertNull(fields.getString("language"));
+    }
+
+    @Test
+    public void newStyleFieldsAreLookedUpInDerivedMetadataFirst() {
+        CorpusLineFields fields = new CorpusLineFields("{\"text\":\"top\",\"uuid\":\"old-id\","
+                + "\"derived-metadata\":{\"id\":\"new-id\",\"text\":\"derived\",\"language\":\"Arabic\"}}");
+        assertTrue(fields.isNewStyle());
+        assertEquals("new-id", fields.getDocid());
+        assertEquals("derived", fields.getString("text"));
+        assertEquals("Arabic", fields.getString("language"));
+        assertEquals("old-id", fields.getString("uuid"));
+    }
+
+    @Test
+    public void newStyleLineWithoutIdHasNoDocid() {
+        assertNull(new CorpusLineFields("{\"uuid\":\"old-id\",\"derived-metadata\":{\"text\":\"x\"}}").getDocid());
+    }
+
+    @Test
+    public void stringsAreUnescaped() {
+        CorpusLineFields fields = new CorpusLineFields(
+                "{\"derived-metadata\":{\"text\":\"line 1\\nline 2\\t\\\"q\\\" \\\\ \\/ \\u4e2d\"}}");
+        assertEquals("line 1\nline 2\t\"q\" \\ / \u4e2d", fields.getString("text"));
+    }
+
+    @Test
+    public void nonStringValuesAreNotStrings() {
+        CorpusLineFields fields = new CorpusLineFields("{\"derived-metadata\":{\"count\":3,\"none\":null}}");
+        assertTrue(fields.has("count"));
+        assertNull(fields.getString("count"));
+        assertTrue(fields.has("none"));
+        assertNull(fields.getString("none"));
+    }
+
+    @Test
+    public void nestedValuesAreParsedOnRequest() {
+        CorpusLineFields fields = new CorpusLineFields("{ \"derived-metadata\" : {\n"
+                + "  \"segment-sections\" : [ {\"start\": 0, \"end\": 5}, {\"start\": 6, \"end\": 12} ],\n"
+                + "  \"text\" : \"Hello world!\", \"id\" : \"doc-5\" } }");
+        JSONArray sections = (JSONArray) fields.parseValue("segment-sections");
+        assertEquals(2, sections.size());
+        assertEquals(6L, ((JSONObject) sections.get(1)).get("start"));
+        assertEquals("Hello world!", fields.getString("text"));
+        assertEquals("doc-5", fields.getDocid());
+        assertNull(fields.parseValue("isi-events"));
+    }
+
+    @Test(expected = TasksRunnerException.class)
+    public void notAnObject() {
+        new CorpusLineFields("[\"uuid\",\"doc-1\"]");
+    }
+
+    @Test(expected = TasksRunnerException.class)
+    public void truncatedLine() {
+        new CorpusLineFields("{\"uuid\":\"doc-1\",\"text\":\"Some te");
+    }
+}
@@ -0,0 +1,101 @@
+package edu.umass.ciir;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DocidSetTest {
+    private static final String UUID_1 = "0f8fad5b-d9cb-469f-a165-70867728950e";
+    private static final String UUID_2 = "7c9e6679-7425-40de-944b-e07fc1f90ae7";
+    private static final String ZERO_UUID = "00000000-0000-0000-0000-000000000000";
+
+    @Test
+    public void uuidsAreAddedOnce() {
+        DocidSet set = new DocidSet();
+        assertTrue(set.add(UUID_1));
+        assertFalse(set.add(new String(UUID_1.toCharArray())));
+        assertTrue(set.add(UUID_2));
+        assertTrue(set.contains(UUID_1));
+        assertTrue(set.contains(UUID_2));
+        assertFalse(set.contains("1f8fad5b-d9cb-469f-a165-70867728950e"));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void zeroUuidIsKept() {
+        DocidSet set = new DocidSet();
+        assertFalse(set.contains(ZERO_UUID));
+        assertTrue(set.add(ZERO_UUID));
+        assertFalse(set.add(ZERO_UUID));
+        assertTrue(set.contains(ZERO_UUID));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void otherDocidsFallBackToStrings() {
+        List<String> others = Arrays.asList(
+                "doc-1",
+                "0F8FAD5B-D9CB-469F-A165-70867728950E",   // upper case
+                "0f8fad5b-d9cb-469f-a165-70867728950g",   // not hex
+                "0f8fad5bd9cb-469f-a165-70867728950e-",   // dashes in the wrong places
+                "");
+        DocidSet set = new DocidSet();
+        set.add(UUID_1);
+        for (String docid : others) {
+            assertTrue(docid, set.add(docid));
+            assertFalse(docid, set.add(docid));
+        }
+        for (String docid : others) {
+            assertTrue(docid, set.contains(docid));
+        }
+        assertFalse(set.contains("doc-2"));
+        assertEquals(others.size() + 1, set.size());
+    }
+
+    @Test
+    public void iteratesOverDocidsAsAdded() {
+        Set<String> expected = new HashSet<>(Arrays.asList(UUID_1, UUID_2, ZERO_UUID, "doc-1", "DOC-2"));
+        DocidSet set = new DocidSet();
+        set.addAll(expected);
+        Set<String> found = new HashSet<>();
+        for (String docid : set) {
+            assertTrue(found.add(docid));
+        }
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void growsPastItsFirstTable() {
+        DocidSet set = new DocidSet();
+        for (int i = 0; i < 10000; ++i) {
+            assertTrue(set.add(String.format("%08x-0000-4000-8000-%012x", i, i * 7L)));
+        }
+        for (int i = 0; i < 10000; ++i) {
+            assertTrue(set.contains(String.format("%08x-0000-4000-8000-%012x", i, i * 7L)));
+        }
+        assertEquals(10000, set.size());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        DocidSet set = new DocidSet();
+        set.add(UUID_1);
+        set.add("doc-1");
+        DocidSet copy = new DocidSet(set);
+        copy.add(UUID_2);
+        copy.add("doc-2");
+        assertTrue(copy.contains(UUID_1));
+        assertTrue(copy.contains("doc-1"));
+        assertFalse(set.contains(UUID_2));
+        assertFalse(set.contains("doc-2"));
+        assertEquals(2, set.size());
+        assertEquals(4, copy.size());
+    }
+}